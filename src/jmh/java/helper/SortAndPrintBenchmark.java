@@ -0,0 +1,86 @@
+package helper;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.PatientFixtures;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the ordering and printing stages of {@link FhirHelper#searchAndPrintPatients(String)}.
+ * Printing goes to a report file in target/ instead of the console, so console speed does not distort the numbers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx4g", "-Dlogback.configurationFile=logback-bench.xml"})
+public class SortAndPrintBenchmark {
+
+    @Param({"10000", "100000"})
+    public int patients;
+
+    @Param({"PLAIN", "CSV", "NDJSON"})
+    public PatientReportWriter.Format format;
+
+    private PatientReportWriter reportWriter;
+    private FhirHelper fhirHelper;
+    private List<Patient> shuffled;
+    private List<Patient> working;
+
+    @Setup
+    public void setUp() throws IOException {
+        reportWriter = PatientReportWriter.toFile(Paths.get("target", "benchmark-report.txt"), format);
+        fhirHelper = new FhirHelper(null, reportWriter);
+        shuffled = new ArrayList<>(PatientFixtures.scaledPatients(patients));
+        Collections.shuffle(shuffled, new Random(7));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reportWriter.close();
+    }
+
+    /**
+     * Every sort starts again from the same unsorted order.
+     */
+    @Setup(Level.Invocation)
+    public void resetOrder() {
+        working = new ArrayList<>(shuffled);
+    }
+
+    @Benchmark
+    public List<Patient> sort() {
+        fhirHelper.sortPatients(working, PatientFixtures.FAMILY_NAME);
+        return working;
+    }
+
+    @Benchmark
+    public List<Patient> top100() {
+        return PatientSorter.topByFirstName(shuffled, PatientFixtures.FAMILY_NAME, 100);
+    }
+
+    @Benchmark
+    public void print() {
+        fhirHelper.printPatients(shuffled, PatientFixtures.FAMILY_NAME);
+    }
+}
@@ -0,0 +1,71 @@
+package service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the client-side cost of a search response: parsing the Bundle JSON and mapping its entries to patients
+ * as {@link FhirClient} does, compared with streaming the same JSON into {@link PatientSummary} records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx4g"})
+public class BundleParseBenchmark {
+
+    @Param({"10000", "100000"})
+    public int patients;
+
+    private IParser parser;
+    private final PatientSummaryParser summaryParser = new PatientSummaryParser();
+    private String bundleJson;
+    private Bundle bundle;
+
+    @Setup
+    public void setUp() {
+        parser = FhirContext.forR4().newJsonParser();
+        bundleJson = PatientFixtures.scaledBundleJson(patients);
+        bundle = parser.parseResource(Bundle.class, bundleJson);
+    }
+
+    @Benchmark
+    public Bundle parse() {
+        return parser.parseResource(Bundle.class, bundleJson);
+    }
+
+    @Benchmark
+    public List<Patient> map() {
+        return FhirClient.toPatients(bundle);
+    }
+
+    @Benchmark
+    public List<Patient> parseAndMap() {
+        return FhirClient.toPatients(parser.parseResource(Bundle.class, bundleJson));
+    }
+
+    @Benchmark
+    public String streamingSummaries(Blackhole blackhole) throws IOException {
+        return summaryParser.parse(new StringReader(bundleJson), blackhole::consume);
+    }
+}
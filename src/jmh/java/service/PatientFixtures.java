@@ -0,0 +1,115 @@
+package service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds benchmark fixtures from src/test/java/helper/mock_patients_list.json, scaled up synthetically.
+ * The mock entries are cloned round-robin with fresh ids and pseudo-random given names (fixed seed),
+ * so sorting has real work to do and every run sees the same data.
+ */
+public class PatientFixtures {
+
+    /** Family name shared by every synthetic patient, used as the search term by the benchmarks. */
+    public static final String FAMILY_NAME = "Smith";
+
+    private static final String MOCK_PATIENTS_PATH = System.getProperty("fixture.path",
+            "src/test/java/helper/mock_patients_list.json");
+    private static final String[] SYLLABLES = {"an", "be", "ca", "di", "el", "fo", "gu", "ha", "is", "jo", "ka", "li",
+            "mo", "ne", "or", "pa", "ri", "sa", "te", "vy"};
+
+    private static volatile Bundle mockBundle;
+
+    private PatientFixtures() {
+    }
+
+    /**
+     * @return the mock patient entries wrapped in a searchset Bundle
+     */
+    public static Bundle mockBundle() {
+        if (mockBundle == null) {
+            try {
+                String entries = new String(Files.readAllBytes(Paths.get(MOCK_PATIENTS_PATH)), StandardCharsets.UTF_8);
+                String json = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":" + entries + "}";
+                mockBundle = FhirContext.forR4().newJsonParser().parseResource(Bundle.class, json);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read benchmark fixture " + MOCK_PATIENTS_PATH, e);
+            }
+        }
+        return mockBundle;
+    }
+
+    /**
+     * Builds a searchset Bundle with the requested number of patients.
+     * Every patient has a name with family name {@link #FAMILY_NAME}, as the search would have returned.
+     *
+     * @param patientCount number of patients in the Bundle
+     * @return the scaled Bundle
+     */
+    public static Bundle scaledBundle(int patientCount) {
+        // Patient.copy() trips over the date precision of some mock birth dates, so templates are cloned by re-parsing
+        IParser parser = FhirContext.forR4().newJsonParser();
+        List<String> templates = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : mockBundle().getEntry()) {
+            templates.add(parser.encodeResourceToString(entry.getResource()));
+        }
+        Random random = new Random(42);
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(patientCount);
+        for (int i = 0; i < patientCount; i++) {
+            Patient patient = parser.parseResource(Patient.class, templates.get(i % templates.size()));
+            patient.setId("bench-" + i);
+            HumanName matching = null;
+            for (HumanName name : patient.getName()) {
+                if (FAMILY_NAME.equalsIgnoreCase(name.getFamily())) {
+                    matching = name;
+                }
+            }
+            if (matching == null) {
+                matching = patient.addName().setFamily(FAMILY_NAME);
+            }
+            matching.getGiven().clear();
+            matching.addGiven(randomName(random));
+            bundle.addEntry().setFullUrl("Patient/bench-" + i).setResource(patient);
+        }
+        return bundle;
+    }
+
+    /**
+     * @param patientCount number of patients
+     * @return the patients of the scaled Bundle, mapped as {@link FhirClient} maps a search result
+     */
+    public static List<Patient> scaledPatients(int patientCount) {
+        return FhirClient.toPatients(scaledBundle(patientCount));
+    }
+
+    /**
+     * @param patientCount number of patients in the Bundle
+     * @return the scaled Bundle encoded as JSON, as it would arrive over the wire
+     */
+    public static String scaledBundleJson(int patientCount) {
+        return FhirContext.forR4().newJsonParser().encodeResourceToString(scaledBundle(patientCount));
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder name = new StringBuilder();
+        int syllables = 2 + random.nextInt(2);
+        for (int i = 0; i < syllables; i++) {
+            name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+        return name.toString();
+    }
+}
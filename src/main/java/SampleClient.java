@@ -1,11 +1,40 @@
 import helper.FhirHelper;
+import helper.LoadGenerator;
+import interceptor.SearchTrace;
+import org.slf4j.LoggerFactory;
+import service.ConfigUtility;
 import service.FhirClient;
+import service.ReplayFhirServer;
+import service.SearchTermSource;
+import service.StubFhirServer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class SampleClient {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SampleClient.class);
     private static final int LOOP_COUNT=3;
     private static final int NAMES_COUNT=20;
 
-    public static void main(String[] theArgs) {
+    /**
+     * Runs the timed searches, or with the argument "load" an open-loop load test configured by the LOAD_* keys of
+     * application.properties, e.g. {@code mvn -P loadtest compile exec:java}. "load stub" runs it against a local
+     * stub server. With "replay FILE [SCALE]" the timed searches run against a local server replaying a file
+     * recorded with SEARCH_RECORD_FILE, its latencies multiplied by SCALE (default 1).
+     */
+    public static void main(String[] theArgs) throws IOException {
+        if (theArgs.length > 0 && "load".equals(theArgs[0])) {
+            runLoadTest(theArgs.length > 1 && "stub".equals(theArgs[1])
+                    || Boolean.parseBoolean(ConfigUtility.loadConfigValue("LOAD_USE_STUB").trim()));
+            return;
+        }
+        if (theArgs.length > 1 && "replay".equals(theArgs[0])) {
+            runReplay(Paths.get(theArgs[1]), theArgs.length > 2 ? Double.parseDouble(theArgs[2]) : 1.0);
+            return;
+        }
 
         // Create a FHIR client
        /* FhirContext fhirContext = FhirContext.forR4();
@@ -19,10 +48,48 @@ public class SampleClient {
                 .where(Patient.FAMILY.matches().value("SMITH"))
                 .returnBundle(Bundle.class)
                 .execute();*/
-        FhirClient fhirClient = new FhirClient(LOOP_COUNT,NAMES_COUNT);
-        FhirHelper fhirHelper = new FhirHelper(fhirClient);
-        //fhirHelper.searchAndPrintPatients("SMITH");   //Task 1
-        fhirHelper.timePatientSearchResponse(LOOP_COUNT,NAMES_COUNT);         //Task 2
+        try (FhirClient fhirClient = new FhirClient(LOOP_COUNT,NAMES_COUNT)) {
+            FhirHelper fhirHelper = new FhirHelper(fhirClient);
+            //fhirHelper.searchAndPrintPatients("SMITH");   //Task 1
+            fhirHelper.timePatientSearchResponse(LOOP_COUNT,NAMES_COUNT);         //Task 2
+        }
+        if (SearchTrace.isMetricsEnabled()) {
+            log.info("SEARCH PHASES:\n{}", SearchTrace.report());
+        }
+    }
+
+    /**
+     * Runs the timed searches against recorded exchanges, so results can be compared across builds without a network.
+     */
+    private static void runReplay(Path file, double latencyScale) throws IOException {
+        try (ReplayFhirServer replay = ReplayFhirServer.fromFile(file, latencyScale);
+             FhirClient fhirClient = new FhirClient(replay.getBaseUrl(), LOOP_COUNT, NAMES_COUNT)) {
+            new FhirHelper(fhirClient).timePatientSearchResponse(LOOP_COUNT, NAMES_COUNT);
+            log.info("LATENCY METRICS (replayed, scale {}):\n{}", latencyScale, fhirClient.getMetrics().report());
+            if (replay.getUnmatched() > 0) {
+                log.warn("{} requests were not in the replay file {}", replay.getUnmatched(), file);
+            }
+        }
     }
 
+    /**
+     * Runs the load test against FHIR_BASE_URL, or against a local stub server, so results can be reproduced offline.
+     */
+    private static void runLoadTest(boolean useStub) throws IOException {
+        List<String> terms = new ArrayList<>();
+        try (SearchTermSource source = SearchTermSource.open("names.txt")) {
+            source.forEachRemaining(terms::add);
+        }
+        StubFhirServer stub = useStub
+                ? new StubFhirServer(Integer.parseInt(ConfigUtility.loadConfigValue("LOAD_STUB_PATIENTS").trim()),
+                        Long.parseLong(ConfigUtility.loadConfigValue("LOAD_STUB_LATENCY_MS").trim()))
+                : null;
+        String baseUrl = stub != null ? stub.getBaseUrl() : ConfigUtility.loadConfigValue("FHIR_BASE_URL");
+        try (FhirClient fhirClient = new FhirClient(baseUrl, 1, terms.size())) {
+            new LoadGenerator(fhirClient, terms, LoadGenerator.Settings.fromConfig()).run();
+            log.info("LATENCY METRICS (per HTTP request):\n{}", fhirClient.getMetrics().report());
+        } finally {
+            if (stub != null) stub.close();
+        }
+    }
 }
@@ -1,25 +1,48 @@
 package helper;
 
 import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import interceptor.SearchPhase;
+import interceptor.SearchTrace;
 import org.hl7.fhir.exceptions.FHIRException;
-import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.Patient;
 import org.slf4j.LoggerFactory;
-import service.ConfigUtility;
 import service.FhirClient;
+import service.ParallelPatientSearch;
+import service.ParallelSearchResult;
+import service.PatientSummary;
+import service.SearchTermSource;
 
-import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Phaser;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FhirHelper {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(FhirHelper.class);
     private static final String NAMES_FILE_PATH = "names.txt";
     private FhirClient fhirClient;
+    private PatientReportWriter reportWriter;
 
+    /**
+     * @param fhirClient client used for the searches; found patients are printed to the report writer shared by the
+     *                   process, see {@link PatientReportWriter#shared()}
+     */
     public FhirHelper(FhirClient fhirClient) {
+        this(fhirClient, PatientReportWriter.shared());
+    }
+
+    /**
+     * @param fhirClient client used for the searches
+     * @param reportWriter output the found patients are printed to, instead of the log
+     */
+    public FhirHelper(FhirClient fhirClient, PatientReportWriter reportWriter) {
         this.fhirClient = fhirClient;
+        this.reportWriter = reportWriter;
     }
 
     /**
@@ -30,22 +53,8 @@ public class FhirHelper {
         List<Patient> patients =null;
         try {
             patients= fhirClient.searchPatientsByLastName(familyName,false);
-            // Sorting patients by the first name containing search string <familyName> (case insensitive)
-            patients.sort(Comparator.comparing(patient -> getFirstNameForMatchingFamilyName(patient, familyName)));
-
-            // Printing patient information
-            for (Patient patient : patients) {
-                Optional<HumanName> filteredNameList = patient.getName().stream()
-                        .filter(name -> name.getFamily().equalsIgnoreCase(familyName))
-                        .findFirst();
-
-                filteredNameList.ifPresent(name -> {
-                    log.info("First Name: " + name.getGiven().get(0).getValue());
-                    log.info("Last Name: " + name.getFamily());
-                    log.info("Birth Date: " + (patient.getBirthDate()!=null?patient.getBirthDate():"Not available in records"));
-                    log.info(/*patient.getId()+*/"-------------------------");
-                });
-            }
+            sortPatients(patients, familyName);
+            printPatients(patients, familyName);
         } catch (FHIRException e) {
             log.error("Error interacting with FHIR server::", e.getMessage(), e);
         } catch (NullPointerException npe){
@@ -57,34 +66,231 @@ public class FhirHelper {
     }
 
     /**
-     * Returns the first Name of patients based on their specified family name.
-     * For patients who have multiple names, will search for the object with the matching family name
-     * @param patient The entire patient object
+     * Searches for patients based on the specified family name and prints only the first patients by first name.
+     * A bounded top-K selection is used, so the full result list is never sorted.
      * @param familyName The family name of the patients to search for
-     * @return the firstName of the patient which matches the family name.
+     * @param limit The maximum number of patients to print
+     * @return the printed patients, sorted by first name
      */
-    private String getFirstNameForMatchingFamilyName(Patient patient, String familyName) {
-        return patient.getName().stream()
-                .filter(name -> name.getFamily().equalsIgnoreCase(familyName))
-                .flatMap(name -> name.getGiven().stream())
-                .map(given -> given.getValue().toUpperCase())
-                .findFirst().orElse("");
+    public List<Patient> searchAndPrintPatients(String familyName, int limit) {
+        List<Patient> patients =null;
+        try {
+            List<Patient> found = fhirClient.searchPatientsByLastName(familyName,false);
+            SearchTrace trace = SearchTrace.detached(familyName);
+            trace.start(SearchPhase.SORT);
+            patients= PatientSorter.topByFirstName(found, familyName, limit);
+            trace.end(SearchPhase.SORT);
+            trace.finish(found.size());
+            printPatients(patients, familyName);
+        } catch (FHIRException e) {
+            log.error("Error interacting with FHIR server::", e.getMessage(), e);
+        } catch (NullPointerException npe){
+            log.error("NPE parsing response: Format not as expected::", npe.getMessage(),npe);
+        } catch (Exception e) {
+            log.error("Error in searchAndPrintPatients::",e.getMessage(),e);
+        }
+        return patients;
     }
 
     /**
-     * Performs searches for patients with last names from the provided list and prints the average response time.
+     * Searches for patients based on the specified family name and prints their information, sorted alphabetically.
+     * Uses the streaming summary parser, so only id, names and birth date of each patient are ever materialized.
+     * @param familyName The family name of the patients to search for
+     * @return the printed patient summaries, sorted by first name
+     */
+    public List<PatientSummary> searchAndPrintPatientSummaries(String familyName) {
+        List<PatientSummary> patients =null;
+        try {
+            patients= fhirClient.searchPatientSummariesByLastName(familyName);
+            SearchTrace trace = SearchTrace.detached(familyName);
+            trace.start(SearchPhase.SORT);
+            PatientSorter.sortSummariesByFirstName(patients, familyName);
+            trace.end(SearchPhase.SORT);
+            trace.finish(patients.size());
+            printPatientSummaries(patients, familyName);
+        } catch (FHIRException e) {
+            log.error("Error interacting with FHIR server::", e.getMessage(), e);
+        } catch (Exception e) {
+            log.error("Error in searchAndPrintPatientSummaries::",e.getMessage(),e);
+        }
+        return patients;
+    }
+
+    /**
+     * Sorts patients by the first name belonging to the name entry that matches the family name (case insensitive).
+     * @param patients The patients to sort, sorted in place
+     * @param familyName The family name the patients were searched by
+     */
+    void sortPatients(List<Patient> patients, String familyName) {
+        SearchTrace trace = SearchTrace.detached(familyName);
+        trace.start(SearchPhase.SORT);
+        // Sorting patients by the first name containing search string <familyName> (case insensitive)
+        PatientSorter.sortByFirstName(patients, familyName);
+        trace.end(SearchPhase.SORT);
+        trace.finish(patients.size());
+    }
+
+    /**
+     * Prints first name, last name and birth date of each patient to the report writer, using the name entry that
+     * matches the family name.
+     * @param patients The patients to print
+     * @param familyName The family name the patients were searched by
+     */
+    void printPatients(List<Patient> patients, String familyName) {
+        SearchTrace trace = SearchTrace.detached(familyName);
+        trace.start(SearchPhase.PRINT);
+        long start = System.nanoTime();
+        int printed = 0;
+        for (Patient patient : patients) {
+            if (reportWriter.write(patient, familyName)) printed++;
+        }
+        reportWriter.flush();
+        trace.end(SearchPhase.PRINT);
+        trace.finish(patients.size());
+        log.debug("Printed {} of {} patients for '{}' in {} ms", printed, patients.size(), familyName,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Prints first name, last name and birth date of each patient summary to the report writer, using the name entry
+     * that matches the family name.
+     * @param patients The patient summaries to print
+     * @param familyName The family name the patients were searched by
+     */
+    void printPatientSummaries(List<PatientSummary> patients, String familyName) {
+        SearchTrace trace = SearchTrace.detached(familyName);
+        trace.start(SearchPhase.PRINT);
+        long start = System.nanoTime();
+        int printed = 0;
+        for (PatientSummary patient : patients) {
+            if (reportWriter.write(patient, familyName)) printed++;
+        }
+        reportWriter.flush();
+        trace.end(SearchPhase.PRINT);
+        trace.finish(patients.size());
+        log.debug("Printed {} of {} patient summaries for '{}' in {} ms", printed, patients.size(), familyName,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Searches for patients for all the specified family names concurrently, instead of one after another.
+     * Concurrency and per-search timeout are read from application.properties.
+     * @param familyNames The family names of the patients to search for
+     * @param disableCache parameter to instruct addition of no-cache/no-store headers to the requests.
+     * @return patients keyed by family name, with the names that failed or timed out reported separately
+     */
+    public ParallelSearchResult searchPatientsInParallel(List<String> familyNames, boolean disableCache) {
+        try (ParallelPatientSearch parallelSearch = new ParallelPatientSearch(fhirClient)) {
+            ParallelSearchResult result = parallelSearch.search(familyNames, disableCache);
+            result.getFailures().forEach((name, error) ->
+                    log.error("Search for '" + name + "' did not complete::" + error.getMessage()));
+            return result;
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #searchAndPrintPatients(String)}: the search runs on the non-blocking transport
+     * and the patients are sorted and printed when the response arrives.
+     * @param familyName The family name of the patients to search for
+     * @return completes with the printed patients, or null if the search failed (the error is logged)
+     */
+    public CompletableFuture<List<Patient>> searchAndPrintPatientsAsync(String familyName) {
+        return fhirClient.searchPatientsByLastNameAsync(familyName, false)
+                .thenApply(patients -> {
+                    sortPatients(patients, familyName);
+                    printPatients(patients, familyName);
+                    return patients;
+                })
+                .exceptionally(e -> {
+                    log.error("Error in searchAndPrintPatientsAsync::" + e.getMessage(), e);
+                    return null;
+                });
+    }
+
+    /**
+     * Searches for patients for all the specified family names on the non-blocking transport. The searches are sent
+     * as fast as the in-flight cap allows, so this method returns once the last one has been sent, and the caller is
+     * slowed down whenever the server falls behind. Duplicate names are searched only once.
+     * @param familyNames The family names of the patients to search for
+     * @param disableCache parameter to instruct addition of no-store headers to the requests.
+     * @return completes when every search has completed or failed, with the failed names reported separately
+     */
+    public CompletableFuture<ParallelSearchResult> searchPatientsAsync(List<String> familyNames, boolean disableCache) {
+        long start = System.nanoTime();
+        Map<String, CompletableFuture<List<Patient>>> pending = new LinkedHashMap<>();
+        for (String familyName : new LinkedHashSet<>(familyNames)) {
+            pending.put(familyName, fhirClient.searchPatientsByLastNameAsync(familyName, disableCache));
+        }
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture[0]))
+                .handle((ignored, error) -> {
+                    Map<String, List<Patient>> results = new LinkedHashMap<>();
+                    Map<String, Throwable> failures = new LinkedHashMap<>();
+                    pending.forEach((name, search) -> {
+                        try {
+                            results.put(name, search.join());
+                        } catch (CompletionException e) {
+                            log.error("Search for '" + name + "' did not complete::" + e.getCause().getMessage());
+                            failures.put(name, e.getCause());
+                        }
+                    });
+                    return new ParallelSearchResult(results, failures, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                });
+    }
+
+    /**
+     * Searches for every term of the source on the non-blocking transport, as the terms are read. The in-flight cap
+     * slows the reading down whenever the server falls behind, and results are not retained, so any number of terms
+     * can be searched with constant memory.
+     * @param terms The last names to search for, read lazily
+     * @param disableCache parameter to instruct addition of no-store headers to the requests.
+     * @return the number of searches that failed; the number sent is {@link SearchTermSource#getConsumed()}
+     */
+    public long searchAllTerms(SearchTermSource terms, boolean disableCache) {
+        long start = System.nanoTime();
+        AtomicLong failures = new AtomicLong();
+        Phaser pending = new Phaser(1);
+        while (terms.hasNext()) {
+            String lastName = terms.next();
+            pending.register();
+            CompletableFuture<List<Patient>> search;
+            try {
+                search = fhirClient.searchPatientsByLastNameAsync(lastName, disableCache);
+            } catch (RuntimeException e) {
+                // Failed before anything was sent, e.g. rejected by a closed client: the remaining terms are still searched
+                failures.incrementAndGet();
+                log.error("Search for '" + lastName + "' could not be started::" + e.getMessage());
+                pending.arriveAndDeregister();
+                continue;
+            }
+            search.whenComplete((patients, error) -> {
+                if (error != null) {
+                    failures.incrementAndGet();
+                    log.error("Search for '" + lastName + "' did not complete::" + error.getMessage());
+                }
+                pending.arriveAndDeregister();
+            });
+        }
+        pending.arriveAndAwaitAdvance();
+        log.info("Searched {} terms ({} duplicates and {} possible duplicates skipped, {} failed) in {} ms",
+                terms.getConsumed(), terms.getDuplicates(), terms.getPossibleDuplicates(), failures.get(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return failures.get();
+    }
+
+    /**
+     * Performs searches for patients with last names from the names file and prints the average response time.
+     * The file is streamed for every loop; if it holds fewer than NAMES_COUNT distinct names, all of them are used.
      *@param LOOP_COUNT The number of times the patient list should be repetitively fetched.
-     * @param NAMES_COUNT The number of last names in the file
+     * @param NAMES_COUNT The maximum number of last names searched per loop
      */
     public void timePatientSearchResponse(int LOOP_COUNT, int NAMES_COUNT) {
         try {
-            List<String> lastNames = ConfigUtility.readLastNamesFromFile(NAMES_FILE_PATH);
-
             for (int i = 0; i < LOOP_COUNT; i++) {
                 boolean disableCache = (i == LOOP_COUNT - 1); // Disable caching for the last loop
-                for (int j = 0; j < NAMES_COUNT; j++) {
-                    String lastName = lastNames.get(j);
-                    fhirClient.searchPatientsByLastName(lastName, disableCache);
+                try (SearchTermSource lastNames = SearchTermSource.open(NAMES_FILE_PATH)) {
+                    while (lastNames.getConsumed() < NAMES_COUNT && lastNames.hasNext()) {
+                        fhirClient.searchPatientsByLastName(lastNames.next(), disableCache);
+                    }
                 }
                 if(i<LOOP_COUNT-1) TimeUnit.SECONDS.sleep(10);  //Added to test cache impact. Introducing delay after each Set
             }
@@ -0,0 +1,334 @@
+package helper;
+
+import interceptor.LatencyHistogram;
+import interceptor.LatencyMetrics;
+import org.slf4j.LoggerFactory;
+import service.ConfigUtility;
+import service.FhirClient;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for patient searches. Requests are scheduled at a fixed rate, independent of how fast
+ * earlier ones complete, and handed to a fixed number of worker threads. When the server falls behind, requests wait
+ * for a worker instead of being sent later, and their latency is measured from the time they were scheduled to be
+ * sent. This corrects for coordinated omission: a stall shows up in the percentiles of every request it delayed,
+ * not just the one that hit it.
+ * <p>
+ * Requests sent during the warmup are not measured. Search terms are used round robin, and each request skips the
+ * caches with the configured probability, drawn from a fixed seed so runs are repeatable.
+ */
+public class LoadGenerator {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    /** Latency from the scheduled send time to the response, i.e. corrected for coordinated omission. */
+    public static final String RESPONSE = "load:response";
+    /** Latency from the actual send time to the response, as a closed-loop client would measure it. */
+    public static final String SERVICE = "load:service";
+
+    private final FhirClient fhirClient;
+    private final List<String> terms;
+    private final Settings settings;
+
+    /**
+     * @param fhirClient client the searches are sent with
+     * @param terms      last names to search for, used round robin
+     * @param settings   rate, duration and mix of the load
+     */
+    public LoadGenerator(FhirClient fhirClient, List<String> terms, Settings settings) {
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("No search terms for the load test");
+        }
+        this.fhirClient = fhirClient;
+        this.terms = terms;
+        this.settings = settings;
+    }
+
+    /**
+     * Runs the warmup and the measured period, then waits for the outstanding requests up to the drain time. Measured
+     * requests still outstanding after it are recorded as timeouts and counted as errors.
+     *
+     * @return the latencies and counts of the measured period
+     */
+    public Report run() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(settings.concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "load-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Random random = new Random(settings.seed);
+        LatencyMetrics metrics = new LatencyMetrics();
+        AtomicLong completed = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        // Measured requests not completed yet, so those still queued or in flight at the end can be accounted for
+        Set<Pending> outstanding = ConcurrentHashMap.newKeySet();
+        long periodNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / settings.ratePerSecond));
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(settings.warmupMillis);
+        long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(settings.durationMillis);
+        long sent = 0;
+        long measured = 0;
+        log.info("Load test: {} req/s for {} ms after {} ms warmup, {} workers, {}% cache-off",
+                settings.ratePerSecond, settings.durationMillis, settings.warmupMillis, settings.concurrency,
+                Math.round(settings.noCacheRatio * 100));
+
+        for (long i = 0; ; i++) {
+            long scheduled = start + i * periodNanos;
+            if (scheduled - end >= 0) {
+                break;
+            }
+            for (long wait = scheduled - System.nanoTime(); wait > 0; wait = scheduled - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            String term = terms.get((int) (i % terms.size()));
+            boolean disableCache = random.nextDouble() < settings.noCacheRatio;
+            Pending pending = scheduled - measureFrom >= 0 ? new Pending(scheduled, disableCache) : null;
+            sent++;
+            if (pending != null) {
+                measured++;
+                outstanding.add(pending);
+            }
+            workers.execute(() -> {
+                long sentAt = System.nanoTime();
+                boolean failed = false;
+                try {
+                    fhirClient.searchPatientsByLastName(term, disableCache);
+                } catch (RuntimeException e) {
+                    failed = true;
+                    log.debug("Load test search for '{}' failed::{}", term, e.getMessage());
+                }
+                long now = System.nanoTime();
+                // Skipped if the request was given up on at the end of the drain and recorded as a timeout
+                if (pending != null && pending.claim()) {
+                    outstanding.remove(pending);
+                    if (failed) errors.incrementAndGet();
+                    completed.incrementAndGet();
+                    metrics.record(TimeUnit.NANOSECONDS.toMicros(now - scheduled), RESPONSE,
+                            cacheDimension(disableCache), failed ? "result:error" : "result:ok");
+                    metrics.histogram(SERVICE).record(TimeUnit.NANOSECONDS.toMicros(now - sentAt));
+                }
+            });
+        }
+
+        workers.shutdown();
+        long abandoned = 0;
+        try {
+            if (!workers.awaitTermination(settings.drainMillis, TimeUnit.MILLISECONDS)) {
+                abandoned = abandon(outstanding, metrics);
+                log.warn("Load test: {} measured requests still outstanding after {} ms, recorded as timeouts",
+                        abandoned, settings.drainMillis);
+                workers.shutdownNow();
+                workers.awaitTermination(settings.drainMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandoned += abandon(outstanding, metrics);
+            workers.shutdownNow();
+        }
+        Report report = new Report(sent, measured, completed.get(), errors.get() + abandoned, abandoned,
+                settings.durationMillis, metrics);
+        log.info("LOAD TEST REPORT:\n{}", report);
+        return report;
+    }
+
+    /**
+     * Records the measured requests still queued or in flight as timeouts, with the time from their scheduled send
+     * to now as latency, so a server stalled at the end of the test still shows up in the response times. Workers
+     * finishing them later record nothing.
+     *
+     * @return the number of requests given up on
+     */
+    private static long abandon(Set<Pending> outstanding, LatencyMetrics metrics) {
+        long now = System.nanoTime();
+        long abandoned = 0;
+        for (Pending pending : outstanding) {
+            if (pending.claim()) {
+                abandoned++;
+                metrics.record(TimeUnit.NANOSECONDS.toMicros(now - pending.scheduled), RESPONSE,
+                        cacheDimension(pending.disableCache), "result:timeout");
+            }
+        }
+        outstanding.clear();
+        return abandoned;
+    }
+
+    private static String cacheDimension(boolean disableCache) {
+        return disableCache ? "cache:off" : "cache:on";
+    }
+
+    /**
+     * A measured request between its scheduled send time and the recording of its outcome, which happens once: by
+     * the worker that completes it or by the end of the drain, whichever claims it first.
+     */
+    private static final class Pending {
+        private final long scheduled;
+        private final boolean disableCache;
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        private Pending(long scheduled, boolean disableCache) {
+            this.scheduled = scheduled;
+            this.disableCache = disableCache;
+        }
+
+        private boolean claim() {
+            return recorded.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Rate, duration and mix of a load test.
+     */
+    public static final class Settings {
+        private final double ratePerSecond;
+        private final long durationMillis;
+        private final long warmupMillis;
+        private final int concurrency;
+        private final double noCacheRatio;
+        private final long drainMillis;
+        private final long seed;
+
+        /**
+         * @param ratePerSecond  requests scheduled per second
+         * @param durationMillis length of the measured period
+         * @param warmupMillis   length of the unmeasured period before it
+         * @param concurrency    maximum number of requests in flight
+         * @param noCacheRatio   share of requests that skip the caches, between 0 and 1
+         * @param drainMillis    how long to wait for outstanding requests at the end
+         * @param seed           seed of the cache mix
+         */
+        public Settings(double ratePerSecond, long durationMillis, long warmupMillis, int concurrency,
+                        double noCacheRatio, long drainMillis, long seed) {
+            if (ratePerSecond <= 0 || concurrency <= 0) {
+                throw new IllegalArgumentException("Load test rate and concurrency must be positive");
+            }
+            this.ratePerSecond = ratePerSecond;
+            this.durationMillis = durationMillis;
+            this.warmupMillis = warmupMillis;
+            this.concurrency = concurrency;
+            this.noCacheRatio = noCacheRatio;
+            this.drainMillis = drainMillis;
+            this.seed = seed;
+        }
+
+        /**
+         * Reads LOAD_RATE_PER_SEC, LOAD_DURATION_MS, LOAD_WARMUP_MS, LOAD_CONCURRENCY and LOAD_NO_CACHE_RATIO from
+         * application.properties; outstanding requests are waited for up to SEARCH_TIMEOUT_MS.
+         */
+        public static Settings fromConfig() {
+            return new Settings(Double.parseDouble(ConfigUtility.loadConfigValue("LOAD_RATE_PER_SEC").trim()),
+                    Long.parseLong(ConfigUtility.loadConfigValue("LOAD_DURATION_MS").trim()),
+                    Long.parseLong(ConfigUtility.loadConfigValue("LOAD_WARMUP_MS").trim()),
+                    Integer.parseInt(ConfigUtility.loadConfigValue("LOAD_CONCURRENCY").trim()),
+                    Double.parseDouble(ConfigUtility.loadConfigValue("LOAD_NO_CACHE_RATIO").trim()),
+                    Long.parseLong(ConfigUtility.loadConfigValue("SEARCH_TIMEOUT_MS").trim()),
+                    42);
+        }
+    }
+
+    /**
+     * Outcome of the measured period of a load test.
+     */
+    public static final class Report {
+        private final long sent;
+        private final long measured;
+        private final long completed;
+        private final long errors;
+        private final long abandoned;
+        private final long durationMillis;
+        private final LatencyMetrics metrics;
+
+        Report(long sent, long measured, long completed, long errors, long abandoned, long durationMillis,
+               LatencyMetrics metrics) {
+            this.sent = sent;
+            this.measured = measured;
+            this.completed = completed;
+            this.errors = errors;
+            this.abandoned = abandoned;
+            this.durationMillis = durationMillis;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return requests sent, including the warmup
+         */
+        public long getSent() {
+            return sent;
+        }
+
+        /**
+         * @return requests scheduled in the measured period
+         */
+        public long getMeasured() {
+            return measured;
+        }
+
+        /**
+         * @return measured requests that completed, successfully or not, before the end of the test
+         */
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return measured requests that failed, including those abandoned
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return measured requests still outstanding when the drain timed out, recorded as result:timeout
+         */
+        public long getAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * @return completed measured requests per second of the measured period
+         */
+        public double getAchievedRate() {
+            return durationMillis <= 0 ? 0 : completed * 1000.0 / durationMillis;
+        }
+
+        /**
+         * @return latencies of the measured requests: {@link #RESPONSE}, {@link #SERVICE}, by cache:on/off and by
+         * result:ok/error/timeout; abandoned requests have no {@link #SERVICE} latency
+         */
+        public LatencyMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * @return the corrected response time histogram
+         */
+        public LatencyHistogram getResponseTimes() {
+            return metrics.histogram(RESPONSE);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format(
+                    "sent=%d measured=%d completed=%d errors=%d abandoned=%d achieved=%.1f req/s%n", sent, measured,
+                    completed, errors, abandoned, getAchievedRate()));
+            for (String dimension : new String[]{RESPONSE, SERVICE, "cache:on", "cache:off"}) {
+                LatencyHistogram histogram = metrics.histogram(dimension);
+                report.append(String.format("%-14s count=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms%n",
+                        dimension, histogram.getCount(), histogram.getValueAtPercentile(50) / 1000.0,
+                        histogram.getValueAtPercentile(90) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                        histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0));
+            }
+            return report.toString();
+        }
+    }
+}
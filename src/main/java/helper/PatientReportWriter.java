@@ -0,0 +1,333 @@
+package helper;
+
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import service.ConfigUtility;
+import service.PatientSummary;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Writes patient rows (id, first name, last name, birth date) as plain text, CSV or NDJSON to a file or stdout.
+ * Rows are formatted into a reusable char buffer, encoded into a reusable byte buffer and handed to the channel in
+ * large writes, so printing costs a few hundred nanoseconds per row instead of a logging call per field.
+ * Output is only guaranteed to be written after {@link #flush()} or {@link #close()}.
+ * <p>
+ * Instances are thread safe; rows from concurrent writers are never interleaved.
+ */
+public class PatientReportWriter implements Closeable {
+
+    static final String NOT_AVAILABLE = "Not available in records";
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * Lazily created writer of the configured report, shared by every helper that does not bring its own, so the
+     * report file is opened (and truncated) once per process rather than once per helper.
+     */
+    private static class SharedHolder {
+        private static final PatientReportWriter SHARED = fromConfig();
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    SHARED.close();
+                } catch (IOException | UncheckedIOException e) {
+                    // Nothing left to report it to at shutdown
+                }
+            }, "report-writer-close"));
+        }
+    }
+
+    /**
+     * Output formats.
+     */
+    public enum Format {
+        /** The labelled lines historically logged for each patient. */
+        PLAIN,
+        /** CSV with a header line, fields quoted when needed. */
+        CSV,
+        /** One JSON object per line. */
+        NDJSON
+    }
+
+    private final WritableByteChannel channel;
+    private final boolean closeChannel;
+    private final Format format;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_BYTES / 4);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final StringBuilder row = new StringBuilder(128);
+    private long rows;
+
+    PatientReportWriter(WritableByteChannel channel, boolean closeChannel, Format format) {
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.format = format;
+        if (format == Format.CSV) {
+            append("id,first_name,last_name,birth_date\n");
+        }
+    }
+
+    /**
+     * Creates a writer that replaces the content of a file.
+     *
+     * @param file   the report file
+     * @param format the output format
+     * @return the writer, to be closed by the caller
+     * @throws IOException if the file cannot be opened
+     */
+    public static PatientReportWriter toFile(Path file, Format format) throws IOException {
+        return new PatientReportWriter(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), true, format);
+    }
+
+    /**
+     * Creates a writer on {@link System#out}, so output redirected with {@link System#setOut} (e.g. by a test runner)
+     * is honoured. Closing the writer flushes it but leaves stdout open.
+     *
+     * @param format the output format
+     * @return the writer
+     */
+    public static PatientReportWriter toStdout(Format format) {
+        return new PatientReportWriter(Channels.newChannel(System.out), false, format);
+    }
+
+    /**
+     * Creates the writer configured by REPORT_FORMAT and REPORT_FILE in application.properties; an empty REPORT_FILE
+     * writes to stdout.
+     *
+     * @return the writer
+     * @throws UncheckedIOException if the report file cannot be opened
+     */
+    public static PatientReportWriter fromConfig() {
+        Format format = Format.valueOf(ConfigUtility.loadConfigValue("REPORT_FORMAT").trim().toUpperCase(Locale.ROOT));
+        String file = ConfigUtility.loadConfigValue("REPORT_FILE").trim();
+        if (file.isEmpty()) {
+            return toStdout(format);
+        }
+        try {
+            return toFile(Paths.get(file), format);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening report file " + file, e);
+        }
+    }
+
+    /**
+     * Returns the writer configured by REPORT_FORMAT and REPORT_FILE, created on first use and shared for the rest of
+     * the process. It is closed at shutdown; callers flush it but must not close it.
+     *
+     * @return the shared writer
+     * @throws UncheckedIOException if the report file cannot be opened
+     */
+    public static PatientReportWriter shared() {
+        return SharedHolder.SHARED;
+    }
+
+    /**
+     * @return the output format
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    /**
+     * Writes a patient using its first name entry with the family name (case insensitive); patients without one are
+     * skipped.
+     *
+     * @param patient    the patient
+     * @param familyName the family name the patient was searched by
+     * @return whether a row was written
+     */
+    public boolean write(Patient patient, String familyName) {
+        for (HumanName name : patient.getName()) {
+            if (familyName.equalsIgnoreCase(name.getFamily())) {
+                String birthDate = patient.hasBirthDateElement() ? patient.getBirthDateElement().getValueAsString() : null;
+                writeRow(patient.getIdElement().getIdPart(), name.hasGiven() ? name.getGiven().get(0).getValue() : null,
+                        name.getFamily(), birthDate);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes a patient summary using its first name entry with the family name (case insensitive); summaries without
+     * one are skipped.
+     *
+     * @param patient    the patient summary
+     * @param familyName the family name the patient was searched by
+     * @return whether a row was written
+     */
+    public boolean write(PatientSummary patient, String familyName) {
+        PatientSummary.Name name = patient.getNameWithFamily(familyName);
+        if (name == null) {
+            return false;
+        }
+        writeRow(patient.getId(), name.getFirstGiven(), name.getFamily(), patient.getBirthDate());
+        return true;
+    }
+
+    /**
+     * Writes one row; null values are written as empty (CSV), null (NDJSON) or "Not available in records" (plain).
+     *
+     * @param id        the patient id, not part of the plain format
+     * @param firstName the first given name
+     * @param lastName  the family name
+     * @param birthDate the birth date as yyyy, yyyy-mm or yyyy-mm-dd
+     * @throws UncheckedIOException if the output cannot be written
+     */
+    public synchronized void writeRow(String id, String firstName, String lastName, String birthDate) {
+        row.setLength(0);
+        switch (format) {
+            case PLAIN:
+                row.append("First Name: ").append(firstName)
+                        .append("\nLast Name: ").append(lastName)
+                        .append("\nBirth Date: ").append(birthDate != null ? birthDate : NOT_AVAILABLE)
+                        .append("\n-------------------------\n");
+                break;
+            case CSV:
+                csv(id).append(',');
+                csv(firstName).append(',');
+                csv(lastName).append(',');
+                csv(birthDate).append('\n');
+                break;
+            case NDJSON:
+                row.append("{\"id\":");
+                json(id).append(",\"firstName\":");
+                json(firstName).append(",\"lastName\":");
+                json(lastName).append(",\"birthDate\":");
+                json(birthDate).append("}\n");
+                break;
+        }
+        append(row);
+        rows++;
+    }
+
+    /**
+     * Writes all buffered rows to the channel.
+     *
+     * @throws UncheckedIOException if the output cannot be written
+     */
+    public synchronized void flush() {
+        encode(true);
+        drain();
+    }
+
+    /**
+     * Flushes the buffered rows and closes the channel, unless it is stdout.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (closeChannel) {
+                channel.close();
+            }
+        }
+    }
+
+    private StringBuilder csv(String value) {
+        if (value == null) {
+            return row;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return row.append(value);
+        }
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') row.append('"');
+            row.append(c);
+        }
+        return row.append('"');
+    }
+
+    private StringBuilder json(String value) {
+        if (value == null) {
+            return row.append("null");
+        }
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                row.append('\\').append(c);
+            } else if (c < 0x20) {
+                row.append(String.format("\\u%04x", (int) c));
+            } else {
+                row.append(c);
+            }
+        }
+        return row.append('"');
+    }
+
+    private void append(CharSequence text) {
+        for (int offset = 0; offset < text.length(); ) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int end = Math.min(text.length(), offset + chars.remaining());
+            chars.append(text, offset, end);
+            offset = end;
+        }
+    }
+
+    private void encode(boolean all) {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, false);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                chars.clear();
+                throw new UncheckedIOException(new IOException("Unencodable report text: " + result));
+            }
+        }
+        // A high surrogate at the end stays buffered until its pair arrives, unless everything is flushed
+        if (all) {
+            chars.position(chars.limit());
+        }
+        chars.compact();
+    }
+
+    private void drain() {
+        bytes.flip();
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing patient report", e);
+        } finally {
+            bytes.clear();
+        }
+    }
+}
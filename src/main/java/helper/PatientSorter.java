@@ -0,0 +1,171 @@
+package helper;
+
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import service.PatientSummary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * Orders patients, or patient summaries, by the first name that belongs to the name entry matching a family name
+ * (case insensitive).
+ * The sort key of each patient is extracted exactly once; comparisons then run on a packed 64-bit prefix of the key
+ * and only fall back to the full string when the first four characters are equal.
+ * A bounded top-K mode returns the first K patients without sorting the whole list.
+ */
+public class PatientSorter {
+
+    private PatientSorter() {
+    }
+
+    /**
+     * Sorts patients in place by first name. The sort is stable, patients with equal keys keep their order.
+     * @param patients The patients to sort
+     * @param familyName The family name the patients were searched by
+     */
+    public static void sortByFirstName(List<Patient> patients, String familyName) {
+        sortByKey(patients, patient -> sortKey(patient, familyName));
+    }
+
+    /**
+     * Sorts patient summaries in place by first name, the same way {@link #sortByFirstName(List, String)} sorts patients.
+     * @param patients The patient summaries to sort
+     * @param familyName The family name the patients were searched by
+     */
+    public static void sortSummariesByFirstName(List<PatientSummary> patients, String familyName) {
+        sortByKey(patients, patient -> sortKey(patient, familyName));
+    }
+
+    /**
+     * Returns the first K patients by first name, in order, using a bounded heap instead of a full sort.
+     * @param patients The patients to choose from, left unchanged
+     * @param familyName The family name the patients were searched by
+     * @param limit The maximum number of patients to return
+     * @return at most limit patients, sorted by first name
+     */
+    public static List<Patient> topByFirstName(List<Patient> patients, String familyName, int limit) {
+        return topByKey(patients, patient -> sortKey(patient, familyName), limit);
+    }
+
+    /**
+     * Returns the first K patient summaries by first name, the same way {@link #topByFirstName(List, String, int)} does.
+     * @param patients The patient summaries to choose from, left unchanged
+     * @param familyName The family name the patients were searched by
+     * @param limit The maximum number of patients to return
+     * @return at most limit patient summaries, sorted by first name
+     */
+    public static List<PatientSummary> topSummariesByFirstName(List<PatientSummary> patients, String familyName, int limit) {
+        return topByKey(patients, patient -> sortKey(patient, familyName), limit);
+    }
+
+    private static <T> void sortByKey(List<T> items, Function<T, String> keyExtractor) {
+        Keyed<T>[] keyed = extractKeys(items, keyExtractor);
+        Arrays.sort(keyed);
+        for (int i = 0; i < keyed.length; i++) {
+            items.set(i, keyed[i].item);
+        }
+    }
+
+    private static <T> List<T> topByKey(List<T> items, Function<T, String> keyExtractor, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        // Max-heap on the key: the root is the largest of the K smallest seen so far
+        PriorityQueue<Keyed<T>> heap = new PriorityQueue<>(Math.min(limit, Math.max(1, items.size())), Collections.reverseOrder());
+        int index = 0;
+        for (T item : items) {
+            Keyed<T> candidate = new Keyed<>(item, keyExtractor.apply(item), index++);
+            if (heap.size() < limit) {
+                heap.add(candidate);
+            } else if (candidate.compareTo(heap.peek()) < 0) {
+                heap.poll();
+                heap.add(candidate);
+            }
+        }
+        List<Keyed<T>> top = new ArrayList<>(heap);
+        Collections.sort(top);
+        List<T> result = new ArrayList<>(top.size());
+        for (Keyed<T> keyed : top) {
+            result.add(keyed.item);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the upper-cased first given name of the name entry matching the family name.
+     * For patients who have multiple names, the first entry with the matching family name is used.
+     * @param patient The entire patient object
+     * @param familyName The family name of the patients to search for
+     * @return the sort key, or an empty string if no name entry matches
+     */
+    static String sortKey(Patient patient, String familyName) {
+        for (HumanName name : patient.getName()) {
+            if (familyName.equalsIgnoreCase(name.getFamily())) {
+                for (StringType given : name.getGiven()) {
+                    return given.getValue() == null ? "" : given.getValue().toUpperCase();
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Returns the upper-cased first given name of the name entry matching the family name.
+     * @param patient The patient summary
+     * @param familyName The family name of the patients to search for
+     * @return the sort key, or an empty string if no name entry matches
+     */
+    static String sortKey(PatientSummary patient, String familyName) {
+        PatientSummary.Name name = patient.getNameWithFamily(familyName);
+        String given = name == null ? null : name.getFirstGiven();
+        return given == null ? "" : given.toUpperCase();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Keyed<T>[] extractKeys(List<T> items, Function<T, String> keyExtractor) {
+        Keyed<T>[] keyed = new Keyed[items.size()];
+        int index = 0;
+        for (T item : items) {
+            keyed[index] = new Keyed<>(item, keyExtractor.apply(item), index);
+            index++;
+        }
+        return keyed;
+    }
+
+    /**
+     * An item with its precomputed sort key. The first four key characters are packed into a long,
+     * so most comparisons are a single unsigned long comparison.
+     */
+    private static final class Keyed<T> implements Comparable<Keyed<T>> {
+        private final T item;
+        private final String key;
+        private final long prefix;
+        private final int position;
+
+        private Keyed(T item, String key, int position) {
+            this.item = item;
+            this.key = key;
+            this.position = position;
+            long packed = 0;
+            for (int i = 0; i < 4; i++) {
+                packed = (packed << 16) | (i < key.length() ? key.charAt(i) : 0);
+            }
+            this.prefix = packed;
+        }
+
+        @Override
+        public int compareTo(Keyed<T> other) {
+            int result = Long.compareUnsigned(prefix, other.prefix);
+            if (result == 0 && (key.length() > 4 || other.key.length() > 4)) {
+                result = key.compareTo(other.key);
+            }
+            return result != 0 ? result : Integer.compare(position, other.position);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package interceptor;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The CacheValidatorInterceptor class captures the ETag and Last-Modified headers of each response, so a cached
+ * search result can later be revalidated with If-None-Match / If-Modified-Since.
+ * The generic client runs the interceptor on the calling thread, so the validators are kept per thread.
+ */
+public class CacheValidatorInterceptor implements IClientInterceptor {
+    private final ThreadLocal<String[]> lastValidators = new ThreadLocal<>();
+
+    /**
+     * This method is called before a request is sent to the server. It clears validators left by an earlier request.
+     *
+     * @param iHttpRequest The HTTP request being intercepted.
+     */
+    @Override
+    public void interceptRequest(IHttpRequest iHttpRequest) {
+        lastValidators.remove();
+    }
+
+    /**
+     * This method is called after a response is received from the server. It records the response validators.
+     *
+     * @param iHttpResponse The HTTP response received from the server.
+     * @throws IOException If an I/O error occurs while processing the response.
+     */
+    @Override
+    public void interceptResponse(IHttpResponse iHttpResponse) throws IOException {
+        lastValidators.set(new String[]{firstHeader(iHttpResponse, "ETag"), firstHeader(iHttpResponse, "Last-Modified")});
+    }
+
+    /**
+     * @return the ETag of the last response received on the calling thread, or null
+     */
+    public String getLastEtag() {
+        String[] validators = lastValidators.get();
+        return validators == null ? null : validators[0];
+    }
+
+    /**
+     * @return the Last-Modified header of the last response received on the calling thread, or null
+     */
+    public String getLastModified() {
+        String[] validators = lastValidators.get();
+        return validators == null ? null : validators[1];
+    }
+
+    private static String firstHeader(IHttpResponse response, String name) {
+        List<String> values = response.getHeaders(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+}
@@ -0,0 +1,96 @@
+package interceptor;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe registry of latency histograms, one per dimension (e.g. "all", "param:family", "status:200",
+ * "cache:no-store"). Latencies are recorded in microseconds and reported as p50/p90/p99/p99.9/max plus throughput,
+ * on demand through {@link #report()} or periodically through {@link #startReporting(long, TimeUnit)}.
+ */
+public class LatencyMetrics {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(LatencyMetrics.class);
+
+    /** Dimension every recorded latency is added to. */
+    public static final String ALL = "all";
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final long startNanos = System.nanoTime();
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Records a latency under the "all" dimension and each of the given dimensions.
+     *
+     * @param latencyMicros the latency in microseconds
+     * @param dimensions    the dimensions the latency belongs to
+     */
+    public void record(long latencyMicros, String... dimensions) {
+        histogram(ALL).record(latencyMicros);
+        for (String dimension : dimensions) {
+            histogram(dimension).record(latencyMicros);
+        }
+    }
+
+    /**
+     * @param dimension the dimension name
+     * @return the histogram of the dimension, created empty if nothing was recorded for it yet
+     */
+    public LatencyHistogram histogram(String dimension) {
+        return histograms.computeIfAbsent(dimension, d -> new LatencyHistogram());
+    }
+
+    /**
+     * @return requests per second recorded under "all" since this registry was created
+     */
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds <= 0 ? 0 : histogram(ALL).getCount() / seconds;
+    }
+
+    /**
+     * @return one line per dimension with count, percentiles and max in milliseconds, followed by the throughput
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        new TreeMap<>(histograms).forEach((dimension, histogram) -> report.append(String.format(
+                "%-20s count=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms%n",
+                dimension, histogram.getCount(),
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0)));
+        report.append(String.format("throughput=%.2f req/s", getThroughput()));
+        return report.toString();
+    }
+
+    /**
+     * Logs the report at a fixed rate on a background daemon thread, until {@link #stopReporting()} is called.
+     *
+     * @param period time between two reports
+     * @param unit   unit of the period
+     */
+    public synchronized void startReporting(long period, TimeUnit unit) {
+        stopReporting();
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "latency-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> log.info("LATENCY METRICS:\n{}", report()), period, period, unit);
+    }
+
+    /**
+     * Stops periodic reporting, if it was started.
+     */
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
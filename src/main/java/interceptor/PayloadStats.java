@@ -0,0 +1,49 @@
+package interceptor;
+
+/**
+ * Transfer and parse figures of a single search response: bytes received on the wire (before decompression),
+ * the content encoding the server chose, time until the body was fully received, and time spent parsing it.
+ */
+public class PayloadStats {
+    private final long wireBytes;
+    private final String contentEncoding;
+    private final long networkMicros;
+    private final long parseMicros;
+
+    /**
+     * Constructs a new PayloadStats.
+     *
+     * @param wireBytes       bytes of the response body as received, compressed if the server compressed it
+     * @param contentEncoding the Content-Encoding of the response, "identity" if uncompressed
+     * @param networkMicros   time from sending the request until the body was fully received
+     * @param parseMicros     time spent parsing the received body into resources
+     */
+    public PayloadStats(long wireBytes, String contentEncoding, long networkMicros, long parseMicros) {
+        this.wireBytes = wireBytes;
+        this.contentEncoding = contentEncoding;
+        this.networkMicros = networkMicros;
+        this.parseMicros = parseMicros;
+    }
+
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public long getNetworkMicros() {
+        return networkMicros;
+    }
+
+    public long getParseMicros() {
+        return parseMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bytes on the wire (%s), network %.1f ms, parse %.1f ms",
+                wireBytes, contentEncoding, networkMicros / 1000.0, parseMicros / 1000.0);
+    }
+}
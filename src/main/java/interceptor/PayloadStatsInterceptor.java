@@ -0,0 +1,144 @@
+package interceptor;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The PayloadStatsInterceptor class measures bytes on the wire and parse time of a search response.
+ * It hooks in at two levels: as an Apache HttpClient response interceptor it counts the body bytes before they are
+ * decompressed, and as a FHIR client interceptor it buffers the body, so the time to receive it and the time to
+ * parse it can be told apart. Only requests between {@link #begin()} and {@link #end()} on the same thread are measured.
+ */
+public class PayloadStatsInterceptor implements IClientInterceptor, HttpResponseInterceptor {
+    private final ThreadLocal<Measurement> current = new ThreadLocal<>();
+
+    /**
+     * Starts measuring the next request sent on the calling thread.
+     */
+    public void begin() {
+        current.set(new Measurement(System.nanoTime()));
+    }
+
+    /**
+     * Stops measuring on the calling thread. Call it right after the search returned, so the time since the body
+     * was received is the parse time.
+     *
+     * @return the figures of the measured request, or null if {@link #begin()} was not called
+     */
+    public PayloadStats end() {
+        Measurement measurement = current.get();
+        current.remove();
+        if (measurement == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        long received = measurement.bodyReceivedNanos == 0 ? now : measurement.bodyReceivedNanos;
+        return new PayloadStats(measurement.wireBytes, measurement.contentEncoding,
+                TimeUnit.NANOSECONDS.toMicros(received - measurement.startNanos),
+                TimeUnit.NANOSECONDS.toMicros(now - received));
+    }
+
+    /**
+     * Apache HttpClient hook, called before the response entity is decompressed.
+     * It wraps the entity so every byte read from the connection is counted.
+     *
+     * @param response the HTTP response
+     * @param context  the HTTP context
+     */
+    @Override
+    public void process(HttpResponse response, HttpContext context) {
+        Measurement measurement = current.get();
+        HttpEntity entity = response.getEntity();
+        if (measurement == null || entity == null) {
+            return;
+        }
+        Header encoding = entity.getContentEncoding();
+        measurement.contentEncoding = encoding == null ? "identity" : encoding.getValue();
+        response.setEntity(new HttpEntityWrapper(entity) {
+            @Override
+            public InputStream getContent() throws IOException {
+                return new CountingInputStream(super.getContent(), measurement);
+            }
+        });
+    }
+
+    /**
+     * This method is called before a request is sent to the server. It does nothing in this implementation.
+     *
+     * @param iHttpRequest The HTTP request being intercepted.
+     */
+    @Override
+    public void interceptRequest(IHttpRequest iHttpRequest) {
+        // This method is intentionally left blank as it is not used in this implementation.
+    }
+
+    /**
+     * This method is called after a response is received from the server. For a measured request it reads the whole
+     * body into memory before the FHIR parser sees it, and records when that finished.
+     *
+     * @param iHttpResponse The HTTP response received from the server.
+     * @throws IOException If an I/O error occurs while processing the response.
+     */
+    @Override
+    public void interceptResponse(IHttpResponse iHttpResponse) throws IOException {
+        Measurement measurement = current.get();
+        if (measurement == null) {
+            return;
+        }
+        iHttpResponse.bufferEntity();
+        measurement.bodyReceivedNanos = System.nanoTime();
+    }
+
+    private static class Measurement {
+        private final long startNanos;
+        private long bodyReceivedNanos;
+        private long wireBytes;
+        private String contentEncoding = "identity";
+
+        private Measurement(long startNanos) {
+            this.startNanos = startNanos;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final Measurement measurement;
+
+        private CountingInputStream(InputStream in, Measurement measurement) {
+            super(in);
+            this.measurement = measurement;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) measurement.wireBytes++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) measurement.wireBytes += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            measurement.wireBytes += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package interceptor;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One request/response pair recorded by the {@link RecordingInterceptor}, as stored in a replay file: one JSON object
+ * per line, holding the method, the path relative to the base URL, the status, the response headers needed to
+ * replay it, the decoded body and how long the server took to send it all.
+ */
+public class RecordedExchange {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private String method;
+    private String path;
+    private int status;
+    private long latencyMicros;
+    private Map<String, String> headers;
+    private String body;
+
+    /**
+     * @param method        HTTP method, e.g. GET
+     * @param path          path and query relative to the base URL, starting with a slash
+     * @param status        HTTP status of the response
+     * @param latencyMicros time from sending the request to having received the whole response
+     * @param headers       response headers, without those describing the transfer (length, encoding)
+     * @param body          response body, decoded, or empty
+     */
+    public RecordedExchange(String method, String path, int status, long latencyMicros, Map<String, String> headers, String body) {
+        this.method = method;
+        this.path = path;
+        this.status = status;
+        this.latencyMicros = latencyMicros;
+        this.headers = new LinkedHashMap<>(headers);
+        this.body = body;
+    }
+
+    /**
+     * Reads all exchanges of a replay file, in the order they were recorded.
+     *
+     * @param file the replay file
+     * @return the exchanges
+     * @throws IOException if the file cannot be read or a line is not a recorded exchange
+     */
+    public static List<RecordedExchange> readAll(Path file) throws IOException {
+        List<RecordedExchange> exchanges = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                RecordedExchange exchange;
+                try {
+                    exchange = GSON.fromJson(line, RecordedExchange.class);
+                } catch (RuntimeException e) {
+                    throw new IOException("Error reading replay file " + file + " line " + number + ":: " + e.getMessage(), e);
+                }
+                if (exchange == null || exchange.method == null || exchange.path == null) {
+                    throw new IOException("Error reading replay file " + file + " line " + number + ":: not a recorded exchange");
+                }
+                exchanges.add(exchange);
+            }
+        }
+        return exchanges;
+    }
+
+    /**
+     * @return the exchange as one line of a replay file, without line break
+     */
+    public String toJson() {
+        return GSON.toJson(this);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers == null ? Collections.emptyMap() : Collections.unmodifiableMap(headers);
+    }
+
+    public String getBody() {
+        return body == null ? "" : body;
+    }
+}
@@ -0,0 +1,173 @@
+package interceptor;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The RecordingInterceptor class appends every request/response pair the FHIR client sees to a replay file, see
+ * {@link RecordedExchange}, so the traffic of a real run can be replayed later without a network, e.g. by
+ * {@code service.ReplayFhirServer}. The body is buffered before it is parsed, so the recorded latency covers
+ * receiving the whole response. It is safe to share between concurrently running searches.
+ */
+public class RecordingInterceptor implements IClientInterceptor, Closeable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(RecordingInterceptor.class);
+
+    /** Headers describing how this particular response was transferred; the replay server sets its own. */
+    private static final Set<String> TRANSFER_HEADERS = new HashSet<>(Arrays.asList(
+            "content-length", "content-encoding", "transfer-encoding", "connection", "keep-alive", "date"));
+
+    private final List<String> baseUrls;
+    private final BufferedWriter writer;
+    private final ThreadLocal<Request> currentRequest = new ThreadLocal<>();
+    private long recorded;
+
+    /**
+     * Opens the replay file for appending, creating it if needed.
+     *
+     * @param file    the replay file
+     * @param baseUrl base URL of the FHIR server, stripped from the recorded paths
+     * @throws IOException if the file cannot be opened
+     */
+    public RecordingInterceptor(Path file, String baseUrl) throws IOException {
+        this(file, Collections.singletonList(baseUrl));
+    }
+
+    /**
+     * Opens the replay file for appending, creating it if needed, for a client spread over several servers holding
+     * the same data; their exchanges are recorded alike.
+     *
+     * @param file     the replay file
+     * @param baseUrls base URLs of the FHIR servers, stripped from the recorded paths
+     * @throws IOException if the file cannot be opened
+     */
+    public RecordingInterceptor(Path file, List<String> baseUrls) throws IOException {
+        this.baseUrls = baseUrls.stream()
+                .map(baseUrl -> baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl)
+                .collect(Collectors.toList());
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * This method is called before a request is sent to the server. It remembers the start time, method and URI.
+     *
+     * @param iHttpRequest The HTTP request being intercepted.
+     */
+    @Override
+    public void interceptRequest(IHttpRequest iHttpRequest) {
+        currentRequest.set(new Request(System.nanoTime(), iHttpRequest.getHttpVerbName(), iHttpRequest.getUri()));
+    }
+
+    /**
+     * This method is called after a response is received from the server. It reads the whole body and appends the
+     * exchange to the replay file.
+     *
+     * @param iHttpResponse The HTTP response received from the server.
+     * @throws IOException If an I/O error occurs while reading the body.
+     */
+    @Override
+    public void interceptResponse(IHttpResponse iHttpResponse) throws IOException {
+        Request request = currentRequest.get();
+        currentRequest.remove();
+        if (request == null) {
+            return;
+        }
+        iHttpResponse.bufferEntity();
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - request.startNanos);
+        String body = "";
+        try (InputStream in = iHttpResponse.readEntity()) {
+            if (in != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    bytes.write(buffer, 0, n);
+                }
+                body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+        record(request.method, request.uri, iHttpResponse.getStatus(), latencyMicros, iHttpResponse.getAllHeaders(), body);
+    }
+
+    /**
+     * Appends an exchange sent outside the HAPI client, e.g. on the JDK HTTP client, to the replay file.
+     *
+     * @param method        HTTP method, e.g. GET
+     * @param uri           full URI of the request
+     * @param status        HTTP status of the response
+     * @param latencyMicros time from sending the request to having received the whole response
+     * @param allHeaders    response headers, by name
+     * @param body          response body, decoded, or empty
+     * @throws IOException if the exchange cannot be written
+     */
+    public void record(String method, String uri, int status, long latencyMicros, Map<String, List<String>> allHeaders,
+                       String body) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> header : allHeaders.entrySet()) {
+            if (!header.getValue().isEmpty() && !TRANSFER_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                headers.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+        String line = new RecordedExchange(method, relativePath(uri), status, latencyMicros, headers, body).toJson();
+        synchronized (this) {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+            recorded++;
+        }
+    }
+
+    /**
+     * @return the number of exchanges recorded so far
+     */
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+        log.info("Recorded {} exchanges", recorded);
+    }
+
+    private String relativePath(String uri) {
+        for (String baseUrl : baseUrls) {
+            if (uri.startsWith(baseUrl)) {
+                return uri.substring(baseUrl.length());
+            }
+        }
+        return uri;
+    }
+
+    private static class Request {
+        private final long startNanos;
+        private final String method;
+        private final String uri;
+
+        private Request(long startNanos, String method, String uri) {
+            this.startNanos = startNanos;
+            this.method = method;
+            this.uri = uri;
+        }
+    }
+}
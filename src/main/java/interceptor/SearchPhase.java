@@ -0,0 +1,36 @@
+package interceptor;
+
+/**
+ * The phases of a patient search, from sending the request to printing the result, in the order they happen.
+ */
+public enum SearchPhase {
+    /** Leasing a pooled connection, including connecting it if it was not open yet. */
+    CONNECTION_ACQUIRE("connection-acquire"),
+    /** Writing the request line and headers to the connection. */
+    REQUEST_WRITE("request-write"),
+    /** Waiting for the status line and headers of the response. */
+    TIME_TO_FIRST_BYTE("time-to-first-byte"),
+    /** Receiving the response body. */
+    BODY_READ("body-read"),
+    /** Parsing the body into a Bundle. */
+    BUNDLE_PARSE("bundle-parse"),
+    /** Mapping the Bundle entries to patients. */
+    PATIENT_MAPPING("patient-mapping"),
+    /** Sorting the patients by first name. */
+    SORT("sort"),
+    /** Writing the patients to the report. */
+    PRINT("print");
+
+    private final String label;
+
+    SearchPhase(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return the name of the phase in JFR events and metric dimensions
+     */
+    public String getLabel() {
+        return label;
+    }
+}
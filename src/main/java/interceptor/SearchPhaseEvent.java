@@ -0,0 +1,34 @@
+package interceptor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event for one phase of a patient search. Its duration is the time spent in the phase.
+ * Enable it in a recording, e.g. {@code -XX:StartFlightRecording} (custom events are on by default), and group the
+ * events by phase in JDK Mission Control to see where the time of a search goes.
+ */
+@Name(SearchPhaseEvent.NAME)
+@Label("Search Phase")
+@Category({"FHIR Client", "Search"})
+@Description("One phase of a patient search, e.g. time to first byte, Bundle parse or sort")
+@StackTrace(false)
+public class SearchPhaseEvent extends Event {
+
+    /** Name of the event type in recordings. */
+    public static final String NAME = "fhir.SearchPhase";
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Search Term")
+    String term;
+
+    @Label("Result Size")
+    @Description("Number of patients in the result, or -1 if the search produced none, e.g. because it failed")
+    int resultSize;
+}
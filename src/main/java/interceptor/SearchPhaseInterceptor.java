@@ -0,0 +1,48 @@
+package interceptor;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+import java.io.IOException;
+
+/**
+ * The SearchPhaseInterceptor class times the phases of a blocking search that the FHIR client sees, for the
+ * {@link SearchTrace} bound to the calling thread: it starts the connection acquire, which the
+ * {@link SearchPhaseRequestExecutor} ends, and buffers the response body so receiving it and parsing it are timed
+ * apart. Without a trace it does nothing, and the body is streamed into the parser as usual.
+ */
+public class SearchPhaseInterceptor implements IClientInterceptor {
+
+    /**
+     * This method is called before a request is sent to the server. It starts the connection acquire phase.
+     *
+     * @param iHttpRequest The HTTP request being intercepted.
+     */
+    @Override
+    public void interceptRequest(IHttpRequest iHttpRequest) {
+        SearchTrace trace = SearchTrace.current();
+        if (trace != null) {
+            trace.start(SearchPhase.CONNECTION_ACQUIRE);
+        }
+    }
+
+    /**
+     * This method is called after the status line and headers were received. It reads the whole body into memory,
+     * timing the body read, and starts the Bundle parse phase, which the caller ends once the search returned.
+     *
+     * @param iHttpResponse The HTTP response received from the server.
+     * @throws IOException If an I/O error occurs while reading the body.
+     */
+    @Override
+    public void interceptResponse(IHttpResponse iHttpResponse) throws IOException {
+        SearchTrace trace = SearchTrace.current();
+        if (trace == null) {
+            return;
+        }
+        trace.start(SearchPhase.BODY_READ);
+        iHttpResponse.bufferEntity();
+        trace.end(SearchPhase.BODY_READ);
+        trace.start(SearchPhase.BUNDLE_PARSE);
+    }
+}
@@ -0,0 +1,54 @@
+package interceptor;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * Apache HttpClient request executor that times the network phases of a blocking search for the
+ * {@link SearchTrace} bound to the calling thread: it ends the connection acquire once a connection has been leased
+ * and connected, and times writing the request and waiting for the response head.
+ */
+public class SearchPhaseRequestExecutor extends HttpRequestExecutor {
+
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        SearchTrace trace = SearchTrace.current();
+        if (trace != null) {
+            trace.end(SearchPhase.CONNECTION_ACQUIRE);
+        }
+        return super.execute(request, conn, context);
+    }
+
+    @Override
+    protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        SearchTrace trace = SearchTrace.current();
+        if (trace == null) {
+            return super.doSendRequest(request, conn, context);
+        }
+        trace.start(SearchPhase.REQUEST_WRITE);
+        HttpResponse response = super.doSendRequest(request, conn, context);
+        trace.end(SearchPhase.REQUEST_WRITE);
+        return response;
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws HttpException, IOException {
+        SearchTrace trace = SearchTrace.current();
+        if (trace == null) {
+            return super.doReceiveResponse(request, conn, context);
+        }
+        trace.start(SearchPhase.TIME_TO_FIRST_BYTE);
+        HttpResponse response = super.doReceiveResponse(request, conn, context);
+        trace.end(SearchPhase.TIME_TO_FIRST_BYTE);
+        return response;
+    }
+}
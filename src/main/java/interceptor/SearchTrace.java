@@ -0,0 +1,253 @@
+package interceptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the phases of one patient search, see {@link SearchPhase}. The layers taking part in a search start and end
+ * the phases they see by name, and {@link #finish(int)} emits one {@link SearchPhaseEvent} per completed phase,
+ * carrying the search term and the result size, and records the phase durations into the process-wide metrics if
+ * they are enabled.
+ * <p>
+ * If neither a flight recording with the event nor the metrics is on, {@link #begin} and {@link #detached} return a
+ * trace that does nothing, so the timing costs next to nothing in normal runs.
+ * <p>
+ * A trace is used by one search at a time; the phases of an asynchronous search may run on different threads, one
+ * after the other.
+ */
+public final class SearchTrace {
+
+    private static final SearchTrace DISABLED = new SearchTrace(null, false);
+    private static final ThreadLocal<SearchTrace> CURRENT = new ThreadLocal<>();
+    private static volatile LatencyMetrics metrics = new LatencyMetrics();
+    private static volatile boolean metricsEnabled;
+
+    private final String term;
+    private final boolean enabled;
+    private final Map<SearchPhase, Span> open = new EnumMap<>(SearchPhase.class);
+    private final List<Span> ended = new ArrayList<>(SearchPhase.values().length);
+
+    private SearchTrace(String term, boolean enabled) {
+        this.term = term;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Starts a trace and binds it to the calling thread, so the interceptors of a blocking search find it through
+     * {@link #current()}.
+     *
+     * @param term the search term
+     * @return the trace; call {@link #finish(int)} on the same thread
+     */
+    public static SearchTrace begin(String term) {
+        SearchTrace trace = detached(term);
+        if (trace.enabled) {
+            CURRENT.set(trace);
+        }
+        return trace;
+    }
+
+    /**
+     * Starts a trace not bound to any thread, for a search that is passed from one thread to the next.
+     *
+     * @param term the search term
+     * @return the trace
+     */
+    public static SearchTrace detached(String term) {
+        return metricsEnabled || new SearchPhaseEvent().isEnabled() ? new SearchTrace(term, true) : DISABLED;
+    }
+
+    /**
+     * @return the trace bound to the calling thread, or null if no search is being traced on it
+     */
+    public static SearchTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return whether phases are timed at all; layers may skip work that only serves the timing if not
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing the phase. Starting a phase that is already running restarts it.
+     *
+     * @param phase the phase
+     */
+    public void start(SearchPhase phase) {
+        if (!enabled) {
+            return;
+        }
+        Span span = new Span(phase);
+        synchronized (this) {
+            open.put(phase, span);
+        }
+    }
+
+    /**
+     * Stops timing the phase, if it was started.
+     *
+     * @param phase the phase
+     */
+    public void end(SearchPhase phase) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            Span span = open.remove(phase);
+            if (span != null) {
+                span.end(now);
+                ended.add(span);
+            }
+        }
+    }
+
+    /**
+     * Emits the completed phases with the result size and unbinds the trace from the calling thread. Phases that
+     * were started but not ended, e.g. because the search failed half-way, are dropped.
+     *
+     * @param resultSize number of patients in the result, or -1 if the search produced none
+     */
+    public void finish(int resultSize) {
+        if (!enabled) {
+            return;
+        }
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+        List<Span> spans;
+        synchronized (this) {
+            spans = new ArrayList<>(ended);
+            ended.clear();
+            open.clear();
+        }
+        LatencyMetrics registry = metricsEnabled ? metrics : null;
+        for (Span span : spans) {
+            if (span.event.shouldCommit()) {
+                span.event.phase = span.phase.getLabel();
+                span.event.term = term;
+                span.event.resultSize = resultSize;
+                span.event.commit();
+            }
+            if (registry != null) {
+                registry.histogram(dimension(span.phase)).record(TimeUnit.NANOSECONDS.toMicros(span.endNanos - span.startNanos));
+            }
+        }
+    }
+
+    /**
+     * Turns the process-wide phase metrics on or off. They are off by default; flight recordings work either way.
+     *
+     * @param enabled whether phase durations are recorded into {@link #snapshot()}
+     */
+    public static void setMetricsEnabled(boolean enabled) {
+        metricsEnabled = enabled;
+    }
+
+    public static boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * @return count, mean and percentiles of every phase recorded since the start or the last {@link #resetMetrics()},
+     * in phase order; phases never recorded are left out
+     */
+    public static Map<SearchPhase, PhaseStats> snapshot() {
+        Map<SearchPhase, PhaseStats> snapshot = new EnumMap<>(SearchPhase.class);
+        LatencyMetrics registry = metrics;
+        for (SearchPhase phase : SearchPhase.values()) {
+            LatencyHistogram histogram = registry.histogram(dimension(phase));
+            if (histogram.getCount() > 0) {
+                snapshot.put(phase, new PhaseStats(histogram));
+            }
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * @return one line per recorded phase with count, mean, p50, p99 and max in milliseconds
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        snapshot().forEach((phase, stats) -> report.append(String.format(
+                "%-20s count=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms%n", phase.getLabel(), stats.getCount(),
+                stats.getMeanMicros() / 1000.0, stats.getP50Micros() / 1000.0, stats.getP99Micros() / 1000.0,
+                stats.getMaxMicros() / 1000.0)));
+        return report.toString();
+    }
+
+    /**
+     * Clears the phase metrics.
+     */
+    public static void resetMetrics() {
+        metrics = new LatencyMetrics();
+    }
+
+    private static String dimension(SearchPhase phase) {
+        return "phase:" + phase.getLabel();
+    }
+
+    /**
+     * Figures of one phase at the time of the snapshot, in microseconds.
+     */
+    public static final class PhaseStats {
+        private final long count;
+        private final double meanMicros;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final long maxMicros;
+
+        private PhaseStats(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.meanMicros = histogram.getMean();
+            this.p50Micros = histogram.getValueAtPercentile(50);
+            this.p99Micros = histogram.getValueAtPercentile(99);
+            this.maxMicros = histogram.getMax();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+    }
+
+    private static final class Span {
+        private final SearchPhase phase;
+        private final SearchPhaseEvent event = new SearchPhaseEvent();
+        private final long startNanos;
+        private long endNanos;
+
+        private Span(SearchPhase phase) {
+            this.phase = phase;
+            event.begin();
+            startNanos = System.nanoTime();
+        }
+
+        private void end(long nanos) {
+            event.end();
+            endNanos = nanos;
+        }
+    }
+}
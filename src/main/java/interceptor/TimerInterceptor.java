@@ -7,14 +7,24 @@ import ca.uhn.fhir.util.StopWatch;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 /**
  * The TimerInterceptor class implements the IClientInterceptor interface to measure response times
- * for FHIR server requests and calculate average response times over multiple requests.
+ * for FHIR server requests. Every latency is recorded into lock-free histograms, broken down by search parameter,
+ * status code and cache state, and the average and tail latency of each set of NAME_COUNT searches is logged.
+ * It is safe to share between concurrently running searches.
  */
 public class TimerInterceptor implements IClientInterceptor {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(TimerInterceptor.class);
-    private long totalResponseTime = 0;
-    private int counter=-1; //starting count from -1 to account for 1st handshake call for the FHIR Rest client
+    private final LatencyMetrics metrics = new LatencyMetrics();
+    private final AtomicLong searchCounter = new AtomicLong();
+    private final AtomicReference<LatencyHistogram> currentSet = new AtomicReference<>(new LatencyHistogram());
+    private final ThreadLocal<RequestInfo> currentRequest = new ThreadLocal<>();
     private int LOOP_COUNT;
     private int NAME_COUNT;
 
@@ -30,36 +40,115 @@ public class TimerInterceptor implements IClientInterceptor {
     }
 
     /**
-     * This method is called before a request is sent to the server. It does nothing in this implementation.
+     * This method is called before a request is sent to the server.
+     * It remembers the start time and the dimensions of the request for the matching response.
      *
      * @param iHttpRequest The HTTP request being intercepted.
      */
     @Override
     public void interceptRequest(IHttpRequest iHttpRequest) {
-        // This method is intentionally left blank as it is not used in this implementation.
+        currentRequest.set(new RequestInfo(System.nanoTime(), iHttpRequest.getUri(), cacheState(iHttpRequest.getAllHeaders())));
     }
 
     /**
      * This method is called after a response is received from the server.
-     * It measures the response time and logs the average time after every NAME_COUNT requests.
+     * It records the response time and logs the average and tail latency after every NAME_COUNT searches.
+     * The conformance handshake (GET [base]/metadata) is recorded under its own dimension and not counted as a search.
      *
      * @param iHttpResponse The HTTP response received from the server.
      * @throws IOException If an I/O error occurs while processing the response.
      */
     @Override
     public void interceptResponse(IHttpResponse iHttpResponse) throws IOException {
+        RequestInfo request = currentRequest.get();
+        currentRequest.remove();
+        long responseTimeMicros;
+        if (request != null) {
+            responseTimeMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - request.startNanos);
+        } else {
+            StopWatch stopWatch = iHttpResponse.getRequestStopWatch();
+            responseTimeMicros = TimeUnit.MILLISECONDS.toMicros(stopWatch.getMillis());
+        }
+        log.info("TIMER INTERCEPTOR:Response time for query : " + responseTimeMicros / 1000 + " ms");
+
+        if (request != null && request.isHandshake()) {
+            metrics.record(responseTimeMicros, "operation:metadata");
+            return;
+        }
+        metrics.record(responseTimeMicros,
+                "param:" + (request == null ? "unknown" : request.searchParameters()),
+                "status:" + iHttpResponse.getStatus(),
+                "cache:" + (request == null ? "unknown" : request.cacheState));
+        currentSet.get().record(responseTimeMicros);
 
-        StopWatch stopWatch=iHttpResponse.getRequestStopWatch();
-        long responseTimeMillis = (stopWatch.getMillis()); // Convert to milliseconds
-        log.info("TIMER INTERCEPTOR:Response time for query : " + responseTimeMillis + " ms");
-        if (counter!=-1)    totalResponseTime += responseTimeMillis;  //this condition is added to ignore the first handshake call of Fhir REST Client
-        counter++;
-        if (counter%NAME_COUNT==0 && counter>0) {
+        long counter = searchCounter.incrementAndGet();
+        if (counter % NAME_COUNT == 0) {
+            LatencyHistogram set = currentSet.getAndSet(new LatencyHistogram());
             log.info("-------------------------");
-            log.info("TIMER INTERCEPTOR: SET "+counter/NAME_COUNT+": average time :"+totalResponseTime + " ms");
+            log.info(String.format("TIMER INTERCEPTOR: SET %d: average time :%.1f ms (p50 %.1f ms, p99 %.1f ms, max %.1f ms)",
+                    counter / NAME_COUNT, set.getMean() / 1000.0, set.getValueAtPercentile(50) / 1000.0,
+                    set.getValueAtPercentile(99) / 1000.0, set.getMax() / 1000.0));
             log.info("-------------------------");
-            totalResponseTime=0;
         }
+    }
+
+    /**
+     * @return the latency histograms recorded so far, for on-demand or scheduled reporting
+     */
+    public LatencyMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static String cacheState(Map<String, List<String>> headers) {
+        if (headers == null) {
+            return "default";
+        }
+        if (headers.containsKey("If-None-Match") || headers.containsKey("If-Modified-Since")) {
+            return "conditional";
+        }
+        List<String> cacheControl = headers.get("Cache-Control");
+        if (cacheControl != null && cacheControl.toString().contains("no-store")) {
+            return "no-store";
+        }
+        if (cacheControl != null && cacheControl.toString().contains("no-cache")) {
+            return "no-cache";
+        }
+        return "default";
+    }
+
+    /**
+     * What is remembered about a request between interceptRequest and interceptResponse on the same thread.
+     */
+    private static class RequestInfo {
+        private final long startNanos;
+        private final String uri;
+        private final String cacheState;
 
+        private RequestInfo(long startNanos, String uri, String cacheState) {
+            this.startNanos = startNanos;
+            this.uri = uri == null ? "" : uri;
+            this.cacheState = cacheState;
+        }
+
+        private boolean isHandshake() {
+            int query = uri.indexOf('?');
+            return (query < 0 ? uri : uri.substring(0, query)).endsWith("/metadata");
+        }
+
+        /**
+         * @return the sorted names of the search parameters in the query string, e.g. "_count,family"
+         */
+        private String searchParameters() {
+            int query = uri.indexOf('?');
+            if (query < 0) {
+                return "none";
+            }
+            TreeSet<String> names = new TreeSet<>();
+            for (String parameter : uri.substring(query + 1).split("&")) {
+                int equals = parameter.indexOf('=');
+                names.add(equals < 0 ? parameter : parameter.substring(0, equals));
+            }
+            return String.join(",", names);
+        }
     }
 }
@@ -0,0 +1,287 @@
+package service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import interceptor.LatencyMetrics;
+import interceptor.RecordingInterceptor;
+import interceptor.SearchPhase;
+import interceptor.SearchTrace;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends patient searches on the JDK's non-blocking HTTP client, so an in-flight search holds no thread.
+ * Responses are parsed on a small pool sized to the number of cores.
+ * <p>
+ * The number of searches in flight is capped by a semaphore: {@link #search} blocks the calling producer until a
+ * permit is free, so producers of search terms slow down to the pace of the server. A permit is only released after
+ * the result has been handed to the stages the caller attached to the returned future, so a slow consumer slows the
+ * producers down as well.
+ * <p>
+ * If a {@link RecordingInterceptor} is given, every exchange is appended to its replay file like those of the
+ * generic client.
+ */
+class AsyncSearchTransport implements AutoCloseable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(AsyncSearchTransport.class);
+
+    /**
+     * One search response: the patients, or the 304 Not Modified answer to a conditional search.
+     */
+    static class Response {
+        private final List<Patient> patients;
+        private final String etag;
+        private final String lastModified;
+
+        private Response(List<Patient> patients, String etag, String lastModified) {
+            this.patients = patients;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the matching patients, or null if the server answered 304 Not Modified
+         */
+        List<Patient> getPatients() {
+            return patients;
+        }
+
+        boolean isNotModified() {
+            return patients == null;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final FhirContext fhirContext;
+    private final String baseUrl;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Duration timeout;
+    private final LatencyMetrics metrics;
+    private final RecordingInterceptor recorder;
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+
+    /**
+     * @param fhirContext   context used to parse the responses
+     * @param baseUrl       base URL of the FHIR server, without trailing slash
+     * @param maxInFlight   maximum number of searches sent and not yet handed to the caller
+     * @param timeoutMillis maximum time a search may take once sent
+     * @param metrics       registry the latency of every search is recorded into
+     */
+    AsyncSearchTransport(FhirContext fhirContext, String baseUrl, int maxInFlight, long timeoutMillis, LatencyMetrics metrics) {
+        this(fhirContext, baseUrl, maxInFlight, timeoutMillis, metrics, null);
+    }
+
+    /**
+     * @param fhirContext   context used to parse the responses
+     * @param baseUrl       base URL of the FHIR server, without trailing slash
+     * @param maxInFlight   maximum number of searches sent and not yet handed to the caller
+     * @param timeoutMillis maximum time a search may take once sent
+     * @param metrics       registry the latency of every search is recorded into
+     * @param recorder      replay file every exchange is appended to, or null
+     */
+    AsyncSearchTransport(FhirContext fhirContext, String baseUrl, int maxInFlight, long timeoutMillis, LatencyMetrics metrics,
+                         RecordingInterceptor recorder) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Maximum in-flight searches must be at least 1, was " + maxInFlight);
+        }
+        this.fhirContext = fhirContext;
+        this.baseUrl = baseUrl;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timeout = Duration.ofMillis(timeoutMillis);
+        this.metrics = metrics;
+        this.recorder = recorder;
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("async-search"));
+        this.httpClient = HttpClient.newBuilder()
+                .executor(executor)
+                .connectTimeout(Duration.ofMillis(fhirContext.getRestfulClientFactory().getConnectTimeout()))
+                .build();
+    }
+
+    /**
+     * Sends a search for the last name, waiting for a free in-flight permit first.
+     *
+     * @param lastName     the last name of the patients to search for
+     * @param disableCache adds a no-store cache directive to the request
+     * @param validators   cached entry whose ETag / Last-Modified make the search conditional, or null
+     * @param onResponse   maps the response to the result, e.g. updating a cache; runs on a transport thread
+     * @return completes with the mapped response; fails with a BaseServerResponseException for an error status or a
+     * FhirClientConnectionException if the server could not be reached or did not answer in time
+     */
+    <T> CompletableFuture<T> search(String lastName, boolean disableCache, SearchResultCache.Entry validators,
+                                    Function<Response, T> onResponse) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<T> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+        return send(lastName, disableCache, validators, onResponse);
+    }
+
+    /**
+     * Like {@link #search}, but never waits: if the in-flight cap is reached, nothing is sent.
+     *
+     * @return the result as for {@link #search}, or null if no permit was free
+     */
+    <T> CompletableFuture<T> trySearch(String lastName, boolean disableCache, SearchResultCache.Entry validators,
+                                       Function<Response, T> onResponse) {
+        return inFlight.tryAcquire() ? send(lastName, disableCache, validators, onResponse) : null;
+    }
+
+    /**
+     * @return the base URL searches are sent to
+     */
+    String getBaseUrl() {
+        return baseUrl;
+    }
+
+    private <T> CompletableFuture<T> send(String lastName, boolean disableCache, SearchResultCache.Entry validators,
+                                          Function<Response, T> onResponse) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + "/Patient?family=" + BatchBundles.encode(lastName)))
+                .timeout(timeout)
+                .header("Accept", "application/fhir+json")
+                .header("Accept-Encoding", "gzip");
+        String cacheState = "default";
+        if (disableCache) {
+            request.header("Cache-Control", "no-store");
+            cacheState = "no-store";
+        } else if (validators != null && validators.hasValidators()) {
+            if (validators.getEtag() != null) request.header("If-None-Match", validators.getEtag());
+            if (validators.getLastModified() != null) request.header("If-Modified-Since", validators.getLastModified());
+            cacheState = "conditional";
+        }
+
+        String cacheDimension = "cache:" + cacheState;
+        // The JDK client does not expose connecting and writing: time to first byte includes them
+        SearchTrace trace = SearchTrace.detached(lastName);
+        trace.start(SearchPhase.TIME_TO_FIRST_BYTE);
+        long start = System.nanoTime();
+        httpClient.sendAsync(request.GET().build(), responseInfo -> {
+                    trace.end(SearchPhase.TIME_TO_FIRST_BYTE);
+                    trace.start(SearchPhase.BODY_READ);
+                    return HttpResponse.BodyHandlers.ofByteArray().apply(responseInfo);
+                })
+                .whenComplete((response, error) -> {
+                    int resultSize = -1;
+                    try {
+                        if (error != null) {
+                            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                            result.completeExceptionally(new FhirClientConnectionException(cause));
+                            return;
+                        }
+                        trace.end(SearchPhase.BODY_READ);
+                        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                        metrics.record(latencyMicros, "transport:async", "status:" + response.statusCode(), cacheDimension);
+                        byte[] body = decode(response);
+                        if (recorder != null) {
+                            record(response, latencyMicros, body);
+                        }
+                        Response mapped = toResponse(response, body, trace);
+                        resultSize = mapped.isNotModified() ? -1 : mapped.getPatients().size();
+                        trace.finish(resultSize);
+                        result.complete(onResponse.apply(mapped));
+                    } catch (Exception e) {
+                        trace.finish(resultSize);
+                        result.completeExceptionally(e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * @return the number of searches sent and not yet handed to the caller
+     */
+    int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Stops the pool the HTTP client and the response parsing run on. Searches still in flight are interrupted.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the response body, gunzipped if the server compressed it
+     */
+    private static byte[] decode(HttpResponse<byte[]> response) throws IOException {
+        if (!response.headers().firstValue("Content-Encoding").filter("gzip"::equalsIgnoreCase).isPresent()) {
+            return response.body();
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.body()))) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private void record(HttpResponse<byte[]> response, long latencyMicros, byte[] body) {
+        try {
+            recorder.record("GET", response.uri().toString(), response.statusCode(), latencyMicros,
+                    response.headers().map(), new String(body, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.warn("Error recording the search {}:: {}", response.uri(), e.getMessage());
+        }
+    }
+
+    private Response toResponse(HttpResponse<byte[]> response, byte[] body, SearchTrace trace) throws IOException {
+        int status = response.statusCode();
+        String etag = response.headers().firstValue("ETag").orElse(null);
+        String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+        if (status == 304) {
+            return new Response(null, etag, lastModified);
+        }
+        if (status < 200 || status > 299) {
+            throw BaseServerResponseException.newInstance(status, "HTTP " + status + " searching " + response.uri());
+        }
+        // Parsers are not thread-safe, but cheap to create from the shared context
+        trace.start(SearchPhase.BUNDLE_PARSE);
+        Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, new ByteArrayInputStream(body));
+        trace.end(SearchPhase.BUNDLE_PARSE);
+        trace.start(SearchPhase.PATIENT_MAPPING);
+        List<Patient> patients = FhirClient.toPatients(bundle);
+        trace.end(SearchPhase.PATIENT_MAPPING);
+        return new Response(patients, etag, lastModified);
+    }
+}
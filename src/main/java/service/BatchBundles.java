@@ -0,0 +1,70 @@
+package service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds FHIR batch Bundles that pack several family-name searches into one POST, and splits the batch-response
+ * back into per-name results.
+ */
+class BatchBundles {
+
+    private BatchBundles() {
+    }
+
+    /**
+     * Builds a batch Bundle with one GET Patient?family=... entry per name, in the order given. The entries carry no
+     * _count, like the individual searches whose cached results they share, so the server's page size applies.
+     *
+     * @param lastNames the family names to search for
+     * @return the batch Bundle
+     */
+    static Bundle searchBatch(List<String> lastNames) {
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+        for (String lastName : lastNames) {
+            String url = "Patient?family=" + encode(lastName);
+            batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl(url);
+        }
+        return batch;
+    }
+
+    /**
+     * Splits a batch-response into the patients found for each name. Response entries are matched to the requested
+     * names by position, as the FHIR specification requires. Names whose entry is missing, failed, or does not
+     * carry a searchset Bundle are left out, so the caller can retry them individually.
+     *
+     * @param lastNames the family names in the order they were put into the batch
+     * @param response  the batch-response Bundle returned by the server
+     * @return patients keyed by family name, for every entry that succeeded
+     */
+    static Map<String, List<Patient>> splitResponse(List<String> lastNames, Bundle response) {
+        Map<String, List<Patient>> results = new LinkedHashMap<>();
+        List<Bundle.BundleEntryComponent> entries = response.getEntry();
+        for (int i = 0; i < lastNames.size() && i < entries.size(); i++) {
+            Bundle.BundleEntryComponent entry = entries.get(i);
+            String status = entry.hasResponse() ? entry.getResponse().getStatus() : null;
+            if (status != null && !status.startsWith("2")) {
+                continue;
+            }
+            if (entry.getResource() instanceof Bundle) {
+                results.put(lastNames.get(i), FhirClient.toPatients((Bundle) entry.getResource()));
+            }
+        }
+        return results;
+    }
+
+    static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package service;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import interceptor.LatencyMetrics;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Pulls all patients through the FHIR Bulk Data Access flow, for population-sized loads where paging through search
+ * results would take thousands of round trips: kick off {@code Patient/$export}, poll the status URL until the
+ * manifest is ready, then stream each NDJSON output file.
+ * <p>
+ * The download thread only splits the response into lines; the lines are handed in batches to parser threads through
+ * a bounded queue, so memory stays at a fixed number of batches whatever the file size, and a slow consumer slows the
+ * download down instead of buffering it. Progress can be read from {@link #getProgress()} while the export runs.
+ */
+public class BulkExportClient {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(BulkExportClient.class);
+
+    private static final String BULK_EXPORT_POLL_MS = "BULK_EXPORT_POLL_MS";
+    private static final String BULK_EXPORT_TIMEOUT_MS = "BULK_EXPORT_TIMEOUT_MS";
+    private static final String BULK_EXPORT_PARSE_THREADS = "BULK_EXPORT_PARSE_THREADS";
+    private static final String BULK_EXPORT_QUEUE_BATCHES = "BULK_EXPORT_QUEUE_BATCHES";
+    private static final int LINES_PER_BATCH = 500;
+    private static final List<String> END = Collections.emptyList();
+
+    private final String baseUrl;
+    private final CloseableHttpClient httpClient;
+    private final int parseThreads;
+    private final int queueBatches;
+    private final long pollMillis;
+    private final long timeoutMillis;
+    private final PatientSummaryParser parser = new PatientSummaryParser();
+    private final LatencyMetrics metrics = new LatencyMetrics();
+    private volatile Progress progress = new Progress();
+
+    /**
+     * Constructs a new BulkExportClient on the shared connection pool, with polling and parsing settings read from
+     * application.properties. A BULK_EXPORT_PARSE_THREADS of 0 uses one parser thread per core.
+     *
+     * @param baseUrl base URL of the FHIR server
+     */
+    public BulkExportClient(String baseUrl) {
+        this(baseUrl, FhirClientFactory.sharedHttpClient(),
+                Integer.parseInt(ConfigUtility.loadConfigValue(BULK_EXPORT_PARSE_THREADS).trim()),
+                Integer.parseInt(ConfigUtility.loadConfigValue(BULK_EXPORT_QUEUE_BATCHES).trim()),
+                Long.parseLong(ConfigUtility.loadConfigValue(BULK_EXPORT_POLL_MS).trim()),
+                Long.parseLong(ConfigUtility.loadConfigValue(BULK_EXPORT_TIMEOUT_MS).trim()));
+    }
+
+    BulkExportClient(String baseUrl, CloseableHttpClient httpClient, int parseThreads, int queueBatches,
+                     long pollMillis, long timeoutMillis) {
+        this.baseUrl = baseUrl;
+        this.httpClient = httpClient;
+        this.parseThreads = parseThreads > 0 ? parseThreads : Runtime.getRuntime().availableProcessors();
+        this.queueBatches = Math.max(1, queueBatches);
+        this.pollMillis = pollMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the progress of the running export, or of the last one
+     */
+    public Progress getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return latencies of the export phases: "bulk:kickoff", "bulk:poll", "bulk:download" (per file)
+     */
+    public LatencyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Exports all patients and hands each one to the consumer. The consumer is called from several parser threads
+     * at once and must be thread safe.
+     *
+     * @param consumer receives the summary of each exported patient
+     * @return the number of patients passed to the consumer
+     * @throws BaseServerResponseException   if the server rejects the export or reports it failed
+     * @throws FhirClientConnectionException if the server cannot be reached or the export does not complete in time
+     */
+    public long exportPatients(Consumer<PatientSummary> consumer) {
+        progress = new Progress();
+        String statusUrl = kickOff();
+        progress.statusUrl = statusUrl;
+        JsonObject manifest = awaitManifest(statusUrl);
+
+        List<String> files = new ArrayList<>();
+        for (JsonElement output : manifest.getAsJsonArray("output")) {
+            JsonObject file = output.getAsJsonObject();
+            if ("Patient".equals(file.get("type").getAsString())) {
+                files.add(file.get("url").getAsString());
+            }
+        }
+        if (manifest.has("error") && manifest.getAsJsonArray("error").size() > 0) {
+            log.warn("Bulk export reported {} error file(s), see {}", manifest.getAsJsonArray("error").size(), statusUrl);
+        }
+        progress.files.set(files.size());
+
+        ExecutorService parsers = Executors.newFixedThreadPool(parseThreads, new DaemonThreadFactory("bulk-parse"));
+        try {
+            for (String file : files) {
+                download(file, consumer, parsers);
+                progress.filesDone.incrementAndGet();
+            }
+        } finally {
+            parsers.shutdownNow();
+        }
+        delete(statusUrl);
+        log.info("Bulk export complete: {}", progress);
+        return progress.getPatients();
+    }
+
+    private String kickOff() {
+        long start = System.nanoTime();
+        HttpGet get = new HttpGet(baseUrl + "/Patient/$export?_type=Patient");
+        get.addHeader("Accept", "application/fhir+json");
+        get.addHeader("Prefer", "respond-async");
+        try (CloseableHttpResponse response = httpClient.execute(get)) {
+            int status = response.getStatusLine().getStatusCode();
+            EntityUtils.consumeQuietly(response.getEntity());
+            Header location = response.getFirstHeader("Content-Location");
+            if (status != 202 || location == null) {
+                throw BaseServerResponseException.newInstance(status, "Bulk export kick-off failed: " + response.getStatusLine().getReasonPhrase());
+            }
+            return location.getValue();
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        } finally {
+            metrics.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), "bulk:kickoff");
+        }
+    }
+
+    private JsonObject awaitManifest(String statusUrl) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            long start = System.nanoTime();
+            long waitMillis;
+            HttpGet get = new HttpGet(statusUrl);
+            get.addHeader("Accept", "application/json");
+            try (CloseableHttpResponse response = httpClient.execute(get)) {
+                int status = response.getStatusLine().getStatusCode();
+                if (status == 200) {
+                    Reader body = new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8);
+                    return new JsonParser().parse(body).getAsJsonObject();
+                }
+                EntityUtils.consumeQuietly(response.getEntity());
+                if (status != 202) {
+                    throw BaseServerResponseException.newInstance(status, "Bulk export failed: " + response.getStatusLine().getReasonPhrase());
+                }
+                Header xProgress = response.getFirstHeader("X-Progress");
+                if (xProgress != null) {
+                    log.info("Bulk export in progress: {}", xProgress.getValue());
+                }
+                waitMillis = retryAfterMillis(response.getFirstHeader("Retry-After"));
+            } catch (IOException e) {
+                throw new FhirClientConnectionException(e);
+            } finally {
+                metrics.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), "bulk:poll");
+            }
+            progress.polls.incrementAndGet();
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis) - deadline > 0) {
+                throw new FhirClientConnectionException("Bulk export did not complete within " + timeoutMillis + " ms: " + statusUrl);
+            }
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FhirClientConnectionException(e);
+            }
+        }
+    }
+
+    /**
+     * Retry-After in delta-seconds; the HTTP-date form and a missing header fall back to the configured interval.
+     */
+    private long retryAfterMillis(Header retryAfter) {
+        if (retryAfter != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.getValue().trim()));
+            } catch (NumberFormatException e) {
+                // HTTP-date
+            }
+        }
+        return pollMillis;
+    }
+
+    private void download(String url, Consumer<PatientSummary> consumer, ExecutorService parsers) {
+        long start = System.nanoTime();
+        BlockingQueue<List<String>> batches = new ArrayBlockingQueue<>(queueBatches);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Future<?>> workers = new ArrayList<>(parseThreads);
+        for (int i = 0; i < parseThreads; i++) {
+            workers.add(parsers.submit(() -> parseBatches(batches, consumer, failure)));
+        }
+
+        HttpGet get = new HttpGet(url);
+        get.addHeader("Accept", "application/fhir+ndjson");
+        try (CloseableHttpResponse response = httpClient.execute(get)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status > 299) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                throw BaseServerResponseException.newInstance(status, "Bulk export download failed: " + url);
+            }
+            BufferedReader lines = new BufferedReader(new InputStreamReader(
+                    new CountingInputStream(response.getEntity().getContent(), progress.bytes), StandardCharsets.UTF_8));
+            List<String> batch = new ArrayList<>(LINES_PER_BATCH);
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                batch.add(line);
+                progress.lines.incrementAndGet();
+                if (batch.size() == LINES_PER_BATCH) {
+                    enqueue(batches, batch, failure);
+                    batch = new ArrayList<>(LINES_PER_BATCH);
+                }
+            }
+            enqueue(batches, batch, failure);
+            for (int i = 0; i < parseThreads; i++) {
+                enqueue(batches, END, failure);
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FhirClientConnectionException(e);
+        } catch (ExecutionException e) {
+            failure.compareAndSet(null, e.getCause());
+        } finally {
+            workers.forEach(worker -> worker.cancel(true));
+            metrics.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), "bulk:download");
+        }
+        rethrow(failure.get());
+    }
+
+    /**
+     * Waits for room in the queue, giving up as soon as a parser thread has failed, so the download never blocks on
+     * a queue nobody takes from anymore.
+     */
+    private static void enqueue(BlockingQueue<List<String>> batches, List<String> batch, AtomicReference<Throwable> failure)
+            throws InterruptedException {
+        while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            rethrow(failure.get());
+        }
+        rethrow(failure.get());
+    }
+
+    private void parseBatches(BlockingQueue<List<String>> batches, Consumer<PatientSummary> consumer,
+                              AtomicReference<Throwable> failure) {
+        try {
+            List<String> batch;
+            while ((batch = batches.take()) != END) {
+                for (String line : batch) {
+                    PatientSummary patient;
+                    try {
+                        patient = parser.parseResource(new StringReader(line));
+                    } catch (IOException | IllegalStateException e) {
+                        progress.parseErrors.incrementAndGet();
+                        log.warn("Skipping unreadable bulk export line::{}", e.getMessage());
+                        continue;
+                    }
+                    if (patient != null) {
+                        consumer.accept(patient);
+                        progress.patients.incrementAndGet();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private static void rethrow(Throwable failure) {
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    /**
+     * Tells the server the files are no longer needed; failures are only logged.
+     */
+    private void delete(String statusUrl) {
+        try (CloseableHttpResponse response = httpClient.execute(new HttpDelete(statusUrl))) {
+            EntityUtils.consumeQuietly(response.getEntity());
+        } catch (IOException e) {
+            log.warn("Error deleting bulk export::{}", e.getMessage());
+        }
+    }
+
+    /**
+     * Counters of one export, updated while it runs.
+     */
+    public static final class Progress {
+        private volatile String statusUrl;
+        private final AtomicLong polls = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong filesDone = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong lines = new AtomicLong();
+        private final AtomicLong patients = new AtomicLong();
+        private final AtomicLong parseErrors = new AtomicLong();
+
+        public String getStatusUrl() {
+            return statusUrl;
+        }
+
+        public long getPolls() {
+            return polls.get();
+        }
+
+        public long getFiles() {
+            return files.get();
+        }
+
+        public long getFilesDone() {
+            return filesDone.get();
+        }
+
+        /**
+         * @return bytes read from the output files, after decompression
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getLines() {
+            return lines.get();
+        }
+
+        public long getPatients() {
+            return patients.get();
+        }
+
+        public long getParseErrors() {
+            return parseErrors.get();
+        }
+
+        @Override
+        public String toString() {
+            return "files=" + getFilesDone() + "/" + getFiles() + ", bytes=" + getBytes() + ", lines=" + getLines()
+                    + ", patients=" + getPatients() + ", parseErrors=" + getParseErrors() + ", polls=" + getPolls();
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) count.addAndGet(read);
+            return read;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -16,9 +17,12 @@ import java.util.Properties;
  */
 public class ConfigUtility {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConfigUtility.class);
+    private static final String CONFIG_FILE = "application.properties";
+    private static volatile Properties config;
 
     /**
      * Returns the value for the specified key from the property file available on the classpath.
+     * The file is read once, on the first call, and served from that snapshot afterwards.
      *
      * @param key key whose value is needed
      * @return the corresponding value
@@ -27,7 +31,15 @@ public class ConfigUtility {
     public static String loadConfigValue(String key) {
         try {
 
-            Properties properties = loadConfig("application.properties");
+            Properties properties = config;
+            if (properties == null) {
+                synchronized (ConfigUtility.class) {
+                    if (config == null) {
+                        config = loadConfig(CONFIG_FILE);
+                    }
+                    properties = config;
+                }
+            }
             String value = properties.getProperty(key);
             if (value == null) {
                 throw new IOException("Configuration key '" + key + "' not found in application.properties");
@@ -48,16 +60,18 @@ public class ConfigUtility {
      */
     private static Properties loadConfig(String fileName) throws IOException {
         Properties properties = new Properties();
-        InputStream stream = ConfigUtility.class.getClassLoader().getResourceAsStream(fileName);
-        if (stream == null) {
-            throw new IOException("Configuration file '" + fileName + "' not found");
+        try (InputStream stream = ConfigUtility.class.getClassLoader().getResourceAsStream(fileName)) {
+            if (stream == null) {
+                throw new IOException("Configuration file '" + fileName + "' not found");
+            }
+            properties.load(stream);
         }
-        properties.load(stream);
         return properties;
     }
 
     /**
      * Reads last names from a file and returns a list of them.
+     * Large files should be read through {@link SearchTermSource} instead, which does not hold them in memory.
      *
      * @param fileName filename of the last names file
      * @return List of last names
@@ -66,10 +80,11 @@ public class ConfigUtility {
     public static List<String> readLastNamesFromFile(String fileName) throws IOException {
         List<String> lastNames = new ArrayList<>();
         InputStream inputStream = ConfigUtility.class.getClassLoader().getResourceAsStream(fileName);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            lastNames.add(line.trim());
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lastNames.add(line.trim());
+            }
         }
         return lastNames;
     }
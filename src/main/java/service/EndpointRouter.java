@@ -0,0 +1,440 @@
+package service;
+
+import interceptor.LatencyMetrics;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Spreads patient searches across several FHIR endpoints serving the same data, using the latency and error rate
+ * measured on live traffic.
+ * <p>
+ * Each search goes to an endpoint drawn at random with a weight inversely proportional to its score, a moving
+ * average of its latency divided by the square of its recent success rate. Slow or failing endpoints get less traffic but never
+ * none, so they are noticed when they recover.
+ * <p>
+ * If the first endpoint has not answered by the configured percentile of its recent latencies, the same search is
+ * hedged to another endpoint and whichever succeeds first wins; a search that fails outright is retried on another
+ * endpoint at once. Hedges are limited to a share of the searches by a token budget, so a general slowdown does not
+ * double the load on every endpoint. Both responses are measured, but only the winner is handed to the caller.
+ */
+public class EndpointRouter implements AutoCloseable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(EndpointRouter.class);
+
+    /** Weight of a new sample in the moving averages. */
+    private static final double ALPHA = 0.2;
+    /** Floor of the success rate used for scoring, so a failing endpoint still gets the odd probe. */
+    private static final double MIN_SUCCESS_RATE = 0.01;
+    /** Floor of the latency used for scoring, so endpoints without samples are tried. */
+    private static final long MIN_SCORE_MICROS = 1000;
+    /** Number of recent latencies the hedge deadline is computed from. */
+    private static final int WINDOW = 256;
+    /** Minimum number of samples before the percentile is trusted over the moving average. */
+    private static final int MIN_SAMPLES = 20;
+    /** The hedge deadline is recomputed after this many samples. */
+    private static final int RECOMPUTE_EVERY = 16;
+    /** Maximum number of hedges that can be saved up, in tokens. */
+    private static final long MAX_BUDGET_TOKENS = 10;
+
+    /**
+     * Live measurements of one endpoint.
+     */
+    public static final class Endpoint {
+        private final AsyncSearchTransport transport;
+        private final long[] window = new long[WINDOW];
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private long samples;
+        private volatile double latencyMicros;
+        private volatile double errorRate;
+        private volatile long hedgeDelayMicros;
+
+        private Endpoint(AsyncSearchTransport transport) {
+            this.transport = transport;
+        }
+
+        public String getBaseUrl() {
+            return transport.getBaseUrl();
+        }
+
+        /**
+         * @return searches sent to the endpoint, including hedges
+         */
+        public long getRequests() {
+            return requests.get();
+        }
+
+        /**
+         * @return searches that failed on the endpoint
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return moving average of the latency, in milliseconds
+         */
+        public double getLatencyMillis() {
+            return latencyMicros / 1000.0;
+        }
+
+        /**
+         * @return moving average of the share of failed searches, between 0 and 1
+         */
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        /**
+         * @return the latency divided by the square of the success rate: a fast failure must not look attractive
+         */
+        double score() {
+            double successRate = Math.max(MIN_SUCCESS_RATE, 1 - errorRate);
+            return Math.max(latencyMicros, MIN_SCORE_MICROS) / (successRate * successRate);
+        }
+
+        synchronized void record(long micros, boolean failed, double percentile) {
+            if (failed) {
+                errors.incrementAndGet();
+            }
+            errorRate += ALPHA * ((failed ? 1 : 0) - errorRate);
+            // A failure often comes back fast; only successful latencies say how fast the endpoint answers
+            if (failed) {
+                return;
+            }
+            latencyMicros = samples == 0 ? micros : latencyMicros + ALPHA * (micros - latencyMicros);
+            window[(int) (samples++ % WINDOW)] = micros;
+            if (samples >= MIN_SAMPLES && samples % RECOMPUTE_EVERY == 0) {
+                long[] sorted = Arrays.copyOf(window, (int) Math.min(samples, WINDOW));
+                Arrays.sort(sorted);
+                hedgeDelayMicros = sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1)];
+            }
+        }
+
+        /**
+         * @return how long to wait for the endpoint before hedging: the percentile of its recent latencies, or twice
+         * its average latency until enough samples have been seen
+         */
+        long hedgeDelayMicros(long minMicros) {
+            long delay = hedgeDelayMicros > 0 ? hedgeDelayMicros : (long) (2 * latencyMicros);
+            return Math.max(minMicros, delay);
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final double hedgePercentile;
+    private final long hedgeMinDelayMicros;
+    private final long budgetMilliTokensPerSearch;
+    private final LatencyMetrics metrics;
+    private final AtomicLong budgetMilliTokens = new AtomicLong(1000);
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("search-hedge"));
+
+    /**
+     * @param transports          one transport per endpoint
+     * @param hedgePercentile     percentile of an endpoint's recent latencies after which a search is hedged
+     * @param hedgeMinDelayMillis minimum time to wait before hedging
+     * @param hedgeBudget         maximum share of searches that may be hedged, e.g. 0.1
+     * @param metrics             registry the routed latencies are recorded into, by endpoint and primary/hedge only
+     */
+    EndpointRouter(List<AsyncSearchTransport> transports, double hedgePercentile, long hedgeMinDelayMillis,
+                   double hedgeBudget, LatencyMetrics metrics) {
+        if (transports.isEmpty()) {
+            throw new IllegalArgumentException("No FHIR endpoints to route searches to");
+        }
+        if (hedgePercentile <= 0 || hedgePercentile > 100) {
+            throw new IllegalArgumentException("Hedge percentile must be in (0, 100], was " + hedgePercentile);
+        }
+        List<Endpoint> list = new ArrayList<>();
+        for (AsyncSearchTransport transport : transports) {
+            list.add(new Endpoint(transport));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeMinDelayMicros = TimeUnit.MILLISECONDS.toMicros(hedgeMinDelayMillis);
+        this.budgetMilliTokensPerSearch = Math.round(hedgeBudget * 1000);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sends a search to the best endpoint, hedging it to another one if it is slow or fails. With a single endpoint
+     * the search is passed straight to its transport.
+     *
+     * @param lastName     the last name of the patients to search for
+     * @param disableCache adds a no-store cache directive to the requests
+     * @param validators   cached entry whose ETag / Last-Modified make the search conditional, or null
+     * @param onResponse   maps the winning response to the result; runs once, on a transport thread
+     * @return completes with the mapped response of the first endpoint that answered successfully; fails with the
+     * error of the first endpoint if every endpoint tried failed
+     * @see AsyncSearchTransport#search
+     */
+    <T> CompletableFuture<T> search(String lastName, boolean disableCache, SearchResultCache.Entry validators,
+                                    Function<AsyncSearchTransport.Response, T> onResponse) {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0).transport.search(lastName, disableCache, validators, onResponse);
+        }
+        addBudget(budgetMilliTokensPerSearch);
+        Attempt<T> attempt = new Attempt<>(pick(null), lastName, disableCache, validators, onResponse);
+        attempt.start();
+        if (!attempt.result.isDone()) {
+            ScheduledFuture<?> deadline = timer.schedule(() -> {
+                if (!attempt.result.isDone() && takeBudget() && !attempt.hedge()) {
+                    addBudget(1000);
+                }
+            }, attempt.primary.hedgeDelayMicros(hedgeMinDelayMicros), TimeUnit.MICROSECONDS);
+            attempt.result.whenComplete((value, error) -> deadline.cancel(false));
+        }
+        return attempt.result;
+    }
+
+    /**
+     * Blocking counterpart of {@link #search}, for searches run on a per-endpoint HAPI client so its interceptors see
+     * them: sends the search to the best endpoint and, if it fails, once more to another endpoint. Blocking searches
+     * are not hedged, which would take a second thread per search. With a single endpoint the search is run directly.
+     *
+     * @param search runs the search on the endpoint with the given index, in configuration order
+     * @return the result of the first endpoint that answered successfully
+     * @throws RuntimeException the error of the first endpoint if every endpoint tried failed
+     */
+    <T> T searchBlocking(IntFunction<T> search) {
+        if (endpoints.size() == 1) {
+            return search.apply(0);
+        }
+        Endpoint primary = pick(null);
+        try {
+            return measure(primary, false, search);
+        } catch (RuntimeException e) {
+            Endpoint other = pick(primary);
+            if (other == null) {
+                throw e;
+            }
+            hedgesSent.incrementAndGet();
+            log.debug("Retrying search failed on {} on {}", primary.getBaseUrl(), other.getBaseUrl());
+            try {
+                T result = measure(other, true, search);
+                hedgesWon.incrementAndGet();
+                return result;
+            } catch (RuntimeException retryError) {
+                e.addSuppressed(retryError);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the endpoints with their live measurements, in configuration order
+     */
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return hedged and failed-over searches sent to a second endpoint
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * @return searches answered first by the second endpoint
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * @return one line per endpoint with its traffic, latency and error rate
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Endpoint endpoint : endpoints) {
+            report.append(String.format("%s requests=%d errors=%d latency=%.1fms errorRate=%.2f%n", endpoint.getBaseUrl(),
+                    endpoint.getRequests(), endpoint.getErrors(), endpoint.getLatencyMillis(), endpoint.getErrorRate()));
+        }
+        return report.append(String.format("hedges sent=%d won=%d%n", getHedgesSent(), getHedgesWon())).toString();
+    }
+
+    /**
+     * Stops the timer that sends the hedges. The transports belong to the caller and stay open.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Draws an endpoint other than {@code exclude}, with a probability inversely proportional to its score.
+     */
+    private Endpoint pick(Endpoint exclude) {
+        double total = 0;
+        double[] weights = new double[endpoints.size()];
+        for (int i = 0; i < weights.length; i++) {
+            Endpoint endpoint = endpoints.get(i);
+            weights[i] = endpoint == exclude ? 0 : 1 / endpoint.score();
+            total += weights[i];
+        }
+        if (total == 0) {
+            return null;
+        }
+        double draw = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < weights.length; i++) {
+            draw -= weights[i];
+            if (draw < 0 && weights[i] > 0) {
+                return endpoints.get(i);
+            }
+        }
+        // Rounding left a sliver of the total: take the last candidate
+        for (int i = weights.length - 1; ; i--) {
+            if (weights[i] > 0) return endpoints.get(i);
+        }
+    }
+
+    /**
+     * Records the outcome of a request on its endpoint, whether or not it wins.
+     */
+    private CompletableFuture<AsyncSearchTransport.Response> measure(Endpoint endpoint, boolean hedge,
+                                                                     CompletableFuture<AsyncSearchTransport.Response> response) {
+        long start = System.nanoTime();
+        endpoint.requests.incrementAndGet();
+        return response.whenComplete((value, error) -> record(endpoint, hedge, start, error != null));
+    }
+
+    /**
+     * Runs a blocking search on the endpoint and records its outcome.
+     */
+    private <T> T measure(Endpoint endpoint, boolean hedge, IntFunction<T> search) {
+        long start = System.nanoTime();
+        endpoint.requests.incrementAndGet();
+        boolean failed = true;
+        try {
+            T result = search.apply(endpoints.indexOf(endpoint));
+            failed = false;
+            return result;
+        } finally {
+            record(endpoint, hedge, start, failed);
+        }
+    }
+
+    private void record(Endpoint endpoint, boolean hedge, long startNanos, boolean failed) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        endpoint.record(micros, failed, hedgePercentile);
+        // The request itself is already counted in "all" by the transport or the TimerInterceptor
+        metrics.histogram("route:" + endpoint.getBaseUrl()).record(micros);
+        metrics.histogram(hedge ? "route:hedge" : "route:primary").record(micros);
+    }
+
+    private void addBudget(long milliTokens) {
+        budgetMilliTokens.accumulateAndGet(milliTokens, (current, add) -> Math.min(MAX_BUDGET_TOKENS * 1000, current + add));
+    }
+
+    private boolean takeBudget() {
+        for (long current = budgetMilliTokens.get(); current >= 1000; current = budgetMilliTokens.get()) {
+            if (budgetMilliTokens.compareAndSet(current, current - 1000)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One routed search: the primary request and at most one hedge, racing to complete the result.
+     */
+    private final class Attempt<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Endpoint primary;
+        private final String lastName;
+        private final boolean disableCache;
+        private final SearchResultCache.Entry validators;
+        private final Function<AsyncSearchTransport.Response, T> onResponse;
+        private boolean hedged;
+        private boolean answered;
+        private int outstanding;
+        private Throwable error;
+
+        Attempt(Endpoint primary, String lastName, boolean disableCache, SearchResultCache.Entry validators,
+                Function<AsyncSearchTransport.Response, T> onResponse) {
+            this.primary = primary;
+            this.lastName = lastName;
+            this.disableCache = disableCache;
+            this.validators = validators;
+            this.onResponse = onResponse;
+        }
+
+        /**
+         * Sends the primary request, waiting for an in-flight permit like an unrouted search.
+         */
+        void start() {
+            synchronized (this) {
+                outstanding++;
+            }
+            measure(primary, false, primary.transport.search(lastName, disableCache, validators, Function.identity()))
+                    .whenComplete((response, failure) -> completed(response, failure, false));
+        }
+
+        /**
+         * Sends the search to another endpoint, unless it has been hedged already, is answered, or the other
+         * endpoints have no free in-flight permit; the timer thread must never wait for one.
+         *
+         * @return whether a hedge was sent
+         */
+        synchronized boolean hedge() {
+            if (hedged || answered) {
+                return false;
+            }
+            hedged = true;
+            Endpoint other = pick(primary);
+            CompletableFuture<AsyncSearchTransport.Response> request = other == null ? null
+                    : other.transport.trySearch(lastName, disableCache, validators, Function.identity());
+            if (request == null) {
+                return false;
+            }
+            outstanding++;
+            hedgesSent.incrementAndGet();
+            log.debug("Hedging search for '{}' from {} to {}", lastName, primary.getBaseUrl(), other.getBaseUrl());
+            measure(other, true, request).whenComplete((response, failure) -> completed(response, failure, true));
+            return true;
+        }
+
+        private void completed(AsyncSearchTransport.Response response, Throwable failure, boolean hedge) {
+            synchronized (this) {
+                if (answered) {
+                    return;
+                }
+                if (failure != null) {
+                    // Report the primary's error: the hedge is an implementation detail
+                    if (error == null || !hedge) error = failure;
+                    // A failed primary is retried elsewhere at once, outside the hedge budget
+                    if (--outstanding > 0 || !hedge && hedge()) {
+                        return;
+                    }
+                }
+                answered = true;
+            }
+            if (failure != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (hedge) {
+                hedgesWon.incrementAndGet();
+            }
+            try {
+                result.complete(onResponse.apply(response));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -6,67 +6,657 @@ import ca.uhn.fhir.rest.client.api.IClientInterceptor;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.IHttpRequest;
 import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import interceptor.CacheValidatorInterceptor;
+import interceptor.LatencyMetrics;
+import interceptor.PayloadStats;
+import interceptor.PayloadStatsInterceptor;
+import interceptor.RecordingInterceptor;
+import interceptor.SearchPhase;
+import interceptor.SearchPhaseInterceptor;
+import interceptor.SearchTrace;
 import interceptor.TimerInterceptor;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Patient;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * service.FhirClient class handles interactions with the FHIR server.
  * It provides methods for searching patients and printing their information.
+ * Close it when done, to stop the threads of its asynchronous searches and page prefetching.
  */
-public class FhirClient {
+public class FhirClient implements AutoCloseable {
 
     // Constants
     private static final String FHIR_BASE_URL = "FHIR_BASE_URL";
+    private static final String FHIR_BASE_URL_V2 = "FHIR_BASE_URL_V2";
+    private static final String ROUTING_BASE_URLS = "ROUTING_BASE_URLS";
+    private static final String ROUTING_HEDGE_PERCENTILE = "ROUTING_HEDGE_PERCENTILE";
+    private static final String ROUTING_HEDGE_MIN_DELAY_MS = "ROUTING_HEDGE_MIN_DELAY_MS";
+    private static final String ROUTING_HEDGE_BUDGET = "ROUTING_HEDGE_BUDGET";
+    private static final String SEARCH_CACHE_MAX_ENTRIES = "SEARCH_CACHE_MAX_ENTRIES";
+    private static final String SEARCH_CACHE_TTL_MS = "SEARCH_CACHE_TTL_MS";
+    private static final String SEARCH_PAGE_SIZE = "SEARCH_PAGE_SIZE";
+    private static final String SEARCH_MAX_RESULTS = "SEARCH_MAX_RESULTS";
+    private static final String SEARCH_BATCH_SIZE = "SEARCH_BATCH_SIZE";
+    private static final String SEARCH_MAX_IN_FLIGHT = "SEARCH_MAX_IN_FLIGHT";
+    private static final String SEARCH_TIMEOUT_MS = "SEARCH_TIMEOUT_MS";
+    private static final String SEARCH_SNAPSHOT_FILE = "SEARCH_SNAPSHOT_FILE";
+    private static final String SEARCH_PHASE_METRICS = "SEARCH_PHASE_METRICS";
+    private static final String SEARCH_RECORD_FILE = "SEARCH_RECORD_FILE";
 
     // Dependencies
     private final FhirContext fhirContext;
     private final IGenericClient client;
+    /** One generic client per endpoint, in configuration order, the first being {@link #client}. */
+    private final List<IGenericClient> endpointClients;
+    private final CloseableHttpClient httpClient;
+    private final String baseUrl;
+    private final PatientSummaryParser summaryParser = new PatientSummaryParser();
+    private final SearchResultCache cache;
+    private final SearchSnapshotStore snapshots;
+    private final CacheValidatorInterceptor cacheValidators = new CacheValidatorInterceptor();
+    private final TimerInterceptor timerInterceptor;
+    private final PayloadStatsInterceptor payloadStats;
+    private final SearchPhaseInterceptor searchPhases = new SearchPhaseInterceptor();
+    private final List<AsyncSearchTransport> transports;
+    private final EndpointRouter router;
+    private final RecordingInterceptor recorder;
+    private final SingleFlight<String, List<Patient>> inFlightSearches = new SingleFlight<>(ArrayList::new);
+    private final ExecutorService pagePrefetcher = Executors.newCachedThreadPool(new DaemonThreadFactory("page-prefetch"));
+    private volatile boolean batchSupported = true;
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(FhirClient.class);
 
     /**
      * Constructs a new instance of service.FhirClient with default configuration.
-     * It initializes the FHIR context and client with the base URL retrieved from configuration.
+     * It initializes the FHIR context and client with the base URL retrieved from configuration; searches by last
+     * name are routed across FHIR_BASE_URL, FHIR_BASE_URL_V2 and ROUTING_BASE_URLS, those that are set.
      * @throws RuntimeException if the FHIR base URL is not configured
      */
     public FhirClient(int LOOP_COUNT, int NAMES_COUNT) {
-        fhirContext = FhirContext.forR4();
-        client = fhirContext.newRestfulGenericClient(ConfigUtility.loadConfigValue(FHIR_BASE_URL));
-        client.registerInterceptor(new LoggingInterceptor(false));
-        client.registerInterceptor(new TimerInterceptor(LOOP_COUNT,NAMES_COUNT));
+        this(configuredBaseUrls(), LOOP_COUNT, NAMES_COUNT);
+    }
 
+    /**
+     * Constructs a new instance of service.FhirClient for the given server, e.g. a local stub server.
+     * The FHIR context and the connection pool are shared with all other clients, see {@link FhirClientFactory};
+     * pooled connections to the server are opened in the background.
+     * @param baseUrl base URL of the FHIR server
+     */
+    public FhirClient(String baseUrl, int LOOP_COUNT, int NAMES_COUNT) {
+        this(Collections.singletonList(baseUrl), LOOP_COUNT, NAMES_COUNT);
+    }
+
+    /**
+     * Constructs a new instance of service.FhirClient for several servers holding the same data. Searches by last
+     * name are spread across all of them by measured latency and error rate, see {@link EndpointRouter}: blocking
+     * searches run on one generic client per server, with the same interceptors, and are retried on a second server
+     * if they fail; asynchronous searches are also hedged to a second server when slow. Every other request goes to
+     * the first server.
+     * If SEARCH_RECORD_FILE is set, the requests and their responses are appended to it for offline replay, see
+     * {@link RecordingInterceptor} and {@link ReplayFhirServer}: those of the generic clients and of the asynchronous
+     * searches, but not the streamed summary searches, whose responses are never buffered.
+     * @param baseUrls base URLs of the FHIR servers, the first one being the primary
+     */
+    public FhirClient(List<String> baseUrls, int LOOP_COUNT, int NAMES_COUNT) {
+        if (baseUrls.isEmpty()) {
+            throw new IllegalArgumentException("No FHIR base URL given");
+        }
+        String baseUrl = baseUrls.get(0);
+        fhirContext = FhirClientFactory.sharedContext();
+        httpClient = FhirClientFactory.sharedHttpClient();
+        payloadStats = FhirClientFactory.sharedPayloadStats();
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        FhirClientFactory.prewarm(this.baseUrl);
+        timerInterceptor = new TimerInterceptor(LOOP_COUNT,NAMES_COUNT);
+        RecordingInterceptor recorder = null;
+        String recordFile = ConfigUtility.loadConfigValue(SEARCH_RECORD_FILE).trim();
+        if (!recordFile.isEmpty()) {
+            try {
+                recorder = new RecordingInterceptor(Paths.get(recordFile), baseUrls);
+                log.info("Recording the exchanges with {} to {}; streamed summary searches are not recorded", baseUrls, recordFile);
+            } catch (IOException e) {
+                log.warn("Error opening record file {}, not recording:: {}", recordFile, e.getMessage());
+            }
+        }
+        this.recorder = recorder;
+        List<IGenericClient> clients = new ArrayList<>();
+        for (String url : baseUrls) {
+            clients.add(newGenericClient(url, recorder));
+        }
+        endpointClients = Collections.unmodifiableList(clients);
+        client = endpointClients.get(0);
+        cache = new SearchResultCache(Integer.parseInt(ConfigUtility.loadConfigValue(SEARCH_CACHE_MAX_ENTRIES)),
+                Long.parseLong(ConfigUtility.loadConfigValue(SEARCH_CACHE_TTL_MS)));
+        if (Boolean.parseBoolean(ConfigUtility.loadConfigValue(SEARCH_PHASE_METRICS).trim())) {
+            SearchTrace.setMetricsEnabled(true);
+        }
+        String snapshotFile = ConfigUtility.loadConfigValue(SEARCH_SNAPSHOT_FILE).trim();
+        snapshots = snapshotFile.isEmpty() ? null : SearchSnapshotStore.shared(Paths.get(snapshotFile), fhirContext);
+        List<AsyncSearchTransport> transports = new ArrayList<>();
+        for (String url : baseUrls) {
+            transports.add(new AsyncSearchTransport(fhirContext, url.endsWith("/") ? url.substring(0, url.length() - 1) : url,
+                    Integer.parseInt(ConfigUtility.loadConfigValue(SEARCH_MAX_IN_FLIGHT)),
+                    Long.parseLong(ConfigUtility.loadConfigValue(SEARCH_TIMEOUT_MS)),
+                    timerInterceptor.getMetrics(), recorder));
+        }
+        this.transports = Collections.unmodifiableList(transports);
+        router = new EndpointRouter(transports,
+                Double.parseDouble(ConfigUtility.loadConfigValue(ROUTING_HEDGE_PERCENTILE).trim()),
+                Long.parseLong(ConfigUtility.loadConfigValue(ROUTING_HEDGE_MIN_DELAY_MS).trim()),
+                Double.parseDouble(ConfigUtility.loadConfigValue(ROUTING_HEDGE_BUDGET).trim()),
+                timerInterceptor.getMetrics());
+    }
+
+    /**
+     * Creates a generic client for the endpoint with the interceptors every blocking request goes through.
+     */
+    private IGenericClient newGenericClient(String url, RecordingInterceptor recorder) {
+        IGenericClient endpointClient = FhirClientFactory.newGenericClient(url);
+        endpointClient.registerInterceptor(new LoggingInterceptor(false));
+        endpointClient.registerInterceptor(timerInterceptor);
+        endpointClient.registerInterceptor(cacheValidators);
+        endpointClient.registerInterceptor(payloadStats);
+        endpointClient.registerInterceptor(searchPhases);
+        if (recorder != null) {
+            endpointClient.registerInterceptor(recorder);
+        }
+        return endpointClient;
+    }
+
+    /**
+     * @return FHIR_BASE_URL, then FHIR_BASE_URL_V2 and the comma-separated ROUTING_BASE_URLS if set
+     */
+    private static List<String> configuredBaseUrls() {
+        List<String> urls = new ArrayList<>();
+        urls.add(ConfigUtility.loadConfigValue(FHIR_BASE_URL).trim());
+        String v2 = ConfigUtility.loadConfigValue(FHIR_BASE_URL_V2).trim();
+        if (!v2.isEmpty()) urls.add(v2);
+        for (String url : ConfigUtility.loadConfigValue(ROUTING_BASE_URLS).split(",")) {
+            if (!url.trim().isEmpty()) urls.add(url.trim());
+        }
+        return urls;
     }
 
 
     /**
      * Searches for patients based on the specified last name and returns a list of matching patients.
+     * Results are served from the in-process cache while fresh, backed by the on-disk snapshot store if
+     * SEARCH_SNAPSHOT_FILE is set, so a restarted client starts warm; stale entries are revalidated with
+     * If-None-Match / If-Modified-Since, and a 304 Not Modified answer is counted as a hit.
+     * Identical searches that are in flight at the same time, from any thread, are merged into one server call.
      * @param lastName The last name of the patients to search for
-     * @param disableCache parameter to instruct addition of no-cache/no-store headers to the request.
+     * @param disableCache parameter to skip the in-process cache and add no-cache/no-store headers to the request.
      * @return A list of patients matching the specified last name
      */
     public List<Patient> searchPatientsByLastName(String lastName, boolean disableCache) {
+        return inFlightSearches.execute(flightKey(lastName, disableCache), () -> fetchPatientsByLastName(lastName, disableCache));
+    }
 
+    /**
+     * Runs the search on the generic client of the endpoint chosen by the router, so every endpoint's requests pass
+     * the same interceptors (timing, logging, search phases, recording). A failed search is retried once on another
+     * endpoint; blocking searches are not hedged.
+     */
+    private List<Patient> fetchPatientsByLastName(String lastName, boolean disableCache) {
         CacheControlDirective cacheControlDirective=new CacheControlDirective();
         //cacheControlDirective.setNoCache(disableCache);  //not seeing tangible difference in response times when running as standalone app.
         cacheControlDirective.setNoStore(disableCache);  // added to remove all cache-controls from the request. Forcing fresh results
-        Bundle response = client
+        if (disableCache) {
+            return router.searchBlocking(endpoint -> execute(searchQuery(endpointClients.get(endpoint), lastName, cacheControlDirective), lastName));
+        }
+
+        String key = cacheKey(lastName);
+        SearchResultCache.Entry entry = cachedEntry(key);
+        if (entry != null && cache.isFresh(entry)) {
+            cache.recordHit();
+            return entry.getPatients();
+        }
+
+        // null if the server confirmed the cached entry
+        List<Patient> patients = router.searchBlocking(endpoint -> {
+            IQuery<Bundle> query = searchQuery(endpointClients.get(endpoint), lastName, cacheControlDirective);
+            if (entry != null && entry.hasValidators()) {
+                if (entry.getEtag() != null) query.withAdditionalHeader("If-None-Match", entry.getEtag());
+                if (entry.getLastModified() != null) query.withAdditionalHeader("If-Modified-Since", entry.getLastModified());
+            }
+            try {
+                return execute(query, lastName);
+            } catch (NotModifiedException e) {
+                return null;
+            }
+        });
+        if (patients == null) {
+            log.debug("Cached result for '{}' revalidated by the server", lastName);
+            revalidated(key);
+            cache.recordHit();
+            return entry.getPatients();
+        }
+        cache.recordMiss();
+        store(key, patients, cacheValidators.getLastEtag(), cacheValidators.getLastModified());
+        return patients;
+    }
+
+    /**
+     * Runs the search on the generic client, timing its phases if a flight recording or the phase metrics are on.
+     */
+    private List<Patient> execute(IQuery<Bundle> query, String lastName) {
+        SearchTrace trace = SearchTrace.begin(lastName);
+        int resultSize = -1;
+        try {
+            Bundle bundle = query.execute();
+            trace.end(SearchPhase.BUNDLE_PARSE);
+            trace.start(SearchPhase.PATIENT_MAPPING);
+            List<Patient> patients = toPatients(bundle);
+            trace.end(SearchPhase.PATIENT_MAPPING);
+            resultSize = patients.size();
+            return patients;
+        } finally {
+            trace.finish(resultSize);
+        }
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #searchPatientsByLastName(String, boolean)}, sent on a non-blocking HTTP
+     * transport so thousands of searches can be in flight without a thread each. The in-process cache is used the
+     * same way: fresh hits complete immediately, stale entries are revalidated conditionally.
+     * <p>
+     * The number of searches in flight is capped (SEARCH_MAX_IN_FLIGHT); once the cap is reached this method blocks
+     * the caller until an earlier search has been handed to its dependent stages. Call it from the thread producing
+     * the search terms, not from inside a completion stage. A search merged into an identical one already in flight
+     * does not count against the cap.
+     * @param lastName The last name of the patients to search for
+     * @param disableCache parameter to skip the in-process cache and add a no-store header to the request.
+     * @return completes with the patients matching the specified last name
+     */
+    public CompletableFuture<List<Patient>> searchPatientsByLastNameAsync(String lastName, boolean disableCache) {
+        return inFlightSearches.executeAsync(flightKey(lastName, disableCache), () -> fetchPatientsByLastNameAsync(lastName, disableCache));
+    }
+
+    private CompletableFuture<List<Patient>> fetchPatientsByLastNameAsync(String lastName, boolean disableCache) {
+        String key = cacheKey(lastName);
+        SearchResultCache.Entry entry = disableCache ? null : cachedEntry(key);
+        if (entry != null && cache.isFresh(entry)) {
+            cache.recordHit();
+            return CompletableFuture.completedFuture(entry.getPatients());
+        }
+        return router.search(lastName, disableCache, entry, response -> {
+            if (response.isNotModified()) {
+                log.debug("Cached result for '{}' revalidated by the server", lastName);
+                revalidated(key);
+                cache.recordHit();
+                return entry.getPatients();
+            }
+            if (!disableCache) {
+                cache.recordMiss();
+                store(key, response.getPatients(), response.getEtag(), response.getLastModified());
+            }
+            return response.getPatients();
+        });
+    }
+
+    /**
+     * Searches for patients based on the specified last name, asking the server for only the projected elements
+     * (_elements / _summary) and a gzip-compressed response. Projected results bypass the in-process cache,
+     * since they hold partial resources.
+     * @param lastName The last name of the patients to search for
+     * @param projection The elements or summary mode the caller needs
+     * @return the matching patients, with bytes on the wire and parse time of the response
+     */
+    public ProjectedSearchResult searchPatientsByLastName(String lastName, SearchProjection projection) {
+        IQuery<Bundle> query = client
+                .search()
+                .forResource("Patient")
+                .where(Patient.FAMILY.matches().value(lastName))
+                .returnBundle(Bundle.class)
+                .withAdditionalHeader("Accept-Encoding", "gzip");
+        if (!projection.getElements().isEmpty()) {
+            query.elementsSubset(projection.getElements().toArray(new String[0]));
+        }
+        if (projection.getSummary() != null) {
+            query.summaryMode(projection.getSummary());
+        }
+
+        payloadStats.begin();
+        List<Patient> patients;
+        PayloadStats stats;
+        try {
+            patients = toPatients(query.execute());
+        } finally {
+            stats = payloadStats.end();
+        }
+        log.info("Projected search for '{}' ({}): {} patients, {}", lastName, projection, patients.size(), stats);
+        return new ProjectedSearchResult(patients, stats);
+    }
+
+    /**
+     * Searches for patients based on the specified last name and returns compact patient summaries, parsed straight
+     * from the response stream without building HAPI resources. Next links are followed up to the configured
+     * maximum number of results.
+     * @param lastName The last name of the patients to search for
+     * @return the summaries of the matching patients
+     */
+    public List<PatientSummary> searchPatientSummariesByLastName(String lastName) {
+        List<PatientSummary> summaries = new ArrayList<>();
+        streamPatientSummariesByLastName(lastName, summaries::add);
+        return summaries;
+    }
+
+    /**
+     * Searches for patients based on the specified last name and hands each match to the consumer as soon as its
+     * Bundle entry has been read. Only one entry is materialized at a time, whatever the size of the page.
+     * Next links are followed up to the configured maximum number of results.
+     * @param lastName The last name of the patients to search for
+     * @param consumer receives the summary of each matching patient
+     * @return the number of patients passed to the consumer
+     */
+    public int streamPatientSummariesByLastName(String lastName, Consumer<PatientSummary> consumer) {
+        return streamPatientSummaries("family=" + BatchBundles.encode(lastName),
+                Integer.parseInt(ConfigUtility.loadConfigValue(SEARCH_MAX_RESULTS)), consumer);
+    }
+
+    /**
+     * Runs a Patient search with the given query string and hands each match to the consumer as its entry is read,
+     * following next links up to {@code maxResults} patients. The exchanges are not recorded to SEARCH_RECORD_FILE,
+     * as the responses are parsed while they are read.
+     * @param query the URL-encoded search parameters, without _count
+     * @param maxResults maximum number of patients passed to the consumer
+     * @param consumer receives the summary of each matching patient
+     * @return the number of patients passed to the consumer
+     */
+    int streamPatientSummaries(String query, int maxResults, Consumer<PatientSummary> consumer) {
+        String url = baseUrl + "/Patient?" + query + "&_count=" + ConfigUtility.loadConfigValue(SEARCH_PAGE_SIZE);
+        int[] count = {0};
+        while (url != null && count[0] < maxResults) {
+            long start = System.nanoTime();
+            HttpGet get = new HttpGet(url);
+            get.addHeader("Accept", "application/fhir+json");
+            try (CloseableHttpResponse response = httpClient.execute(get)) {
+                int status = response.getStatusLine().getStatusCode();
+                if (status < 200 || status > 299) {
+                    throw BaseServerResponseException.newInstance(status, response.getStatusLine().getReasonPhrase());
+                }
+                Reader body = new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8);
+                url = summaryParser.parse(body, patient -> {
+                    if (count[0]++ < maxResults) consumer.accept(patient);
+                });
+            } catch (IOException e) {
+                throw new FhirClientConnectionException(e);
+            }
+            getMetrics().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), "parser:streaming");
+        }
+        return Math.min(count[0], maxResults);
+    }
+
+    /**
+     * Searches for patients for many last names, packing the searches into FHIR batch Bundles of the configured size,
+     * so N names cost N / batch size round trips instead of N.
+     * @param lastNames The last names of the patients to search for
+     * @param disableCache parameter to skip the in-process cache and add no-cache/no-store headers to the requests.
+     * @return patients keyed by last name, in the order the names were given
+     */
+    public Map<String, List<Patient>> searchPatientsByLastNames(List<String> lastNames, boolean disableCache) {
+        return searchPatientsByLastNames(lastNames, disableCache, Integer.parseInt(ConfigUtility.loadConfigValue(SEARCH_BATCH_SIZE)));
+    }
+
+    /**
+     * Searches for patients for many last names, packing the searches into FHIR batch Bundles.
+     * Fresh cached results are served without a request. Names whose batch entry failed are retried with an
+     * individual search, as are all names of a batch that failed as a whole. If the server answers that it does not
+     * take batch Bundles (HTTP 400, 404, 405, 415 or 501), the client falls back to individual searches for the rest
+     * of its lifetime.
+     * @param lastNames The last names of the patients to search for
+     * @param disableCache parameter to skip the in-process cache and add no-cache/no-store headers to the requests.
+     * @param batchSize maximum number of searches packed into one batch Bundle
+     * @return patients keyed by last name, in the order the names were given
+     */
+    public Map<String, List<Patient>> searchPatientsByLastNames(List<String> lastNames, boolean disableCache, int batchSize) {
+        Map<String, List<Patient>> found = new HashMap<>();
+        List<String> pending = new ArrayList<>();
+        for (String lastName : new LinkedHashSet<>(lastNames)) {
+            SearchResultCache.Entry entry = disableCache ? null : cachedEntry(cacheKey(lastName));
+            if (entry != null && cache.isFresh(entry)) {
+                cache.recordHit();
+                found.put(lastName, entry.getPatients());
+            } else {
+                pending.add(lastName);
+            }
+        }
+
+        for (int from = 0; from < pending.size(); from += Math.max(1, batchSize)) {
+            List<String> chunk = pending.subList(from, Math.min(from + Math.max(1, batchSize), pending.size()));
+            Map<String, List<Patient>> batchResults = batchSupported && chunk.size() > 1
+                    ? executeBatch(chunk, disableCache) : Collections.emptyMap();
+            for (String lastName : chunk) {
+                List<Patient> patients = batchResults.get(lastName);
+                if (patients == null) {
+                    patients = searchPatientsByLastName(lastName, disableCache);
+                } else if (!disableCache) {
+                    cache.recordMiss();
+                    store(cacheKey(lastName), patients, null, null);
+                }
+                found.put(lastName, patients);
+            }
+        }
+
+        Map<String, List<Patient>> results = new LinkedHashMap<>();
+        for (String lastName : lastNames) {
+            results.put(lastName, found.get(lastName));
+        }
+        return results;
+    }
+
+    /**
+     * Posts one batch Bundle for the names and splits the response. Returns an empty map if the server rejected
+     * the batch, so every name is retried individually.
+     */
+    private Map<String, List<Patient>> executeBatch(List<String> lastNames, boolean disableCache) {
+        CacheControlDirective cacheControlDirective=new CacheControlDirective();
+        cacheControlDirective.setNoStore(disableCache);
+        try {
+            Bundle response = client
+                    .transaction()
+                    .withBundle(BatchBundles.searchBatch(lastNames))
+                    .cacheControl(cacheControlDirective)
+                    .execute();
+            return BatchBundles.splitResponse(lastNames, response);
+        } catch (BaseServerResponseException e) {
+            if (rejectsBatches(e.getStatusCode())) {
+                log.warn("Server rejected batch search (HTTP {}), falling back to individual searches", e.getStatusCode());
+                batchSupported = false;
+            } else {
+                log.warn("Batch search of {} names failed (HTTP {}), retrying individually", lastNames.size(), e.getStatusCode());
+            }
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Statuses saying the server does not take batch Bundles at all: a malformed or unknown request, no such
+     * endpoint, method or media type, or not implemented. Anything else, e.g. 401, 408, 429 or 503, may be transient
+     * and only fails the batch at hand.
+     */
+    static boolean rejectsBatches(int status) {
+        return status == 400 || status == 404 || status == 405 || status == 415 || status == 501;
+    }
+
+    /**
+     * Streams all patients matching the specified last name, following the Bundle "next" links as the stream is
+     * consumed. Page size and the maximum number of results are read from application.properties.
+     * @param lastName The last name of the patients to search for
+     * @return A lazy stream of matching patients; close it to stop prefetching early
+     */
+    public Stream<Patient> streamPatientsByLastName(String lastName) {
+        return streamPatientsByLastName(lastName,
+                Integer.parseInt(ConfigUtility.loadConfigValue(SEARCH_PAGE_SIZE)),
+                Integer.parseInt(ConfigUtility.loadConfigValue(SEARCH_MAX_RESULTS)));
+    }
+
+    /**
+     * Streams all patients matching the specified last name, following the Bundle "next" links as the stream is
+     * consumed. The page after the current one is prefetched in the background, so at most two pages are in memory.
+     * @param lastName The last name of the patients to search for
+     * @param pageSize number of patients requested per page (_count)
+     * @param maxResults maximum number of patients returned by the stream
+     * @return A lazy stream of matching patients; close it to stop prefetching early
+     */
+    public Stream<Patient> streamPatientsByLastName(String lastName, int pageSize, int maxResults) {
+        Bundle firstPage = client
                 .search()
                 .forResource("Patient")
                 .where(Patient.FAMILY.matches().value(lastName))
+                .count(pageSize)
                 .returnBundle(Bundle.class)
-                .cacheControl(cacheControlDirective)
                 .execute();
+        PatientPageIterator iterator = new PatientPageIterator(firstPage,
+                page -> client.loadPage().next(page).execute(), pagePrefetcher, maxResults);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    /**
+     * @return the in-process search result cache, for inspecting its hit/miss/eviction counters
+     */
+    public SearchResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return the single-flight layer of the searches by last name, for inspecting how many searches were merged
+     */
+    public SingleFlight<String, List<Patient>> getInFlightSearches() {
+        return inFlightSearches;
+    }
+
+    /**
+     * @return the routing layer of the searches by last name, for inspecting the endpoints' latency, error rate and
+     * hedges
+     */
+    public EndpointRouter getRouter() {
+        return router;
+    }
 
+    /**
+     * @return the latency histograms recorded for all requests sent by this client
+     */
+    public LatencyMetrics getMetrics() {
+        return timerInterceptor.getMetrics();
+    }
+
+    /**
+     * Stops the hedge timer, the asynchronous search transports and the page prefetcher, interrupting the searches still running, and
+     * closes the record file. The FHIR context and connection pool are shared and stay open.
+     */
+    @Override
+    public void close() {
+        router.close();
+        for (AsyncSearchTransport transport : transports) {
+            transport.close();
+        }
+        pagePrefetcher.shutdownNow();
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                log.warn("Error closing record file:: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static IQuery<Bundle> searchQuery(IGenericClient endpointClient, String lastName, CacheControlDirective cacheControlDirective) {
+        return endpointClient
+                .search()
+                .forResource("Patient")
+                .where(Patient.FAMILY.matches().value(lastName))
+                .returnBundle(Bundle.class)
+                .cacheControl(cacheControlDirective);
+    }
+
+    /**
+     * Looks the key up in the in-process cache and, on a miss, in the snapshot store, whose result then fills the
+     * in-process cache with its original age.
+     */
+    private SearchResultCache.Entry cachedEntry(String key) {
+        SearchResultCache.Entry entry = cache.get(key);
+        if (entry == null && snapshots != null) {
+            SearchSnapshotStore.Snapshot snapshot = snapshots.get(key);
+            if (snapshot != null) {
+                cache.put(key, snapshot.getPatients(), snapshot.getEtag(), snapshot.getLastModified(), snapshot.getAgeMillis());
+                entry = cache.get(key);
+            }
+        }
+        return entry;
+    }
+
+    private void store(String key, List<Patient> patients, String etag, String lastModified) {
+        cache.put(key, patients, etag, lastModified);
+        if (snapshots != null) {
+            snapshots.put(key, patients, etag, lastModified);
+        }
+    }
+
+    private void revalidated(String key) {
+        cache.revalidated(key);
+        if (snapshots != null) {
+            snapshots.touch(key);
+        }
+    }
+
+    /**
+     * The key carries the base URL of the primary server, so clients of different servers sharing a snapshot file
+     * never serve each other's results.
+     */
+    private String cacheKey(String lastName) {
+        return baseUrl + "/" + SearchResultCache.key("Patient", Collections.singletonMap("family", lastName));
+    }
+
+    /**
+     * Searches are identical if they are for the same normalized name and send the same cache directive.
+     */
+    private String flightKey(String lastName, boolean disableCache) {
+        return cacheKey(lastName) + (disableCache ? " no-store" : " default");
+    }
+
+    /**
+     * Maps the entries of a search result Bundle to patients. Entries of other types, such as an
+     * OperationOutcome carrying search warnings, are skipped.
+     */
+    static List<Patient> toPatients(Bundle response) {
         return response.getEntry().stream()
+                .filter(entry -> entry.getResource() instanceof Patient)
                 .map(entry -> (Patient) entry.getResource())
                 .collect(Collectors.toList());
     }
 
 
 }
-
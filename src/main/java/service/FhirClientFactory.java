@@ -0,0 +1,277 @@
+package service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import interceptor.PayloadStatsInterceptor;
+import interceptor.SearchPhaseRequestExecutor;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * service.FhirClientFactory holds the process-wide, expensive parts of a FHIR client, so creating a
+ * {@link FhirClient} is cheap and short-lived batch jobs get to their first result quickly:
+ * <ul>
+ *     <li>one {@link FhirContext}, created lazily on first use (the R4 model scan takes seconds);</li>
+ *     <li>one pooled HTTP client, with the pool size and keep-alive from application.properties;</li>
+ *     <li>the server validation mode, i.e. whether the client fetches the server's CapabilityStatement before its
+ *     first request. The default NEVER skips that handshake altogether.</li>
+ * </ul>
+ * The pool can be pre-warmed, opening connections in the background while the caller is still setting up.
+ */
+public final class FhirClientFactory {
+
+    // Constants
+    private static final String FHIR_SERVER_VALIDATION = "FHIR_SERVER_VALIDATION";
+    private static final String HTTP_POOL_MAX_TOTAL = "HTTP_POOL_MAX_TOTAL";
+    private static final String HTTP_POOL_MAX_PER_ROUTE = "HTTP_POOL_MAX_PER_ROUTE";
+    private static final String HTTP_KEEP_ALIVE_MS = "HTTP_KEEP_ALIVE_MS";
+    private static final String HTTP_PREWARM_CONNECTIONS = "HTTP_PREWARM_CONNECTIONS";
+
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(FhirClientFactory.class);
+
+    private FhirClientFactory() {
+    }
+
+    /**
+     * Lazy holder of the shared context; the class, and with it the context, is initialized on first access only.
+     */
+    private static class ContextHolder {
+        private static final FhirContext CONTEXT = newContext();
+    }
+
+    /**
+     * Lazy holder of the shared HTTP client, so merely loading the factory does not read the configuration.
+     */
+    private static class HttpHolder {
+        private static final long KEEP_ALIVE_MILLIS = Long.parseLong(ConfigUtility.loadConfigValue(HTTP_KEEP_ALIVE_MS));
+        private static final PayloadStatsInterceptor PAYLOAD_STATS = new PayloadStatsInterceptor();
+        private static final PoolingHttpClientConnectionManager CONNECTION_MANAGER = newConnectionManager(
+                ContextHolder.CONTEXT.getRestfulClientFactory(),
+                Integer.parseInt(ConfigUtility.loadConfigValue(HTTP_POOL_MAX_TOTAL)),
+                Integer.parseInt(ConfigUtility.loadConfigValue(HTTP_POOL_MAX_PER_ROUTE)));
+        private static final CloseableHttpClient HTTP_CLIENT = newHttpClient(ContextHolder.CONTEXT.getRestfulClientFactory(),
+                CONNECTION_MANAGER, KEEP_ALIVE_MILLIS, PAYLOAD_STATS);
+
+        static {
+            ContextHolder.CONTEXT.getRestfulClientFactory().setHttpClient(HTTP_CLIENT);
+        }
+    }
+
+    /**
+     * Returns the process-wide R4 context, creating it on the first call.
+     *
+     * @return the shared FHIR context
+     */
+    public static FhirContext sharedContext() {
+        return ContextHolder.CONTEXT;
+    }
+
+    /**
+     * Returns the process-wide pooled HTTP client that all generic clients created by this factory send through.
+     *
+     * @return the shared HTTP client
+     */
+    public static CloseableHttpClient sharedHttpClient() {
+        return HttpHolder.HTTP_CLIENT;
+    }
+
+    /**
+     * Returns the payload counter installed on the shared HTTP client. Register it on a generic client as well,
+     * so it can tell download and parse time apart.
+     *
+     * @return the shared payload stats interceptor
+     */
+    public static PayloadStatsInterceptor sharedPayloadStats() {
+        return HttpHolder.PAYLOAD_STATS;
+    }
+
+    /**
+     * Creates a generic client for the given server on the shared context and HTTP client.
+     *
+     * @param baseUrl base URL of the FHIR server
+     * @return a new generic client without interceptors
+     */
+    public static IGenericClient newGenericClient(String baseUrl) {
+        sharedHttpClient();
+        return sharedContext().newRestfulGenericClient(baseUrl);
+    }
+
+    /**
+     * Sets whether generic clients validate the server's CapabilityStatement before their first request.
+     * ONCE validates each base URL once per process, NEVER skips the handshake.
+     *
+     * @param mode the validation mode
+     */
+    public static void setServerValidationMode(ServerValidationModeEnum mode) {
+        sharedContext().getRestfulClientFactory().setServerValidationMode(mode);
+    }
+
+    /**
+     * Returns the server validation mode currently in effect.
+     *
+     * @return the validation mode
+     */
+    public static ServerValidationModeEnum getServerValidationMode() {
+        return sharedContext().getRestfulClientFactory().getServerValidationMode();
+    }
+
+    /**
+     * Opens the configured number of pooled connections to the given server in the background.
+     *
+     * @param baseUrl base URL of the FHIR server
+     * @return completes with the number of connections that were opened
+     */
+    public static CompletableFuture<Integer> prewarm(String baseUrl) {
+        return prewarm(baseUrl, Integer.parseInt(ConfigUtility.loadConfigValue(HTTP_PREWARM_CONNECTIONS)));
+    }
+
+    /**
+     * Opens up to {@code connections} pooled connections to the given server in the background.
+     * The connections are leased from the pool together, connected (including the TLS handshake for https) in
+     * parallel and handed back idle, so no request is sent and the server does no work. Connections that are
+     * already open count as warm. At most the per-route limit of the pool is opened. Failures are logged and do not
+     * fail the future; the real requests then simply connect on demand.
+     *
+     * @param baseUrl     base URL of the FHIR server
+     * @param connections number of connections to open
+     * @return completes with the number of open connections in the pool for this server
+     */
+    public static CompletableFuture<Integer> prewarm(String baseUrl, int connections) {
+        PoolingHttpClientConnectionManager connectionManager = HttpHolder.CONNECTION_MANAGER;
+        int count = Math.min(connections, connectionManager.getDefaultMaxPerRoute());
+        if (count <= 0) {
+            return CompletableFuture.completedFuture(0);
+        }
+        HttpRoute route = route(baseUrl);
+        int connectTimeout = sharedContext().getRestfulClientFactory().getConnectTimeout();
+        ExecutorService executor = Executors.newFixedThreadPool(count + 1, new DaemonThreadFactory("prewarm"));
+        return CompletableFuture.supplyAsync(() -> {
+            List<HttpClientConnection> leased = new ArrayList<>(count);
+            try {
+                for (int i = 0; i < count; i++) {
+                    leased.add(connectionManager.requestConnection(route, null).get(connectTimeout, TimeUnit.MILLISECONDS));
+                }
+                List<CompletableFuture<Boolean>> opened = new ArrayList<>(count);
+                for (HttpClientConnection connection : leased) {
+                    opened.add(CompletableFuture.supplyAsync(() -> connect(connectionManager, connection, route, connectTimeout), executor));
+                }
+                return (int) opened.stream().filter(CompletableFuture::join).count();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            } catch (ExecutionException | ConnectionPoolTimeoutException e) {
+                log.debug("Error pre-warming connections to {}:: {}", route, e.getMessage());
+                return 0;
+            } finally {
+                long keepAliveMillis = HttpHolder.KEEP_ALIVE_MILLIS;
+                leased.forEach(connection -> connectionManager.releaseConnection(connection, null, keepAliveMillis, TimeUnit.MILLISECONDS));
+                executor.shutdown();
+            }
+        }, executor);
+    }
+
+    /**
+     * Returns the pool figures for the given server, for tests and diagnostics.
+     */
+    static PoolStats poolStats(String baseUrl) {
+        return HttpHolder.CONNECTION_MANAGER.getStats(route(baseUrl));
+    }
+
+    private static boolean connect(PoolingHttpClientConnectionManager connectionManager, HttpClientConnection connection,
+                                   HttpRoute route, int connectTimeout) {
+        if (connection.isOpen()) {
+            return true;
+        }
+        HttpClientContext context = HttpClientContext.create();
+        try {
+            connectionManager.connect(connection, route, connectTimeout, context);
+            connectionManager.routeComplete(connection, route, context);
+            return true;
+        } catch (IOException e) {
+            log.debug("Error pre-warming connection to {}:: {}", route, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * The route the HTTP client plans for requests to the given base URL, so warmed connections are found again.
+     */
+    private static HttpRoute route(String baseUrl) {
+        URI uri = URI.create(baseUrl);
+        HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        try {
+            target = new HttpHost(target.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(target), target.getSchemeName());
+        } catch (UnsupportedSchemeException e) {
+            throw new IllegalArgumentException("Unsupported scheme in " + baseUrl, e);
+        }
+        return new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+    }
+
+    private static FhirContext newContext() {
+        FhirContext context = FhirContext.forR4();
+        context.getRestfulClientFactory().setServerValidationMode(
+                ServerValidationModeEnum.valueOf(ConfigUtility.loadConfigValue(FHIR_SERVER_VALIDATION).trim().toUpperCase()));
+        return context;
+    }
+
+    private static PoolingHttpClientConnectionManager newConnectionManager(IRestfulClientFactory factory, int maxTotal, int maxPerRoute) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        factory.setPoolMaxTotal(maxTotal);
+        factory.setPoolMaxPerRoute(maxPerRoute);
+        return connectionManager;
+    }
+
+    /**
+     * Builds the pooled HTTP client. Idle connections are kept for as long as the server allows via its Keep-Alive
+     * header, or {@code keepAliveMillis} if it does not say, and evicted in the background after that. The network
+     * phases of traced searches are timed by the request executor, see {@link interceptor.SearchTrace}.
+     */
+    private static CloseableHttpClient newHttpClient(IRestfulClientFactory factory, HttpClientConnectionManager connectionManager,
+                                                     long keepAliveMillis, PayloadStatsInterceptor payloadCounter) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setSocketTimeout(factory.getSocketTimeout())
+                .setConnectTimeout(factory.getConnectTimeout())
+                .setConnectionRequestTimeout(factory.getConnectionRequestTimeout())
+                .build();
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+                })
+                .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .disableCookieManagement()
+                .setRequestExecutor(new SearchPhaseRequestExecutor())
+                .addInterceptorFirst(payloadCounter)
+                .build();
+    }
+}
@@ -0,0 +1,189 @@
+package service;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs patient searches for many family names concurrently over a bounded executor.
+ * Virtual threads are used when the running JDK provides them, otherwise a fixed thread pool of the configured size.
+ * At most the configured number of searches run at a time. Each search gets its own timeout, counted from the moment
+ * it is handed to the executor: a search still running then is cancelled and its worker interrupted, so a single slow
+ * name cannot stall the batch or hold its slot. Names waiting for a slot wait at most twice the timeout.
+ * A search blocked in a read that ignores interrupts keeps its thread until the HTTP socket timeout; on the fixed
+ * pool, a search queued behind it times out like any other.
+ */
+public class ParallelPatientSearch implements AutoCloseable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(ParallelPatientSearch.class);
+
+    // Constants
+    private static final String SEARCH_CONCURRENCY = "SEARCH_CONCURRENCY";
+    private static final String SEARCH_TIMEOUT_MS = "SEARCH_TIMEOUT_MS";
+
+    // Dependencies
+    private final FhirClient fhirClient;
+    private final int concurrency;
+    private final long timeoutMillis;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timeoutScheduler;
+
+    /**
+     * Constructs a new ParallelPatientSearch with concurrency and timeout read from application.properties.
+     *
+     * @param fhirClient client used for the individual searches
+     * @throws RuntimeException if the configuration keys are missing
+     */
+    public ParallelPatientSearch(FhirClient fhirClient) {
+        this(fhirClient,
+                Integer.parseInt(ConfigUtility.loadConfigValue(SEARCH_CONCURRENCY)),
+                Long.parseLong(ConfigUtility.loadConfigValue(SEARCH_TIMEOUT_MS)));
+    }
+
+    /**
+     * Constructs a new ParallelPatientSearch.
+     *
+     * @param fhirClient    client used for the individual searches
+     * @param concurrency   maximum number of searches in flight at the same time
+     * @param timeoutMillis maximum time a single search may take once started; names wait at most twice
+     *                      as long for a free slot
+     */
+    public ParallelPatientSearch(FhirClient fhirClient, int concurrency, long timeoutMillis) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1, was " + concurrency);
+        }
+        this.fhirClient = fhirClient;
+        this.concurrency = concurrency;
+        this.timeoutMillis = timeoutMillis;
+        this.permits = new Semaphore(concurrency);
+        this.executor = newExecutor(concurrency);
+        this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("search-timeout"));
+    }
+
+    /**
+     * Searches all given family names concurrently and waits for every search to complete, fail or time out.
+     * Duplicate names are searched only once.
+     *
+     * @param familyNames  the family names to search for
+     * @param disableCache parameter to instruct addition of no-cache/no-store headers to the requests
+     * @return results keyed by family name, with failed or timed out names reported separately
+     */
+    public ParallelSearchResult search(List<String> familyNames, boolean disableCache) {
+        long start = System.nanoTime();
+        Map<String, CompletableFuture<List<Patient>>> pending = new LinkedHashMap<>();
+        for (String familyName : new LinkedHashSet<>(familyNames)) {
+            pending.put(familyName, submit(familyName, disableCache));
+        }
+
+        Map<String, List<Patient>> results = new LinkedHashMap<>();
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<List<Patient>>> entry : pending.entrySet()) {
+            try {
+                results.put(entry.getKey(), entry.getValue().get());
+            } catch (ExecutionException e) {
+                log.warn("Search for '{}' failed: {}", entry.getKey(), e.getCause().toString());
+                failures.put(entry.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.put(entry.getKey(), e);
+            }
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("Parallel search of {} names finished in {} ms ({} failed, concurrency {})",
+                pending.size(), elapsedMillis, failures.size(), concurrency);
+        return new ParallelSearchResult(results, failures, elapsedMillis);
+    }
+
+    /**
+     * Schedules a single search once one of the permits is free, waiting at most twice the timeout for it: every
+     * running search gives its permit back within the timeout. The returned future is completed exceptionally with a
+     * TimeoutException if no permit became free in time, or if the search does not finish within the timeout after
+     * it was handed to the executor; a timed out search is cancelled, interrupting its worker, and its permit is
+     * released at once.
+     */
+    private CompletableFuture<List<Patient>> submit(String familyName, boolean disableCache) {
+        CompletableFuture<List<Patient>> result = new CompletableFuture<>();
+        try {
+            // A permit is due back within the timeout; twice that leaves room for the timeout timer to run late
+            if (!permits.tryAcquire(2 * timeoutMillis, TimeUnit.MILLISECONDS)) {
+                result.completeExceptionally(new TimeoutException(
+                        "Search for '" + familyName + "' found no free slot within " + 2 * timeoutMillis + " ms"));
+                return result;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+        AtomicBoolean permitHeld = new AtomicBoolean(true);
+        Runnable releasePermit = () -> {
+            if (permitHeld.compareAndSet(true, false)) {
+                permits.release();
+            }
+        };
+        Future<?> worker;
+        try {
+            worker = executor.submit(() -> {
+                try {
+                    result.complete(fhirClient.searchPatientsByLastName(familyName, disableCache));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    releasePermit.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releasePermit.run();
+            result.completeExceptionally(e);
+            return result;
+        }
+        ScheduledFuture<?> timer = timeoutScheduler.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException(
+                    "Search for '" + familyName + "' exceeded " + timeoutMillis + " ms"))) {
+                worker.cancel(true);
+                releasePermit.run();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        result.whenComplete((patients, error) -> timer.cancel(false));
+        return result;
+    }
+
+    /**
+     * Returns a virtual-thread-per-task executor when the JDK supports it (the semaphore bounds concurrency),
+     * otherwise a fixed pool with one platform thread per permitted search.
+     */
+    private static ExecutorService newExecutor(int concurrency) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("patient-search"));
+        }
+    }
+
+    /**
+     * Stops the executors. Searches still running are interrupted.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        timeoutScheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,60 @@
+package service;
+
+import org.hl7.fhir.r4.model.Patient;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the outcome of a parallel multi-name patient search.
+ * Successful searches and failed searches are kept apart, both keyed by the family name that was searched.
+ */
+public class ParallelSearchResult {
+
+    private final Map<String, List<Patient>> results = new LinkedHashMap<>();
+    private final Map<String, Throwable> failures = new LinkedHashMap<>();
+    private final long elapsedMillis;
+
+    /**
+     * Constructs a new ParallelSearchResult.
+     *
+     * @param results       patients found, keyed by family name
+     * @param failures      the error raised for every name that failed or timed out, keyed by family name
+     * @param elapsedMillis wall-clock time taken by the whole batch
+     */
+    public ParallelSearchResult(Map<String, List<Patient>> results, Map<String, Throwable> failures, long elapsedMillis) {
+        this.results.putAll(results);
+        this.failures.putAll(failures);
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return patients found for every name that completed successfully, in the order the names were given
+     */
+    public Map<String, List<Patient>> getResults() {
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * @return the error for every name that failed or timed out, in the order the names were given
+     */
+    public Map<String, Throwable> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return true if at least one name failed or timed out
+     */
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    /**
+     * @return wall-clock time taken by the whole batch, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+}
@@ -0,0 +1,355 @@
+package service;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Local in-memory index of patient names and birth dates, answering family name prefix searches the way the FHIR
+ * server's {@code family} search does (case and accent insensitive "starts with"), without a round trip.
+ * <p>
+ * The bulk of the index is an immutable segment of sorted arrays, one row per patient name:
+ * <ul>
+ *     <li>distinct family names, sorted by their normalized form, with the first row of each, so a prefix
+ *     search is a binary search followed by a scan of the matching rows;</li>
+ *     <li>per row an int offset into a byte pool holding the patient id and the given names (UTF-8, length
+ *     prefixed), and the birth date packed into an int as yyyymmdd.</li>
+ * </ul>
+ * Memory: 8 bytes of arrays per row plus the pooled id and given names (3 bytes of lengths plus their UTF-8 length),
+ * about 25-30 bytes for a typical name, plus roughly 60 bytes per distinct family name. One million patients with one
+ * name each fit in about 30 MB, where the HAPI model needs several KB per Patient.
+ * <p>
+ * Updates go to a small overlay keyed by patient id, which hides the patient's rows in the segment. When the overlay
+ * grows beyond a tenth of the segment it is merged into a new segment. The index is safe for concurrent searches
+ * while updates are applied; updates themselves are serialized.
+ */
+public class PatientIndex {
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final int MIN_OVERLAY_MERGE = 1024;
+    private static final String GIVEN_SEPARATOR = "\u001f";
+
+    private volatile State state = new State(Segment.EMPTY, Collections.emptyMap());
+
+    /**
+     * An immutable pairing of segment and overlay, swapped as a whole on every update.
+     */
+    private static final class State {
+        private final Segment segment;
+        private final Map<String, PatientSummary> overlay;
+
+        private State(Segment segment, Map<String, PatientSummary> overlay) {
+            this.segment = segment;
+            this.overlay = overlay;
+        }
+    }
+
+    /**
+     * Adds or replaces patients, matched on their id.
+     *
+     * @param patients the new or updated patients
+     */
+    public synchronized void upsert(Collection<PatientSummary> patients) {
+        if (patients.isEmpty()) {
+            return;
+        }
+        Map<String, PatientSummary> overlay = new HashMap<>(state.overlay);
+        for (PatientSummary patient : patients) {
+            overlay.put(patient.getId(), patient);
+        }
+        state = overlay.size() > Math.max(MIN_OVERLAY_MERGE, state.segment.rows() / 10)
+                ? new State(Segment.build(state.segment, overlay), Collections.emptyMap())
+                : new State(state.segment, overlay);
+    }
+
+    /**
+     * Merges the pending updates into the sorted segment, e.g. after the initial load.
+     */
+    public synchronized void compact() {
+        if (!state.overlay.isEmpty()) {
+            state = new State(Segment.build(state.segment, state.overlay), Collections.emptyMap());
+        }
+    }
+
+    /**
+     * Replaces the content of this index with that of another one, e.g. after a full reload.
+     *
+     * @param other the index whose content is taken over
+     */
+    synchronized void replaceWith(PatientIndex other) {
+        state = other.state;
+    }
+
+    /**
+     * Finds the patients with a family name starting with the prefix, ignoring case and accents.
+     * Each patient is returned once, with only its matching names.
+     *
+     * @param familyPrefix the family name or its beginning
+     * @return the matching patients, ordered by family name, followed by matches among the pending updates
+     */
+    public List<PatientSummary> searchByFamily(String familyPrefix) {
+        State current = state;
+        String prefix = normalize(familyPrefix);
+        Map<String, List<PatientSummary.Name>> names = new LinkedHashMap<>();
+        Map<String, String> birthDates = new HashMap<>();
+        current.segment.search(prefix, current.overlay, names, birthDates);
+        for (PatientSummary patient : current.overlay.values()) {
+            for (PatientSummary.Name name : patient.getNames()) {
+                if (name.getFamily() != null && normalize(name.getFamily()).startsWith(prefix)) {
+                    names.computeIfAbsent(patient.getId(), id -> new ArrayList<>()).add(name);
+                    birthDates.put(patient.getId(), patient.getBirthDate());
+                }
+            }
+        }
+        List<PatientSummary> patients = new ArrayList<>(names.size());
+        names.forEach((id, matching) -> patients.add(new PatientSummary(id, matching, birthDates.get(id))));
+        return patients;
+    }
+
+    /**
+     * @return the number of distinct patients in the index
+     */
+    public int size() {
+        State current = state;
+        return current.segment.patients - current.segment.countHidden(current.overlay) + current.overlay.size();
+    }
+
+    /**
+     * @return the approximate heap size of the sorted segment in bytes, excluding pending updates
+     */
+    public long getSegmentBytes() {
+        return state.segment.estimatedBytes();
+    }
+
+    /**
+     * Normalizes a name for matching: accents removed, upper-cased.
+     */
+    static String normalize(String name) {
+        return MARKS.matcher(Normalizer.normalize(name.trim(), Normalizer.Form.NFD)).replaceAll("").toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Packs a FHIR date (yyyy, yyyy-mm or yyyy-mm-dd) into yyyymmdd, with 0 for missing parts; 0 if absent or invalid.
+     */
+    static int packDate(String date) {
+        if (date == null || !date.matches("\\d{4}(-\\d{2}(-\\d{2})?)?")) {
+            return 0;
+        }
+        int packed = Integer.parseInt(date.substring(0, 4)) * 10000;
+        if (date.length() >= 7) packed += Integer.parseInt(date.substring(5, 7)) * 100;
+        if (date.length() == 10) packed += Integer.parseInt(date.substring(8, 10));
+        return packed;
+    }
+
+    static String unpackDate(int packed) {
+        if (packed == 0) {
+            return null;
+        }
+        int year = packed / 10000, month = packed / 100 % 100, day = packed % 100;
+        return month == 0 ? String.format("%04d", year)
+                : day == 0 ? String.format("%04d-%02d", year, month)
+                : String.format("%04d-%02d-%02d", year, month, day);
+    }
+
+    /**
+     * Immutable sorted arrays, one row per patient name.
+     */
+    private static final class Segment {
+        private static final Segment EMPTY = new Segment(new String[0], new String[0], new int[]{0}, new int[0], new int[0], new byte[0], 0);
+
+        private final String[] familyKeys;
+        private final String[] families;
+        private final int[] familyStart;
+        private final int[] poolOffsets;
+        private final int[] birthDates;
+        private final byte[] pool;
+        private final int patients;
+
+        private Segment(String[] familyKeys, String[] families, int[] familyStart, int[] poolOffsets, int[] birthDates,
+                        byte[] pool, int patients) {
+            this.familyKeys = familyKeys;
+            this.families = families;
+            this.familyStart = familyStart;
+            this.poolOffsets = poolOffsets;
+            this.birthDates = birthDates;
+            this.pool = pool;
+            this.patients = patients;
+        }
+
+        int rows() {
+            return poolOffsets.length;
+        }
+
+        /**
+         * Builds a new segment from the rows of this one, except those of patients in the overlay, plus the overlay.
+         */
+        static Segment build(Segment base, Map<String, PatientSummary> overlay) {
+            List<Row> rows = new ArrayList<>(base.rows() + overlay.size());
+            for (int family = 0; family < base.families.length; family++) {
+                for (int row = base.familyStart[family]; row < base.familyStart[family + 1]; row++) {
+                    String id = base.id(row);
+                    if (!overlay.containsKey(id)) {
+                        rows.add(new Row(base.familyKeys[family], base.families[family], id, base.given(row), base.birthDates[row]));
+                    }
+                }
+            }
+            for (PatientSummary patient : overlay.values()) {
+                int birthDate = packDate(patient.getBirthDate());
+                for (PatientSummary.Name name : patient.getNames()) {
+                    if (name.getFamily() != null) {
+                        rows.add(new Row(normalize(name.getFamily()), name.getFamily(), patient.getId(),
+                                String.join(GIVEN_SEPARATOR, name.getGiven()), birthDate));
+                    }
+                }
+            }
+            rows.sort(Comparator.comparing((Row row) -> row.familyKey).thenComparing(row -> row.family).thenComparing(row -> row.id));
+
+            List<String> familyKeys = new ArrayList<>();
+            List<String> families = new ArrayList<>();
+            int[] familyStart = new int[rows.size() + 1];
+            int[] poolOffsets = new int[rows.size()];
+            int[] birthDates = new int[rows.size()];
+            PoolWriter pool = new PoolWriter();
+            Set<String> ids = new HashSet<>();
+            for (int i = 0; i < rows.size(); i++) {
+                Row row = rows.get(i);
+                if (families.isEmpty() || !families.get(families.size() - 1).equals(row.family)) {
+                    familyStart[families.size()] = i;
+                    familyKeys.add(row.familyKey);
+                    families.add(row.family);
+                }
+                poolOffsets[i] = pool.write(row.id, row.given);
+                birthDates[i] = row.birthDate;
+                ids.add(row.id);
+            }
+            familyStart[families.size()] = rows.size();
+            return new Segment(familyKeys.toArray(new String[0]), families.toArray(new String[0]),
+                    Arrays.copyOf(familyStart, families.size() + 1), poolOffsets, birthDates, pool.toArray(), ids.size());
+        }
+
+        void search(String prefix, Map<String, PatientSummary> hidden, Map<String, List<PatientSummary.Name>> names,
+                    Map<String, String> birthDatesById) {
+            int family = lowerBound(prefix);
+            for (; family < familyKeys.length && familyKeys[family].startsWith(prefix); family++) {
+                for (int row = familyStart[family]; row < familyStart[family + 1]; row++) {
+                    String id = id(row);
+                    if (hidden.containsKey(id)) {
+                        continue;
+                    }
+                    String given = given(row);
+                    names.computeIfAbsent(id, key -> new ArrayList<>()).add(new PatientSummary.Name(families[family],
+                            given.isEmpty() ? Collections.emptyList() : Arrays.asList(given.split(GIVEN_SEPARATOR))));
+                    birthDatesById.put(id, unpackDate(birthDates[row]));
+                }
+            }
+        }
+
+        int countHidden(Map<String, PatientSummary> overlay) {
+            if (overlay.isEmpty()) {
+                return 0;
+            }
+            Set<String> hidden = new HashSet<>();
+            for (int row = 0; row < rows(); row++) {
+                String id = id(row);
+                if (overlay.containsKey(id)) hidden.add(id);
+            }
+            return hidden.size();
+        }
+
+        long estimatedBytes() {
+            long bytes = 4L * (familyStart.length + poolOffsets.length + birthDates.length) + pool.length;
+            for (int i = 0; i < families.length; i++) {
+                // String object and its array for both the key and the display name, shared when equal
+                bytes += 56 + families[i].length() + (familyKeys[i].equals(families[i]) ? 0 : 56 + familyKeys[i].length());
+            }
+            return bytes;
+        }
+
+        private int lowerBound(String key) {
+            int low = 0, high = familyKeys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (familyKeys[mid].compareTo(key) < 0) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        private String id(int row) {
+            int offset = poolOffsets[row];
+            return new String(pool, offset + 1, pool[offset] & 0xff, StandardCharsets.UTF_8);
+        }
+
+        private String given(int row) {
+            int offset = poolOffsets[row];
+            offset += 1 + (pool[offset] & 0xff);
+            int length = (pool[offset] & 0xff) << 8 | pool[offset + 1] & 0xff;
+            return new String(pool, offset + 2, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Row {
+        private final String familyKey;
+        private final String family;
+        private final String id;
+        private final String given;
+        private final int birthDate;
+
+        private Row(String familyKey, String family, String id, String given, int birthDate) {
+            this.familyKey = familyKey;
+            this.family = family;
+            this.id = id;
+            this.given = given;
+            this.birthDate = birthDate;
+        }
+    }
+
+    /**
+     * Appends length-prefixed id (1 byte length, FHIR ids are at most 64 characters) and given names (2 byte length).
+     */
+    private static final class PoolWriter {
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        int write(String id, String given) {
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            byte[] givenBytes = given.getBytes(StandardCharsets.UTF_8);
+            if (idBytes.length > 255) {
+                throw new IllegalArgumentException("Patient id longer than 255 bytes: " + id);
+            }
+            int givenLength = Math.min(givenBytes.length, 0xffff);
+            ensure(3 + idBytes.length + givenLength);
+            int offset = size;
+            bytes[size++] = (byte) idBytes.length;
+            System.arraycopy(idBytes, 0, bytes, size, idBytes.length);
+            size += idBytes.length;
+            bytes[size++] = (byte) (givenLength >>> 8);
+            bytes[size++] = (byte) givenLength;
+            System.arraycopy(givenBytes, 0, bytes, size, givenLength);
+            size += givenLength;
+            return offset;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package service;
+
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills a {@link PatientIndex} from the FHIR server and keeps it fresh.
+ * The first sync loads all patients; later ones fetch only the patients changed since the previous sync, with
+ * {@code _lastUpdated=ge<time>}. Only id, names and birth date are requested (_elements) and they are streamed
+ * straight into the index, so no HAPI resources are built.
+ * <p>
+ * The time of a sync is taken before its request is sent and moved back by a margin for clock skew between client
+ * and server; patients seen twice because of that overlap are simply replaced. Deleted patients are not reported by a
+ * {@code _lastUpdated} search and stay in the index until the next full {@link #load()}.
+ */
+public class PatientIndexSync implements AutoCloseable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(PatientIndexSync.class);
+
+    private static final Duration CLOCK_SKEW_MARGIN = Duration.ofMinutes(1);
+    private static final int UPSERT_BATCH = 10_000;
+
+    private final FhirClient fhirClient;
+    private final PatientIndex index;
+    private final Clock clock;
+    private Instant lastSync;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructs a new PatientIndexSync with an empty index.
+     *
+     * @param fhirClient client used to fetch the patients
+     */
+    public PatientIndexSync(FhirClient fhirClient) {
+        this(fhirClient, new PatientIndex(), Clock.systemUTC());
+    }
+
+    PatientIndexSync(FhirClient fhirClient, PatientIndex index, Clock clock) {
+        this.fhirClient = fhirClient;
+        this.index = index;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the index kept in sync
+     */
+    public PatientIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the time the patients were last fetched up to, or null before the first sync
+     */
+    public synchronized Instant getLastSync() {
+        return lastSync;
+    }
+
+    /**
+     * Loads all patients from the server, replacing the content of the index once complete.
+     *
+     * @return the number of patients fetched
+     */
+    public synchronized int load() {
+        return fetch(null);
+    }
+
+    /**
+     * Fetches the patients changed since the previous sync into the index, or all patients on the first call.
+     *
+     * @return the number of patients fetched
+     */
+    public synchronized int sync() {
+        return fetch(lastSync);
+    }
+
+    /**
+     * Syncs at a fixed rate on a background daemon thread, until {@link #close()} is called. Failed syncs are logged
+     * and retried at the next run, from the same point in time.
+     *
+     * @param period time between two syncs
+     * @param unit   unit of the period
+     */
+    public synchronized void startSync(long period, TimeUnit unit) {
+        close();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("patient-index-sync"));
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                sync();
+            } catch (RuntimeException e) {
+                log.warn("Error syncing patient index::{}", e.getMessage(), e);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops the background sync.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private int fetch(Instant since) {
+        Instant started = clock.instant();
+        long start = System.nanoTime();
+        String query = "_elements=name,birthDate";
+        if (since != null) {
+            query += "&_lastUpdated=ge" + BatchBundles.encode(since.minus(CLOCK_SKEW_MARGIN).truncatedTo(ChronoUnit.SECONDS).toString());
+        }
+        // A full load builds a new index, so searches keep using the current one until it is complete
+        PatientIndex target = since == null ? new PatientIndex() : index;
+        List<PatientSummary> batch = new ArrayList<>();
+        int fetched = fhirClient.streamPatientSummaries(query, Integer.MAX_VALUE, patient -> {
+            batch.add(patient);
+            if (batch.size() == UPSERT_BATCH) {
+                target.upsert(batch);
+                batch.clear();
+            }
+        });
+        target.upsert(batch);
+        if (since == null) {
+            target.compact();
+            index.replaceWith(target);
+        }
+        lastSync = started;
+        log.info("{} patient index: {} patients fetched in {} ms, {} patients indexed",
+                since == null ? "Loaded" : "Synced", fetched, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), index.size());
+        return fetched;
+    }
+}
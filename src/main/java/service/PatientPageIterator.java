@@ -0,0 +1,114 @@
+package service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+/**
+ * Iterates over the patients of a paged search result, following the Bundle "next" links on demand.
+ * While the caller works through page N, page N+1 is already being fetched in the background, so at most two
+ * pages are held in memory regardless of the total number of matches.
+ */
+public class PatientPageIterator implements Iterator<Patient>, AutoCloseable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(PatientPageIterator.class);
+
+    private final UnaryOperator<Bundle> nextPageLoader;
+    private final Executor prefetchExecutor;
+    private Iterator<Bundle.BundleEntryComponent> currentPage;
+    private CompletableFuture<Bundle> nextPage;
+    private Patient nextPatient;
+    private int remaining;
+    private int pagesLoaded;
+
+    /**
+     * Constructs a new PatientPageIterator and starts prefetching the second page.
+     *
+     * @param firstPage        the first page of the search result
+     * @param nextPageLoader   loads the page the "next" link of the given Bundle points to
+     * @param prefetchExecutor executor the next page is fetched on
+     * @param maxResults       maximum number of patients returned before iteration stops
+     */
+    PatientPageIterator(Bundle firstPage, UnaryOperator<Bundle> nextPageLoader, Executor prefetchExecutor, int maxResults) {
+        this.nextPageLoader = nextPageLoader;
+        this.prefetchExecutor = prefetchExecutor;
+        this.remaining = maxResults;
+        this.currentPage = Collections.emptyIterator();
+        this.nextPage = CompletableFuture.completedFuture(firstPage);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextPatient == null && remaining > 0) {
+            if (currentPage.hasNext()) {
+                Bundle.BundleEntryComponent entry = currentPage.next();
+                if (entry.getResource() instanceof Patient) {
+                    nextPatient = (Patient) entry.getResource();
+                }
+            } else if (nextPage != null) {
+                advancePage();
+            } else {
+                break;
+            }
+        }
+        return nextPatient != null;
+    }
+
+    @Override
+    public Patient next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Patient patient = nextPatient;
+        nextPatient = null;
+        remaining--;
+        return patient;
+    }
+
+    /**
+     * Switches to the prefetched page and starts fetching the one after it, if there is one.
+     */
+    private void advancePage() {
+        Bundle page;
+        try {
+            page = nextPage.join();
+        } catch (CompletionException e) {
+            nextPage = null;
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        pagesLoaded++;
+        currentPage = page.getEntry().iterator();
+        if (page.getLink(Bundle.LINK_NEXT) != null && remaining > page.getEntry().size()) {
+            nextPage = CompletableFuture.supplyAsync(() -> nextPageLoader.apply(page), prefetchExecutor);
+        } else {
+            nextPage = null;
+        }
+        log.debug("Loaded page {} with {} entries", pagesLoaded, page.getEntry().size());
+    }
+
+    /**
+     * @return the number of pages consumed so far
+     */
+    public int getPagesLoaded() {
+        return pagesLoaded;
+    }
+
+    /**
+     * Stops iteration and abandons any page still being prefetched.
+     */
+    @Override
+    public void close() {
+        if (nextPage != null) {
+            nextPage.cancel(false);
+            nextPage = null;
+        }
+        remaining = 0;
+    }
+}
@@ -0,0 +1,93 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact, immutable view of a Patient holding only what the search reports need: id, names and birth date.
+ * Produced by {@link PatientSummaryParser} straight from the response JSON, without building the HAPI resource tree.
+ */
+public final class PatientSummary {
+    private final String id;
+    private final List<Name> names;
+    private final String birthDate;
+
+    /**
+     * @param id        the logical id of the patient
+     * @param names     the names of the patient, in resource order
+     * @param birthDate the birth date as sent by the server (yyyy, yyyy-mm or yyyy-mm-dd), or null
+     */
+    public PatientSummary(String id, List<Name> names, String birthDate) {
+        this.id = id;
+        this.names = Collections.unmodifiableList(new ArrayList<>(names));
+        this.birthDate = birthDate;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<Name> getNames() {
+        return names;
+    }
+
+    public String getBirthDate() {
+        return birthDate;
+    }
+
+    /**
+     * @param familyName a family name, compared case insensitive
+     * @return the first name entry with the family name, or null if the patient has none
+     */
+    public Name getNameWithFamily(String familyName) {
+        for (Name name : names) {
+            if (familyName.equalsIgnoreCase(name.getFamily())) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "PatientSummary[" + id + ", " + names + ", " + birthDate + "]";
+    }
+
+    /**
+     * A single HumanName reduced to family and given names.
+     */
+    public static final class Name {
+        private final String family;
+        private final List<String> given;
+
+        /**
+         * @param family the family name, or null
+         * @param given  the given names, in order
+         */
+        public Name(String family, List<String> given) {
+            this.family = family;
+            this.given = Collections.unmodifiableList(new ArrayList<>(given));
+        }
+
+        public String getFamily() {
+            return family;
+        }
+
+        public List<String> getGiven() {
+            return given;
+        }
+
+        /**
+         * @return the first given name, or null if there is none
+         */
+        public String getFirstGiven() {
+            return given.isEmpty() ? null : given.get(0);
+        }
+
+        @Override
+        public String toString() {
+            return given + " " + family;
+        }
+    }
+}
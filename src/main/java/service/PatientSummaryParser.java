@@ -0,0 +1,171 @@
+package service;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Streams a searchset Bundle in FHIR JSON and emits one {@link PatientSummary} per Patient entry as soon as the
+ * entry has been read. Only id, name and birthDate are kept; every other element is skipped token by token,
+ * so neither the full document nor a resource tree is ever held in memory.
+ */
+public class PatientSummaryParser {
+
+    private static final String PATIENT = "Patient";
+
+    /**
+     * Parses a searchset Bundle.
+     *
+     * @param json     reader positioned at the start of the Bundle JSON
+     * @param consumer receives each Patient entry as it is parsed
+     * @return the URL of the Bundle's "next" link, or null if this is the last page
+     * @throws IOException if the JSON cannot be read or is malformed
+     */
+    public String parse(Reader json, Consumer<PatientSummary> consumer) throws IOException {
+        String nextLink = null;
+        try (JsonReader reader = new JsonReader(json)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "link":
+                        nextLink = readNextLink(reader, nextLink);
+                        break;
+                    case "entry":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            readEntry(reader, consumer);
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return nextLink;
+    }
+
+    /**
+     * Parses a single resource, e.g. one line of an NDJSON file.
+     *
+     * @param json reader positioned at the start of the resource JSON
+     * @return the summary, or null if the resource is not a Patient
+     * @throws IOException if the JSON cannot be read or is malformed
+     */
+    public PatientSummary parseResource(Reader json) throws IOException {
+        try (JsonReader reader = new JsonReader(json)) {
+            return readResource(reader);
+        }
+    }
+
+    private static String readNextLink(JsonReader reader, String nextLink) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String relation = null;
+            String url = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("relation".equals(name)) {
+                    relation = nextString(reader);
+                } else if ("url".equals(name)) {
+                    url = nextString(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if ("next".equals(relation)) {
+                nextLink = url;
+            }
+        }
+        reader.endArray();
+        return nextLink;
+    }
+
+    private static void readEntry(JsonReader reader, Consumer<PatientSummary> consumer) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("resource".equals(reader.nextName())) {
+                PatientSummary patient = readResource(reader);
+                if (patient != null) {
+                    consumer.accept(patient);
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reads one resource object. resourceType is usually the first member but JSON does not guarantee it,
+     * so the fields are collected first and the type is checked at the end.
+     */
+    private static PatientSummary readResource(JsonReader reader) throws IOException {
+        String resourceType = null;
+        String id = null;
+        String birthDate = null;
+        List<PatientSummary.Name> names = new ArrayList<>(2);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("resourceType".equals(name)) {
+                resourceType = nextString(reader);
+            } else if (resourceType != null && !PATIENT.equals(resourceType)) {
+                reader.skipValue();
+            } else if ("id".equals(name)) {
+                id = nextString(reader);
+            } else if ("birthDate".equals(name)) {
+                birthDate = nextString(reader);
+            } else if ("name".equals(name)) {
+                readNames(reader, names);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return PATIENT.equals(resourceType) ? new PatientSummary(id, names, birthDate) : null;
+    }
+
+    private static void readNames(JsonReader reader, List<PatientSummary.Name> names) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String family = null;
+            List<String> given = new ArrayList<>(1);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("family".equals(name)) {
+                    family = nextString(reader);
+                } else if ("given".equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String value = nextString(reader);
+                        if (value != null) given.add(value);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            names.add(new PatientSummary.Name(family, given));
+        }
+        reader.endArray();
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
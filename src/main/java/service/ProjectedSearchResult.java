@@ -0,0 +1,31 @@
+package service;
+
+import interceptor.PayloadStats;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.util.List;
+
+/**
+ * The patients returned by a projected search, together with the transfer and parse figures of the response.
+ */
+public class ProjectedSearchResult {
+    private final List<Patient> patients;
+    private final PayloadStats stats;
+
+    /**
+     * @param patients the patients found, carrying only the projected elements
+     * @param stats    bytes on the wire, content encoding, network and parse time of the response
+     */
+    public ProjectedSearchResult(List<Patient> patients, PayloadStats stats) {
+        this.patients = patients;
+        this.stats = stats;
+    }
+
+    public List<Patient> getPatients() {
+        return patients;
+    }
+
+    public PayloadStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,164 @@
+package service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import interceptor.RecordedExchange;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FHIR server on localhost that replays exchanges recorded by {@link interceptor.RecordingInterceptor}, so searches
+ * recorded against a real server can be repeated offline, with the same results and latencies every run.
+ * <p>
+ * Requests are matched on method, path and query parameters in any order. A request recorded several times is
+ * answered with its recordings in turn, round robin. Each response is sent after its recorded latency times the
+ * latency scale: 1 replays the original timing, 0 answers at once. The capability statement is served if it was not
+ * recorded; any other unknown request gets a 404 with an OperationOutcome.
+ */
+public class ReplayFhirServer implements Closeable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(ReplayFhirServer.class);
+
+    private static final String NOT_RECORDED = "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\","
+            + "\"code\":\"not-found\",\"diagnostics\":\"Request was not recorded\"}]}";
+
+    static {
+        StubFhirServer.enableNoDelay();
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("replay-fhir"));
+    private final Map<String, List<RecordedExchange>> recordings = new HashMap<>();
+    private final Map<String, AtomicInteger> cursors = new HashMap<>();
+    private final double latencyScale;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+
+    /**
+     * Starts the server on a free port of 127.0.0.1.
+     *
+     * @param exchanges    the exchanges to replay
+     * @param latencyScale factor applied to the recorded latencies, e.g. 0.1 for a ten times faster server
+     * @throws IOException if the server cannot be started
+     */
+    public ReplayFhirServer(List<RecordedExchange> exchanges, double latencyScale) throws IOException {
+        if (latencyScale < 0) {
+            throw new IllegalArgumentException("Latency scale must not be negative, was " + latencyScale);
+        }
+        this.latencyScale = latencyScale;
+        for (RecordedExchange exchange : exchanges) {
+            String key = key(exchange.getMethod(), exchange.getPath());
+            recordings.computeIfAbsent(key, k -> new ArrayList<>()).add(exchange);
+            cursors.putIfAbsent(key, new AtomicInteger());
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir", this::replay);
+        server.setExecutor(executor);
+        server.start();
+        log.info("Replay FHIR server listening on {} with {} recorded exchanges", getBaseUrl(), exchanges.size());
+    }
+
+    /**
+     * Starts a server replaying a file written by {@link interceptor.RecordingInterceptor}.
+     *
+     * @param file         the replay file
+     * @param latencyScale factor applied to the recorded latencies
+     * @return the started server
+     * @throws IOException if the file cannot be read or the server cannot be started
+     */
+    public static ReplayFhirServer fromFile(Path file, double latencyScale) throws IOException {
+        return new ReplayFhirServer(RecordedExchange.readAll(file), latencyScale);
+    }
+
+    /**
+     * @return the base URL to point a {@link FhirClient} at
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    /**
+     * @return the number of requests received so far
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests that matched no recording
+     */
+    public long getUnmatched() {
+        return unmatched.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void replay(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String path = exchange.getRequestURI().getRawPath().substring("/fhir".length());
+        String query = exchange.getRequestURI().getRawQuery();
+        String key = key(exchange.getRequestMethod(), query == null ? path : path + "?" + query);
+        List<RecordedExchange> recorded = recordings.get(key);
+        if (recorded == null) {
+            if ("/metadata".equals(path)) {
+                respond(exchange, 200, Map.of("Content-Type", "application/fhir+json"), StubFhirServer.CAPABILITY_STATEMENT);
+                return;
+            }
+            unmatched.incrementAndGet();
+            log.debug("No recording for {}", key);
+            respond(exchange, 404, Map.of("Content-Type", "application/fhir+json"), NOT_RECORDED);
+            return;
+        }
+        RecordedExchange response = recorded.get(Math.floorMod(cursors.get(key).getAndIncrement(), recorded.size()));
+        long delayNanos = (long) (TimeUnit.MICROSECONDS.toNanos(response.getLatencyMicros()) * latencyScale);
+        long deadline = System.nanoTime() + delayNanos;
+        for (long wait = delayNanos; wait > 0; wait = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(wait);
+        }
+        respond(exchange, response.getStatus(), response.getHeaders(), response.getBody());
+    }
+
+    private static void respond(HttpExchange exchange, int status, Map<String, String> headers, String body) throws IOException {
+        headers.forEach(exchange.getResponseHeaders()::add);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        // 304 and 204 carry no body at all; any other empty body is sent chunked, as length 0
+        boolean noBody = status == 304 || status == 204;
+        exchange.sendResponseHeaders(status, noBody ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (!noBody) out.write(bytes);
+        }
+    }
+
+    /**
+     * Method and path with the query parameters sorted, so a request matches whatever order its client put them in.
+     */
+    static String key(String method, String path) {
+        int question = path.indexOf('?');
+        if (question < 0) {
+            return method + " " + path;
+        }
+        String[] parameters = path.substring(question + 1).split("&");
+        Arrays.sort(parameters);
+        return method + " " + path.substring(0, question) + "?" + String.join("&", parameters);
+    }
+}
@@ -0,0 +1,57 @@
+package service;
+
+import ca.uhn.fhir.rest.api.SummaryEnum;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Declares which parts of a resource a search needs, so the server can leave the rest out of the response.
+ * Either a list of elements (_elements) or a summary mode (_summary) is requested.
+ */
+public class SearchProjection {
+
+    /** The elements FhirHelper reads: given and family name, and birth date. */
+    public static final SearchProjection NAME_AND_BIRTH_DATE = elements("name", "birthDate");
+
+    /** No projection, the server returns full resources. */
+    public static final SearchProjection FULL = new SearchProjection(Collections.emptyList(), null);
+
+    private final List<String> elements;
+    private final SummaryEnum summary;
+
+    private SearchProjection(List<String> elements, SummaryEnum summary) {
+        this.elements = elements;
+        this.summary = summary;
+    }
+
+    /**
+     * @param elements top-level element names of the resource, e.g. "name", "birthDate"
+     * @return a projection requesting only the given elements through _elements
+     */
+    public static SearchProjection elements(String... elements) {
+        return new SearchProjection(Collections.unmodifiableList(Arrays.asList(elements)), null);
+    }
+
+    /**
+     * @param summary the summary mode, e.g. SummaryEnum.TRUE for the elements marked as summary in the specification
+     * @return a projection requesting a summary through _summary
+     */
+    public static SearchProjection summary(SummaryEnum summary) {
+        return new SearchProjection(Collections.emptyList(), summary);
+    }
+
+    public List<String> getElements() {
+        return elements;
+    }
+
+    public SummaryEnum getSummary() {
+        return summary;
+    }
+
+    @Override
+    public String toString() {
+        return summary != null ? "_summary=" + summary.getCode() : elements.isEmpty() ? "full" : "_elements=" + String.join(",", elements);
+    }
+}
@@ -0,0 +1,212 @@
+package service;
+
+import org.hl7.fhir.r4.model.Patient;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process cache for search results, placed in front of the FHIR server.
+ * Entries are keyed on resource type plus normalized search parameters, evicted least-recently-used once the
+ * maximum size is reached, and considered stale once older than the TTL. Stale entries are kept together with the
+ * ETag / Last-Modified validators of their response, so they can be revalidated with a conditional request.
+ */
+public class SearchResultCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final Map<String, Entry> entries;
+
+    // Counters
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructs a new SearchResultCache.
+     *
+     * @param maxEntries maximum number of search results kept before the least recently used one is evicted
+     * @param ttlMillis  time after which an entry is stale and must be revalidated
+     */
+    public SearchResultCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, System::nanoTime);
+    }
+
+    SearchResultCache(int maxEntries, long ttlMillis, LongSupplier nanoClock) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.nanoClock = nanoClock;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SearchResultCache.Entry> eldest) {
+                boolean evict = size() > SearchResultCache.this.maxEntries;
+                if (evict) evictions.incrementAndGet();
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Builds the cache key for a search. Parameter names are sorted and values trimmed and upper-cased,
+     * so "Patient?family=smith " and "Patient?family=SMITH" share one entry.
+     *
+     * @param resourceType the resource type searched, e.g. Patient
+     * @param parameters   the search parameters
+     * @return the normalized cache key
+     */
+    public static String key(String resourceType, Map<String, String> parameters) {
+        StringBuilder key = new StringBuilder(resourceType).append('?');
+        new TreeMap<>(parameters).forEach((name, value) ->
+                key.append(name).append('=').append(value == null ? "" : value.trim().toUpperCase()).append('&'));
+        return key.toString();
+    }
+
+    /**
+     * Returns the entry for the key, fresh or stale, without touching the hit/miss counters.
+     *
+     * @param key the cache key
+     * @return the entry, or null if nothing is cached for the key
+     */
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Stores a search result, replacing any previous entry for the key.
+     *
+     * @param key          the cache key
+     * @param patients     the search result
+     * @param etag         the ETag response header, may be null
+     * @param lastModified the Last-Modified response header, may be null
+     */
+    public synchronized void put(String key, List<Patient> patients, String etag, String lastModified) {
+        entries.put(key, new Entry(new ArrayList<>(patients), etag, lastModified, nanoClock.getAsLong()));
+    }
+
+    /**
+     * Stores a search result that is already {@code ageMillis} old, e.g. one loaded from a snapshot on disk,
+     * replacing any previous entry for the key.
+     *
+     * @param key          the cache key
+     * @param patients     the patients found
+     * @param etag         ETag of the response, or null
+     * @param lastModified Last-Modified of the response, or null
+     * @param ageMillis    time since the result was fetched
+     */
+    public synchronized void put(String key, List<Patient> patients, String etag, String lastModified, long ageMillis) {
+        entries.put(key, new Entry(new ArrayList<>(patients), etag, lastModified,
+                nanoClock.getAsLong() - TimeUnit.MILLISECONDS.toNanos(ageMillis)));
+    }
+
+    /**
+     * Marks a stale entry as fresh again after the server answered 304 Not Modified.
+     *
+     * @param key the cache key
+     */
+    public synchronized void revalidated(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.storedAt = nanoClock.getAsLong();
+        }
+        revalidations.incrementAndGet();
+    }
+
+    /**
+     * @param entry a cached entry
+     * @return true if the entry is younger than the TTL
+     */
+    public boolean isFresh(Entry entry) {
+        return nanoClock.getAsLong() - entry.storedAt < ttlNanos;
+    }
+
+    /** Counts a lookup answered from the cache. */
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    /** Counts a lookup that needed a full fetch. */
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of 304 Not Modified answers, each of which is also counted as a hit
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Drops all entries. Counters are kept. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "SearchResultCache[size=" + size() + ", hits=" + hits + ", misses=" + misses
+                + ", revalidations=" + revalidations + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * A cached search result together with the validators of the response it came from.
+     */
+    public static class Entry {
+        private final List<Patient> patients;
+        private final String etag;
+        private final String lastModified;
+        private volatile long storedAt;
+
+        private Entry(List<Patient> patients, String etag, String lastModified, long storedAt) {
+            this.patients = patients;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+        }
+
+        /**
+         * @return a copy of the cached result, so callers can sort it without affecting the cache
+         */
+        public List<Patient> getPatients() {
+            return new ArrayList<>(patients);
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return true if the entry can be revalidated with a conditional request
+         */
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package service;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Persistent store of search results, so a restarted client begins with a warm cache.
+ * <p>
+ * The file is NDJSON, one line per stored result, appended through a {@link FileChannel}:
+ * <pre>{"key":"http://hapi.fhir.org/baseR4/Patient?family=SMITH&amp;","storedAt":1700000000000,"etag":"W/\"3\"","lastModified":null,"bundle":{...}}</pre>
+ * Storing a key again appends a new line that supersedes the earlier ones. The file is read lazily: the first lookup
+ * scans only the line headers to index key, timestamp and position, and a Bundle is parsed only when its key is
+ * looked up. Once more than half of the file is superseded lines, it is compacted into a temporary file that atomically
+ * replaces the original, so a crash leaves either the old or the new file. A torn last line from an interrupted write
+ * is dropped on load.
+ * <p>
+ * The store is a cache: I/O errors are logged and reported as a miss, never thrown to the searching caller.
+ * One store instance must own a file at a time, since appends and compaction are only serialized within an instance;
+ * clients get it through {@link #shared(Path, FhirContext)}, which hands out one store per file for the process.
+ */
+public class SearchSnapshotStore implements Closeable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SearchSnapshotStore.class);
+
+    private static final byte[] BUNDLE_FIELD = ",\"bundle\":".getBytes(StandardCharsets.UTF_8);
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+    private static final Map<Path, SearchSnapshotStore> SHARED = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final FhirContext fhirContext;
+    private final LongSupplier clock;
+    private final Map<String, Record> index = new HashMap<>();
+    private FileChannel channel;
+    private long liveBytes;
+
+    /**
+     * Constructs a new SearchSnapshotStore. The file is not touched until the first lookup or store.
+     *
+     * @param file        the snapshot file, created on the first store
+     * @param fhirContext context used to encode and parse the stored Bundles
+     */
+    public SearchSnapshotStore(Path file, FhirContext fhirContext) {
+        this(file, fhirContext, System::currentTimeMillis);
+    }
+
+    SearchSnapshotStore(Path file, FhirContext fhirContext, LongSupplier clock) {
+        this.file = file;
+        this.fhirContext = fhirContext;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the store of the file shared by all clients of the process, creating it on first use. Paths naming the
+     * same file, e.g. relative and absolute, get the same store. Shared stores are never closed by their users.
+     *
+     * @param file        the snapshot file
+     * @param fhirContext context used to encode and parse the stored Bundles
+     * @return the store of the file
+     */
+    public static SearchSnapshotStore shared(Path file, FhirContext fhirContext) {
+        return SHARED.computeIfAbsent(file.toAbsolutePath().normalize(), path -> new SearchSnapshotStore(path, fhirContext));
+    }
+
+    /**
+     * Returns the stored result for the key, parsing its Bundle from the file.
+     *
+     * @param key the cache key
+     * @return the stored result, or null if nothing is stored for the key or it cannot be read
+     */
+    public synchronized Snapshot get(String key) {
+        try {
+            open();
+            Record record = index.get(key);
+            if (record == null) {
+                return null;
+            }
+            Bundle parsed = fhirContext.newJsonParser().parseResource(Bundle.class, new ByteArrayInputStream(readBundle(record)));
+            return new Snapshot(FhirClient.toPatients(parsed), record.etag, record.lastModified, record.storedAt, clock.getAsLong());
+        } catch (IOException | RuntimeException e) {
+            log.warn("Error reading search snapshot for {} from {}: {}", key, file, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a search result with the current time, replacing any previous result for the key.
+     *
+     * @param key          the cache key
+     * @param patients     the patients found
+     * @param etag         ETag of the response, or null
+     * @param lastModified Last-Modified of the response, or null
+     */
+    public synchronized void put(String key, List<Patient> patients, String etag, String lastModified) {
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+        patients.forEach(patient -> bundle.addEntry().setResource(patient));
+        append(key, etag, lastModified, fhirContext.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stores the result for the key again with the current time, e.g. after the server confirmed it is unchanged.
+     * The Bundle is copied as stored, without parsing it.
+     *
+     * @param key the cache key
+     */
+    public synchronized void touch(String key) {
+        try {
+            open();
+            Record record = index.get(key);
+            if (record != null) {
+                append(key, record.etag, record.lastModified, readBundle(record));
+            }
+        } catch (IOException e) {
+            log.warn("Error refreshing search snapshot for {} in {}: {}", key, file, e.toString());
+        }
+    }
+
+    /**
+     * Rewrites the file with only the latest line for each key, then atomically replaces the original with it.
+     */
+    public synchronized void compact() {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try {
+            open();
+            Map<String, Record> moved = new HashMap<>();
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                for (Map.Entry<String, Record> entry : index.entrySet()) {
+                    Record record = entry.getValue();
+                    long copied = 0;
+                    while (copied < record.lineLength) {
+                        copied += channel.transferTo(record.lineOffset + copied, record.lineLength - copied, out);
+                    }
+                    moved.put(entry.getKey(), record.movedTo(position));
+                    position += record.lineLength;
+                }
+                out.force(true);
+            }
+            long before = channel.size();
+            channel.close();
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index.clear();
+            index.putAll(moved);
+            liveBytes = channel.size();
+            log.info("Compacted search snapshot {} from {} to {} bytes", file, before, channel.size());
+        } catch (IOException e) {
+            log.warn("Error compacting search snapshot {}: {}", file, e.toString());
+            close();
+        }
+    }
+
+    /**
+     * @return the number of keys stored
+     */
+    public synchronized int size() {
+        try {
+            open();
+        } catch (IOException e) {
+            log.warn("Error opening search snapshot {}: {}", file, e.toString());
+        }
+        return index.size();
+    }
+
+    /**
+     * @return the size of the file in bytes, including superseded lines
+     */
+    public synchronized long getFileSize() {
+        try {
+            open();
+            return channel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Closes the file. The next lookup or store opens and indexes it again.
+     */
+    @Override
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Error closing search snapshot {}: {}", file, e.toString());
+            }
+            channel = null;
+        }
+        index.clear();
+        liveBytes = 0;
+    }
+
+    private void append(String key, String etag, String lastModified, byte[] bundle) {
+        try {
+            open();
+            StringWriter header = new StringWriter();
+            long storedAt = clock.getAsLong();
+            JsonWriter writer = new JsonWriter(header);
+            writer.setSerializeNulls(true);
+            writer.beginObject()
+                    .name("key").value(key)
+                    .name("storedAt").value(storedAt)
+                    .name("etag").value(etag)
+                    .name("lastModified").value(lastModified);
+            // The object is left open (and the writer unclosed): the Bundle follows as raw JSON
+            writer.flush();
+            byte[] head = header.toString().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer line = ByteBuffer.allocate(head.length + BUNDLE_FIELD.length + bundle.length + 2);
+            line.put(head).put(BUNDLE_FIELD).put(bundle).put((byte) '}').put((byte) '\n').flip();
+            long offset = channel.size();
+            while (line.hasRemaining()) {
+                channel.write(line, offset + line.position());
+            }
+            Record previous = index.put(key, new Record(key, offset, line.limit(), offset + head.length + BUNDLE_FIELD.length,
+                    bundle.length, storedAt, etag, lastModified));
+            liveBytes += line.limit() - (previous == null ? 0 : previous.lineLength);
+            compactIfMostlySuperseded();
+        } catch (IOException e) {
+            log.warn("Error writing search snapshot for {} to {}: {}", key, file, e.toString());
+        }
+    }
+
+    private byte[] readBundle(Record record) throws IOException {
+        ByteBuffer bundle = ByteBuffer.allocate(record.bundleLength);
+        while (bundle.hasRemaining()) {
+            if (channel.read(bundle, record.bundleOffset + bundle.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        return bundle.array();
+    }
+
+    private void compactIfMostlySuperseded() throws IOException {
+        long size = channel.size();
+        if (size >= MIN_COMPACTION_BYTES && liveBytes < size / 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Opens the file and indexes its lines on first use.
+     */
+    private void open() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long start = System.nanoTime();
+        try {
+            long end = scan();
+            if (end < channel.size()) {
+                log.warn("Dropping {} bytes of incomplete data at the end of search snapshot {}", channel.size() - end, file);
+                channel.truncate(end);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        log.debug("Indexed {} search snapshots from {} in {} ms", index.size(), file, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Indexes every complete line and returns the offset after the last one.
+     */
+    private long scan() throws IOException {
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(0)), 64 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long offset = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            byte[] bytes = line.toByteArray();
+            Record record = parseHeader(bytes, offset);
+            if (record != null) {
+                Record previous = index.put(record.key, record);
+                liveBytes += record.lineLength - (previous == null ? 0 : previous.lineLength);
+            } else {
+                log.warn("Skipping unreadable line at offset {} of search snapshot {}", offset, file);
+            }
+            offset += bytes.length + 1;
+            line.reset();
+        }
+        return offset;
+    }
+
+    /**
+     * Reads key, timestamp and validators from the line, which precede the Bundle, without parsing the Bundle.
+     */
+    private static Record parseHeader(byte[] line, long offset) {
+        int bundleField = indexOf(line, BUNDLE_FIELD);
+        if (bundleField < 0 || line.length < 2 || line[line.length - 1] != '}') {
+            return null;
+        }
+        byte[] header = new byte[bundleField + 1];
+        System.arraycopy(line, 0, header, 0, bundleField);
+        header[bundleField] = '}';
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(header), StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            String key = null;
+            String etag = null;
+            String lastModified = null;
+            long storedAt = 0;
+            while (reader.peek() == JsonToken.NAME) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "key": key = reader.nextString(); break;
+                    case "storedAt": storedAt = reader.nextLong(); break;
+                    case "etag": etag = reader.nextString(); break;
+                    case "lastModified": lastModified = reader.nextString(); break;
+                    default: reader.skipValue();
+                }
+            }
+            if (key == null) {
+                return null;
+            }
+            int bundleStart = bundleField + BUNDLE_FIELD.length;
+            return new Record(key, offset, line.length + 1, offset + bundleStart, line.length - 1 - bundleStart, storedAt, etag, lastModified);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Position and header of the latest line stored for a key.
+     */
+    private static class Record {
+        private final String key;
+        private final long lineOffset;
+        private final int lineLength;
+        private final long bundleOffset;
+        private final int bundleLength;
+        private final long storedAt;
+        private final String etag;
+        private final String lastModified;
+
+        private Record(String key, long lineOffset, int lineLength, long bundleOffset, int bundleLength, long storedAt,
+                       String etag, String lastModified) {
+            this.key = key;
+            this.lineOffset = lineOffset;
+            this.lineLength = lineLength;
+            this.bundleOffset = bundleOffset;
+            this.bundleLength = bundleLength;
+            this.storedAt = storedAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        private Record movedTo(long newLineOffset) {
+            return new Record(key, newLineOffset, lineLength, bundleOffset - lineOffset + newLineOffset, bundleLength,
+                    storedAt, etag, lastModified);
+        }
+    }
+
+    /**
+     * A stored search result with the time it was stored.
+     */
+    public static class Snapshot {
+        private final List<Patient> patients;
+        private final String etag;
+        private final String lastModified;
+        private final long storedAtMillis;
+        private final long ageMillis;
+
+        private Snapshot(List<Patient> patients, String etag, String lastModified, long storedAtMillis, long nowMillis) {
+            this.patients = patients;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAtMillis = storedAtMillis;
+            this.ageMillis = Math.max(0, nowMillis - storedAtMillis);
+        }
+
+        public List<Patient> getPatients() {
+            return patients;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return when the result was stored, in milliseconds since the epoch
+         */
+        public long getStoredAtMillis() {
+            return storedAtMillis;
+        }
+
+        /**
+         * @return how long ago the result was stored, in milliseconds
+         */
+        public long getAgeMillis() {
+            return ageMillis;
+        }
+    }
+}
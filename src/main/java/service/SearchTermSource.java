@@ -0,0 +1,239 @@
+package service;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Reads search terms (e.g. last names), one per line, lazily from a file or classpath resource. Only the current line
+ * is held in memory, so files of any length can be fed into the searches as they are read.
+ * <p>
+ * Blank lines are skipped and terms are trimmed. Repeated terms (compared case insensitive) are skipped: exactly, with
+ * a set of the terms seen, for the first {@value #EXACT_TERMS} distinct terms, then with a Bloom filter, whose memory
+ * stays constant whatever the number of distinct terms at the cost of a small chance of dropping a term that was not
+ * seen before. The filter takes at most the configured number of bits, and no more than about 10 bits for every term
+ * the input can hold if its length is known, which keeps that chance near 1%. Terms skipped by the filter are counted
+ * apart from the exact duplicates, see {@link #getPossibleDuplicates()}.
+ */
+public class SearchTermSource implements Iterator<String>, Closeable {
+
+    private static final String SEARCH_TERMS_DEDUPE_BITS = "SEARCH_TERMS_DEDUPE_BITS";
+    private static final int HASHES = 7;
+    /** Distinct terms deduplicated exactly before switching to the Bloom filter. */
+    static final int EXACT_TERMS = 16_384;
+    /** Bloom filter bits per expected term, for about 1% false positives with 7 hashes. */
+    private static final int BITS_PER_TERM = 10;
+    /** Shortest line holding a term: one character and a line feed. */
+    private static final int MIN_BYTES_PER_TERM = 2;
+
+    private final BufferedReader reader;
+    private final long bloomBits;
+    private Set<String> exact;
+    private long[] seen;
+    private String next;
+    private boolean done;
+    private long lines;
+    private long consumed;
+    private long duplicates;
+    private long possibleDuplicates;
+
+    /**
+     * @param reader     the terms, one per line; closed with this source
+     * @param dedupeBits maximum size of the Bloom filter used to skip repeated terms, 0 to keep them
+     */
+    public SearchTermSource(Reader reader, long dedupeBits) {
+        this(reader, dedupeBits, -1);
+    }
+
+    /**
+     * @param reader     the terms, one per line; closed with this source
+     * @param dedupeBits maximum size of the Bloom filter used to skip repeated terms, 0 to keep them
+     * @param inputBytes length of the input in bytes, which bounds the number of terms, or -1 if unknown
+     */
+    SearchTermSource(Reader reader, long dedupeBits, long inputBytes) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        this.bloomBits = inputBytes < 0 ? dedupeBits
+                : Math.min(dedupeBits, Math.max(64, inputBytes / MIN_BYTES_PER_TERM * BITS_PER_TERM));
+        this.exact = dedupeBits > 0 ? new HashSet<>() : null;
+    }
+
+    /**
+     * Opens a terms file, with the maximum Bloom filter size read from application.properties (0 disables dedupe).
+     * A path to an existing file is read from the filesystem, anything else is looked up on the classpath.
+     *
+     * @param location file path or classpath resource name
+     * @return the source, to be closed by the caller
+     * @throws FileNotFoundException if neither a file nor a resource exists at the location
+     */
+    public static SearchTermSource open(String location) throws IOException {
+        long dedupeBits = Long.parseLong(ConfigUtility.loadConfigValue(SEARCH_TERMS_DEDUPE_BITS).trim());
+        Path path = Paths.get(location);
+        if (Files.isRegularFile(path)) {
+            return new SearchTermSource(Files.newBufferedReader(path, StandardCharsets.UTF_8), dedupeBits, Files.size(path));
+        }
+        InputStream resource = SearchTermSource.class.getClassLoader().getResourceAsStream(location);
+        if (resource == null) {
+            throw new FileNotFoundException("Search terms '" + location + "' not found on the filesystem or classpath");
+        }
+        return new SearchTermSource(new InputStreamReader(resource, StandardCharsets.UTF_8), dedupeBits);
+    }
+
+    /**
+     * @throws UncheckedIOException if the next line cannot be read
+     */
+    @Override
+    public boolean hasNext() {
+        while (next == null && !done) {
+            String line;
+            try {
+                line = reader.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading search terms", e);
+            }
+            if (line == null) {
+                done = true;
+                break;
+            }
+            lines++;
+            String term = line.trim();
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (exact != null && !addExact(term.toUpperCase(Locale.ROOT))) {
+                duplicates++;
+                continue;
+            }
+            if (seen != null && !markSeen(term.toUpperCase(Locale.ROOT))) {
+                possibleDuplicates++;
+                continue;
+            }
+            next = term;
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String term = next;
+        next = null;
+        consumed++;
+        return term;
+    }
+
+    /**
+     * @return the number of terms returned by {@link #next()} so far
+     */
+    public long getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * @return the number of terms skipped so far because they were certainly seen before
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the number of terms skipped so far by the Bloom filter: almost all repeated, but a few may be distinct
+     * terms dropped by a false positive
+     */
+    public long getPossibleDuplicates() {
+        return possibleDuplicates;
+    }
+
+    /**
+     * @return the size of the Bloom filter, allocated once the exact set is full
+     */
+    long getFilterBits() {
+        return bloomBits;
+    }
+
+    /**
+     * @return whether dedupe has moved from the exact set to the Bloom filter
+     */
+    boolean isApproximate() {
+        return seen != null;
+    }
+
+    /**
+     * @return the number of lines read so far, including blank and repeated ones
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Adds the term to the exact set while it is small; once it is full, moves its terms into the Bloom filter and
+     * leaves the term to the filter.
+     *
+     * @return false if the term is certainly a duplicate
+     */
+    private boolean addExact(String term) {
+        if (exact.size() < EXACT_TERMS) {
+            return exact.add(term);
+        }
+        if (exact.contains(term)) {
+            return false;
+        }
+        seen = new long[(int) ((bloomBits + 63) / 64)];
+        exact.forEach(this::markSeen);
+        exact = null;
+        return true;
+    }
+
+    /**
+     * Sets the term's bits in the Bloom filter.
+     *
+     * @return true if at least one bit was not set yet, i.e. the term was certainly not seen before
+     */
+    private boolean markSeen(String term) {
+        // Two independent 64-bit hashes combined into k indexes (Kirsch-Mitzenmacher)
+        long h1 = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            h1 = (h1 ^ term.charAt(i)) * 0x100000001b3L;
+        }
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+        h1 = mix(h1);
+        long bits = seen.length * 64L;
+        boolean added = false;
+        for (int i = 0; i < HASHES; i++) {
+            long index = Long.remainderUnsigned(h1 + i * h2, bits);
+            long mask = 1L << index;
+            int word = (int) (index >>> 6);
+            if ((seen[word] & mask) == 0) {
+                seen[word] |= mask;
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,133 @@
+package service;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Merges identical calls that are in flight at the same time into one execution ("single-flight").
+ * The first caller for a key runs the call; callers arriving with the same key before it has finished wait for its
+ * outcome instead of running the call again. Each waiter receives its own copy of the result, made by the copy
+ * function, so callers can modify what they get back. Failures are shared with all waiters as well.
+ * Once a call has finished, the next caller for the key starts a new execution.
+ *
+ * @param <K> type of the key identifying identical calls
+ * @param <V> type of the call result
+ */
+public class SingleFlight<K, V> {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SingleFlight.class);
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final UnaryOperator<V> copy;
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+
+    /**
+     * @param copy makes the copy of a shared result handed to each merged caller
+     */
+    public SingleFlight(UnaryOperator<V> copy) {
+        this.copy = copy;
+    }
+
+    /**
+     * Runs the call on the calling thread, or waits for the identical call already in flight.
+     *
+     * @param key  identifies identical calls
+     * @param call the call to run if none is in flight for the key
+     * @return the result of the call
+     * @throws RuntimeException the exception thrown by the call, for the caller that ran it and for every waiter
+     */
+    public V execute(K key, Supplier<V> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            return await(key, existing);
+        }
+        executions.increment();
+        try {
+            V result = call.get();
+            inFlight.remove(key, flight);
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the asynchronous call, or joins the identical call already in flight.
+     *
+     * @param key  identifies identical calls
+     * @param call starts the call if none is in flight for the key
+     * @return completes with the result of the call
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            merged.increment();
+            log.debug("Joined in-flight call for {}", key);
+            return existing.thenApply(copy);
+        }
+        executions.increment();
+        CompletableFuture<V> started;
+        try {
+            started = call.get();
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        started.whenComplete((result, error) -> {
+            inFlight.remove(key, flight);
+            if (error != null) {
+                flight.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } else {
+                flight.complete(result);
+            }
+        });
+        return started;
+    }
+
+    private V await(K key, CompletableFuture<V> existing) {
+        merged.increment();
+        log.debug("Waiting for in-flight call for {}", key);
+        try {
+            return copy.apply(existing.join());
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of calls currently in flight
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the number of calls that were actually run
+     */
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    /**
+     * @return the number of calls that were merged into a call already in flight instead of being run
+     */
+    public long getMerged() {
+        return merged.sum();
+    }
+}
@@ -0,0 +1,132 @@
+package service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal FHIR server on localhost for offline, reproducible load tests: answers the capability statement and
+ * {@code Patient?family=X} searches with a fixed number of generated patients after a fixed delay. The same family
+ * always gets the same Bundle, so results do not depend on what a public test server happens to hold.
+ */
+public class StubFhirServer implements Closeable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(StubFhirServer.class);
+
+    static final String CAPABILITY_STATEMENT = "{\"resourceType\":\"CapabilityStatement\",\"status\":\"active\","
+            + "\"date\":\"2024-01-01\",\"kind\":\"instance\",\"fhirVersion\":\"4.0.1\",\"format\":[\"json\"]}";
+
+    static {
+        enableNoDelay();
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("stub-fhir"));
+    private final int patientsPerSearch;
+    private final long latencyMillis;
+    private final Map<String, byte[]> bundles = new ConcurrentHashMap<>();
+    private final AtomicLong searches = new AtomicLong();
+
+    /**
+     * Starts the server on a free port of 127.0.0.1.
+     *
+     * @param patientsPerSearch number of patients in every search result
+     * @param latencyMillis     delay before every search response
+     * @throws IOException if the server cannot be started
+     */
+    public StubFhirServer(int patientsPerSearch, long latencyMillis) throws IOException {
+        this.patientsPerSearch = patientsPerSearch;
+        this.latencyMillis = latencyMillis;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir/metadata", exchange -> respond(exchange, CAPABILITY_STATEMENT.getBytes(StandardCharsets.UTF_8)));
+        server.createContext("/fhir/Patient", this::search);
+        server.setExecutor(executor);
+        server.start();
+        log.info("Stub FHIR server listening on {}", getBaseUrl());
+    }
+
+    /**
+     * @return the base URL to point a {@link FhirClient} at
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    /**
+     * @return the number of searches answered so far
+     */
+    public long getSearches() {
+        return searches.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Asks the JDK HTTP server to set TCP_NODELAY on its connections. Without it the body, written after the headers,
+     * waits for the client's delayed ACK of the headers, adding about 40 ms to every response. The setting is read
+     * when the first server of the JVM starts; set {@code -Dsun.net.httpserver.nodelay=true} where that may happen
+     * before this class is loaded.
+     */
+    static void enableNoDelay() {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        String family = "";
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("family=")) {
+                    family = URLDecoder.decode(parameter.substring("family=".length()), StandardCharsets.UTF_8.name());
+                }
+            }
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        searches.incrementAndGet();
+        respond(exchange, bundles.computeIfAbsent(family.toUpperCase(Locale.ROOT), this::searchset));
+    }
+
+    private byte[] searchset(String family) {
+        String name = family.isEmpty() ? "Doe" : family.charAt(0) + family.substring(1).toLowerCase(Locale.ROOT);
+        StringBuilder json = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":")
+                .append(patientsPerSearch).append(",\"entry\":[");
+        for (int i = 0; i < patientsPerSearch; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"").append(family).append('-').append(i)
+                    .append("\",\"name\":[{\"family\":\"").append(name).append("\",\"given\":[\"Given").append(i)
+                    .append("\"]}],\"birthDate\":\"19").append(50 + i % 50).append("-01-01\"}}");
+        }
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -1,17 +1,31 @@
 package helper;
 
+import interceptor.SearchPhase;
+import interceptor.SearchTrace;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import service.ConfigUtility;
 import service.FhirClient;
+import service.ParallelSearchResult;
+import service.SearchTermSource;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -22,12 +36,22 @@ public class FhirHelperTest {
     @Mock
     private FhirClient fhirClient;
 
+    @TempDir
+    Path tempDir;
+
+    private PatientReportWriter reportWriter;
     private FhirHelper fhirHelper;
 
     @BeforeEach
-    public void setUp() {
+    public void setUp() throws IOException {
         MockitoAnnotations.initMocks(this);
-        fhirHelper = new FhirHelper(fhirClient);
+        reportWriter = PatientReportWriter.toFile(tempDir.resolve("report.txt"), PatientReportWriter.Format.PLAIN);
+        fhirHelper = new FhirHelper(fhirClient, reportWriter);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        reportWriter.close();
     }
 
     @Test
@@ -60,6 +84,22 @@ public class FhirHelperTest {
 
     }
 
+    @Test
+    public void testSortAndPrintPhasesAreTimed() {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Smith").addGiven("John");
+        when(fhirClient.searchPatientsByLastName("Smith", false)).thenReturn(new ArrayList<>(Collections.singletonList(patient)));
+
+        SearchTrace.setMetricsEnabled(true);
+        try {
+            fhirHelper.searchAndPrintPatients("Smith");
+            Assertions.assertEquals(EnumSet.of(SearchPhase.SORT, SearchPhase.PRINT), SearchTrace.snapshot().keySet());
+        } finally {
+            SearchTrace.setMetricsEnabled(false);
+            SearchTrace.resetMetrics();
+        }
+    }
+
     @Test
     public void testSearchAndPrintPatients_FHIRException() throws FHIRException {
         // Mocking FhirClient behavior
@@ -71,6 +111,23 @@ public class FhirHelperTest {
         Assertions.assertTrue(patients==null); //for graceful handling of no results or error screen
     }
 
+    @Test
+    public void testSearchPatientsAsync() {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Smith").addGiven("John");
+        CompletableFuture<List<Patient>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new FHIRException("server down"));
+        when(fhirClient.searchPatientsByLastNameAsync("Smith", false)).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(patient)));
+        when(fhirClient.searchPatientsByLastNameAsync("Jones", false)).thenReturn(failed);
+
+        ParallelSearchResult result = fhirHelper.searchPatientsAsync(Arrays.asList("Smith", "Jones", "Smith"), false).join();
+
+        verify(fhirClient, times(1)).searchPatientsByLastNameAsync("Smith", false);
+        Assertions.assertEquals(1, result.getResults().get("Smith").size());
+        Assertions.assertEquals("server down", result.getFailures().get("Jones").getMessage());
+        Assertions.assertNull(fhirHelper.searchAndPrintPatientsAsync("Jones").join());
+    }
+
     @Test
     public void testTimePatientSearchResponse_Success() throws FHIRException, InterruptedException, IOException {
         // Mock data
@@ -90,6 +147,42 @@ public class FhirHelperTest {
 
     }
 
+    @Test
+    public void testTimePatientSearchResponse_FewerNamesThanCount() throws IOException {
+        long distinctNames = ConfigUtility.readLastNamesFromFile("names.txt").stream()
+                .filter(name -> !name.isEmpty()).map(String::toUpperCase).distinct().count();
+
+        fhirHelper.timePatientSearchResponse(1, 1000);
+
+        verify(fhirClient, times((int) distinctNames)).searchPatientsByLastName(anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testSearchAllTerms() {
+        CompletableFuture<List<Patient>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new FHIRException("server down"));
+        when(fhirClient.searchPatientsByLastNameAsync(anyString(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(Collections.emptyList()));
+        when(fhirClient.searchPatientsByLastNameAsync("Jones", true)).thenReturn(failed);
+
+        SearchTermSource terms = new SearchTermSource(new StringReader("Smith\nJones\nsmith\nLee\n"), 1024);
+        Assertions.assertEquals(1, fhirHelper.searchAllTerms(terms, true));
+
+        Assertions.assertEquals(3, terms.getConsumed());
+        verify(fhirClient, times(3)).searchPatientsByLastNameAsync(anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testSearchAllTermsContinuesAfterSearchFailsToStart() {
+        when(fhirClient.searchPatientsByLastNameAsync(anyString(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(Collections.emptyList()));
+        when(fhirClient.searchPatientsByLastNameAsync("Jones", true)).thenThrow(new RejectedExecutionException("closed"));
+
+        SearchTermSource terms = new SearchTermSource(new StringReader("Smith\nJones\nLee\n"), 1024);
+        Assertions.assertEquals(1, fhirHelper.searchAllTerms(terms, true));
+
+        Assertions.assertEquals(3, terms.getConsumed());
+        verify(fhirClient).searchPatientsByLastNameAsync("Lee", true);
+    }
+
     @Test
     public void testTimePatientSearchResponse_FHIRException() throws FHIRException, InterruptedException, IOException {
         // Mock data
@@ -0,0 +1,82 @@
+package helper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import service.FhirClient;
+import service.StubFhirServer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class LoadGeneratorTest {
+
+    private static final List<String> TERMS = Arrays.asList("SMITH", "JONES", "LEE", "WRIGHT");
+
+    private StubFhirServer stub;
+
+    @AfterEach
+    public void tearDown() {
+        stub.close();
+    }
+
+    @Test
+    public void testOpenLoopRateAndCacheMix() throws IOException {
+        stub = new StubFhirServer(5, 0);
+        try (FhirClient fhirClient = new FhirClient(stub.getBaseUrl(), 1, TERMS.size())) {
+            LoadGenerator.Settings settings = new LoadGenerator.Settings(200, 500, 100, 4, 0.5, 5000, 42);
+
+            LoadGenerator.Report report = new LoadGenerator(fhirClient, TERMS, settings).run();
+
+            Assertions.assertEquals(120, report.getSent());
+            Assertions.assertEquals(100, report.getMeasured());
+            Assertions.assertEquals(100, report.getCompleted());
+            Assertions.assertEquals(0, report.getErrors());
+            Assertions.assertEquals(100, report.getResponseTimes().getCount());
+            long cacheOff = report.getMetrics().histogram("cache:off").getCount();
+            Assertions.assertTrue(cacheOff > 25 && cacheOff < 75, String.valueOf(cacheOff));
+            Assertions.assertEquals(100, cacheOff + report.getMetrics().histogram("cache:on").getCount());
+            // Cache-on requests are mostly answered from the client's cache
+            Assertions.assertTrue(stub.getSearches() > 0 && stub.getSearches() < report.getSent(), String.valueOf(stub.getSearches()));
+        }
+    }
+
+    @Test
+    public void testLatencyIncludesQueueingBehindSlowResponses() throws IOException {
+        stub = new StubFhirServer(1, 100);
+        try (FhirClient fhirClient = new FhirClient(stub.getBaseUrl(), 1, TERMS.size())) {
+            // 20 requests in 400 ms on one worker need about 2 s: later requests wait for the earlier ones
+            LoadGenerator.Settings settings = new LoadGenerator.Settings(50, 400, 0, 1, 1.0, 10_000, 42);
+
+            LoadGenerator.Report report = new LoadGenerator(fhirClient, TERMS, settings).run();
+
+            Assertions.assertEquals(20, report.getCompleted());
+            long service = report.getMetrics().histogram(LoadGenerator.SERVICE).getMax();
+            long response = report.getResponseTimes().getMax();
+            Assertions.assertTrue(service >= 100_000 && service < 1_000_000, String.valueOf(service));
+            Assertions.assertTrue(response > 1_000_000, String.valueOf(response));
+        }
+    }
+
+    @Test
+    public void testRequestsOutstandingAfterDrainAreRecordedAsTimeouts() throws IOException {
+        stub = new StubFhirServer(1, 200);
+        try (FhirClient fhirClient = new FhirClient(stub.getBaseUrl(), 1, TERMS.size())) {
+            // 10 requests on one worker need about 2 s, but the drain gives up 300 ms after the last one is scheduled
+            LoadGenerator.Settings settings = new LoadGenerator.Settings(50, 200, 0, 1, 1.0, 300, 42);
+
+            LoadGenerator.Report report = new LoadGenerator(fhirClient, TERMS, settings).run();
+
+            Assertions.assertEquals(10, report.getMeasured());
+            Assertions.assertTrue(report.getAbandoned() > 0, report.toString());
+            Assertions.assertEquals(10, report.getCompleted() + report.getAbandoned());
+            Assertions.assertEquals(report.getAbandoned(), report.getErrors());
+            Assertions.assertEquals(10, report.getResponseTimes().getCount());
+            Assertions.assertEquals(report.getAbandoned(), report.getMetrics().histogram("result:timeout").getCount());
+            Assertions.assertEquals(report.getCompleted(), report.getMetrics().histogram(LoadGenerator.SERVICE).getCount());
+            // The first request given up on waited from its scheduled time to the end of the drain
+            Assertions.assertTrue(report.getResponseTimes().getMax() >= 300_000, String.valueOf(report.getResponseTimes().getMax()));
+        }
+    }
+}
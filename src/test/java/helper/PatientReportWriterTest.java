@@ -0,0 +1,100 @@
+package helper;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import service.PatientSummary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class PatientReportWriterTest {
+
+    @TempDir
+    Path dir;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private PatientReportWriter writer(PatientReportWriter.Format format) {
+        return new PatientReportWriter(Channels.newChannel(out), false, format);
+    }
+
+    private String output() {
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testPlainMatchesPreviousOutput() {
+        PatientReportWriter writer = writer(PatientReportWriter.Format.PLAIN);
+        Patient patient = new Patient();
+        patient.setId("1");
+        patient.addName().setFamily("Warden").addGiven("Carol");
+        patient.addName().setFamily("Smith").addGiven("Becky");
+
+        Assertions.assertTrue(writer.write(patient, "SMITH"));
+        Assertions.assertFalse(writer.write(patient, "Jones"));
+        writer.flush();
+
+        Assertions.assertEquals("First Name: Becky\nLast Name: Smith\nBirth Date: Not available in records\n"
+                + "-------------------------\n", output());
+        Assertions.assertEquals(1, writer.getRows());
+    }
+
+    @Test
+    public void testCsvQuoting() {
+        PatientReportWriter writer = writer(PatientReportWriter.Format.CSV);
+        writer.write(new PatientSummary("7", Arrays.asList(new PatientSummary.Name("Smith", Arrays.asList("Ann, \"Jr\"")),
+                new PatientSummary.Name("Jones", Arrays.asList("Bo"))), "1980-01-02"), "smith");
+        writer.writeRow("8", null, "Smith", null);
+        writer.flush();
+
+        Assertions.assertEquals("id,first_name,last_name,birth_date\n7,\"Ann, \"\"Jr\"\"\",Smith,1980-01-02\n8,,Smith,\n", output());
+    }
+
+    @Test
+    public void testNdjsonEscaping() {
+        PatientReportWriter writer = writer(PatientReportWriter.Format.NDJSON);
+        writer.writeRow("1", "A\"n\\n\n", "Smith", null);
+        writer.flush();
+
+        Assertions.assertEquals("{\"id\":\"1\",\"firstName\":\"A\\\"n\\\\n\\u000a\",\"lastName\":\"Smith\",\"birthDate\":null}\n", output());
+    }
+
+    @Test
+    public void testManyRowsToFile() throws IOException {
+        Path file = dir.resolve("report.csv");
+        // Non-ASCII names make the char and byte batches end at different places
+        try (PatientReportWriter writer = PatientReportWriter.toFile(file, PatientReportWriter.Format.CSV)) {
+            for (int i = 0; i < 100_000; i++) {
+                writer.writeRow(String.valueOf(i), "J\u00f6rg\ud83d\ude00" + i, "M\u00fcller", "1980-01-01");
+            }
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        Assertions.assertEquals(100_001, lines.size());
+        for (int i = 1; i < lines.size(); i++) {
+            Assertions.assertEquals((i - 1) + ",J\u00f6rg\ud83d\ude00" + (i - 1) + ",M\u00fcller,1980-01-01", lines.get(i));
+        }
+    }
+
+    @Test
+    public void testStdoutFollowsSystemOut() throws IOException {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try (PatientReportWriter writer = PatientReportWriter.toStdout(PatientReportWriter.Format.NDJSON)) {
+            writer.writeRow("1", "Ann", "Smith", null);
+        } finally {
+            System.setOut(stdout);
+        }
+
+        Assertions.assertEquals("{\"id\":\"1\",\"firstName\":\"Ann\",\"lastName\":\"Smith\",\"birthDate\":null}\n", output());
+    }
+}
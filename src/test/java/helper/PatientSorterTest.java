@@ -0,0 +1,109 @@
+package helper;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import service.PatientSummary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class PatientSorterTest {
+
+    private static Patient patient(String id, String family, String given) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        patient.addName().setFamily(family).addGiven(given);
+        return patient;
+    }
+
+    private static List<String> ids(List<Patient> patients) {
+        List<String> ids = new ArrayList<>();
+        patients.forEach(patient -> ids.add(patient.getIdElement().getIdPart()));
+        return ids;
+    }
+
+    @Test
+    public void testSortByFirstName() {
+        Patient multipleNames = patient("3", "Warden", "Aaron");
+        multipleNames.addName().setFamily("Smith").addGiven("becky");
+        List<Patient> patients = new ArrayList<>(Arrays.asList(
+                patient("1", "Smith", "John"),
+                patient("2", "Smith", "Adam"),
+                multipleNames,
+                patient("4", "Smith", "Johnathan"),
+                patient("5", "Jones", "Zed")));
+
+        PatientSorter.sortByFirstName(patients, "SMITH");
+
+        // Patients without a matching name sort first with an empty key, the other name entry is ignored
+        Assertions.assertEquals(Arrays.asList("5", "2", "3", "1", "4"), ids(patients));
+    }
+
+    @Test
+    public void testSortIsStable() {
+        List<Patient> patients = new ArrayList<>(Arrays.asList(
+                patient("1", "Smith", "Ann"),
+                patient("2", "Smith", "ann"),
+                patient("3", "Smith", "ANN")));
+
+        PatientSorter.sortByFirstName(patients, "Smith");
+
+        Assertions.assertEquals(Arrays.asList("1", "2", "3"), ids(patients));
+    }
+
+    @Test
+    public void testMatchesComparatorOrdering() {
+        Random random = new Random(1);
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder given = new StringBuilder();
+            for (int c = 0, len = 1 + random.nextInt(8); c < len; c++) {
+                given.append((char) ('a' + random.nextInt(4)));
+            }
+            patients.add(patient(String.valueOf(i), "Smith", given.toString()));
+        }
+        List<Patient> expected = new ArrayList<>(patients);
+        expected.sort(Comparator.comparing(patient -> PatientSorter.sortKey(patient, "Smith")));
+
+        PatientSorter.sortByFirstName(patients, "Smith");
+
+        Assertions.assertEquals(ids(expected), ids(patients));
+        Assertions.assertEquals(ids(expected.subList(0, 25)), ids(PatientSorter.topByFirstName(patients, "Smith", 25)));
+    }
+
+    @Test
+    public void testSortSummariesByFirstName() {
+        List<PatientSummary> patients = new ArrayList<>(Arrays.asList(
+                new PatientSummary("1", Collections.singletonList(new PatientSummary.Name("Smith", Arrays.asList("John"))), null),
+                new PatientSummary("2", Arrays.asList(new PatientSummary.Name("Warden", Arrays.asList("Aaron")),
+                        new PatientSummary.Name("Smith", Arrays.asList("Becky"))), null),
+                new PatientSummary("3", Collections.singletonList(new PatientSummary.Name("Smith", Arrays.asList("adam"))), null)));
+
+        Assertions.assertEquals("3", PatientSorter.topSummariesByFirstName(patients, "Smith", 1).get(0).getId());
+        PatientSorter.sortSummariesByFirstName(patients, "Smith");
+
+        Assertions.assertEquals(Arrays.asList("3", "2", "1"), Arrays.asList(patients.get(0).getId(), patients.get(1).getId(), patients.get(2).getId()));
+    }
+
+    @Test
+    public void testTopByFirstName() {
+        List<Patient> patients = Arrays.asList(
+                patient("1", "Smith", "Dave"),
+                patient("2", "Smith", "Carl"),
+                patient("3", "Smith", "Bob"),
+                patient("4", "Smith", "Eve"),
+                patient("5", "Smith", "Al"));
+        List<Patient> unchanged = new ArrayList<>(patients);
+
+        Assertions.assertEquals(Arrays.asList("5", "3", "2"), ids(PatientSorter.topByFirstName(patients, "Smith", 3)));
+        Assertions.assertEquals(5, PatientSorter.topByFirstName(patients, "Smith", 10).size());
+        Assertions.assertTrue(PatientSorter.topByFirstName(patients, "Smith", 0).isEmpty());
+        Assertions.assertTrue(PatientSorter.topByFirstName(Collections.emptyList(), "Smith", 3).isEmpty());
+        Assertions.assertEquals(unchanged, patients);
+    }
+}
@@ -0,0 +1,71 @@
+package helper;
+
+import interceptor.LatencyHistogram;
+import interceptor.RecordedExchange;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import service.FhirClient;
+import service.ReplayFhirServer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the search, sort and print path of {@link FhirHelper} against recorded searches replayed locally, and fails
+ * if the client adds more than a fixed budget on top of the replayed server latency.
+ */
+public class ReplayRegressionTest {
+
+    private static final double LATENCY_SCALE = 1.0;
+    /** Time the client may spend per search on top of the replayed latency: connection, parse, sort and print. */
+    private static final long OVERHEAD_BUDGET_MICROS = 50_000;
+    private static final int PATIENTS_PER_SEARCH = 8;
+
+    @Test
+    public void testSearchSortPrintStaysWithinBudget(@TempDir Path dir) throws Exception {
+        List<RecordedExchange> recorded = RecordedExchange.readAll(
+                Paths.get(getClass().getClassLoader().getResource("replay/patient-searches.ndjson").toURI()));
+        List<String> names = recorded.stream()
+                .map(exchange -> exchange.getPath().substring(exchange.getPath().indexOf("family=") + "family=".length()))
+                .collect(Collectors.toList());
+        long replayedMicros = (long) (recorded.stream().mapToLong(RecordedExchange::getLatencyMicros).sum() * LATENCY_SCALE);
+        long slowestMicros = (long) (recorded.stream().mapToLong(RecordedExchange::getLatencyMicros).max().orElse(0) * LATENCY_SCALE);
+
+        try (ReplayFhirServer replay = new ReplayFhirServer(recorded, 0);
+             PatientReportWriter writer = PatientReportWriter.toFile(dir.resolve("report.txt"), PatientReportWriter.Format.PLAIN);
+             FhirClient warmUp = new FhirClient(replay.getBaseUrl(), 1, names.size())) {
+            // Warm up class loading and connections on a separate client, outside the measurement
+            new FhirHelper(warmUp, writer).searchAndPrintPatients(names.get(0));
+        }
+
+        try (ReplayFhirServer replay = new ReplayFhirServer(recorded, LATENCY_SCALE);
+             PatientReportWriter writer = PatientReportWriter.toFile(dir.resolve("report.txt"), PatientReportWriter.Format.PLAIN);
+             FhirClient fhirClient = new FhirClient(replay.getBaseUrl(), 1, names.size())) {
+            FhirHelper fhirHelper = new FhirHelper(fhirClient, writer);
+
+            long start = System.nanoTime();
+            for (String name : names) {
+                List<Patient> patients = fhirHelper.searchAndPrintPatients(name);
+                Assertions.assertNotNull(patients, name);
+                Assertions.assertEquals(PATIENTS_PER_SEARCH, patients.size(), name);
+            }
+            long elapsedMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+            Assertions.assertEquals(0, replay.getUnmatched());
+            Assertions.assertEquals(names.size() * PATIENTS_PER_SEARCH, writer.getRows());
+            long budgetMicros = replayedMicros + names.size() * OVERHEAD_BUDGET_MICROS;
+            Assertions.assertTrue(elapsedMicros <= budgetMicros, String.format(
+                    "%d searches took %d ms, budget %d ms (%.1f searches/s)", names.size(), elapsedMicros / 1000,
+                    budgetMicros / 1000, names.size() * 1e6 / elapsedMicros));
+            LatencyHistogram latencies = fhirClient.getMetrics().histogram("param:family");
+            Assertions.assertEquals(names.size(), latencies.getCount());
+            Assertions.assertTrue(latencies.getValueAtPercentile(99) <= slowestMicros + OVERHEAD_BUDGET_MICROS,
+                    "p99 " + latencies.getValueAtPercentile(99) + " us");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package interceptor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsRoundTrip() {
+        for (long value : new long[]{0, 1, 127, 128, 129, 1000, 65_432, 10_000_000, Long.MAX_VALUE}) {
+            long upper = LatencyHistogram.highestValueInBucket(LatencyHistogram.bucketIndex(value));
+            Assertions.assertTrue(upper >= value, "bucket upper bound below value " + value);
+            // Relative error stays below 2%
+            Assertions.assertTrue(upper - value <= Math.max(1, value / 50), "bucket too wide for " + value);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        Assertions.assertEquals(1000, histogram.getCount());
+        Assertions.assertEquals(1_000_000, histogram.getMax());
+        Assertions.assertEquals(500_500, histogram.getMean(), 0.1);
+        Assertions.assertEquals(500_000, histogram.getValueAtPercentile(50), 500_000 * 0.02);
+        Assertions.assertEquals(990_000, histogram.getValueAtPercentile(99), 990_000 * 0.02);
+        Assertions.assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assertions.assertEquals(0, histogram.getValueAtPercentile(99));
+        Assertions.assertEquals(0, histogram.getMean());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Assertions.assertEquals(80_000, histogram.getCount());
+        Assertions.assertEquals(9_999, histogram.getMax());
+    }
+}
@@ -0,0 +1,104 @@
+package interceptor;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import service.FhirClient;
+import service.StubFhirServer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class SearchTraceTest {
+
+    @AfterEach
+    public void tearDown() {
+        SearchTrace.setMetricsEnabled(false);
+        SearchTrace.resetMetrics();
+    }
+
+    @Test
+    public void testDisabledTraceRecordsNothing() {
+        SearchTrace trace = SearchTrace.begin("SMITH");
+        trace.start(SearchPhase.SORT);
+        trace.end(SearchPhase.SORT);
+        trace.finish(3);
+
+        Assertions.assertFalse(trace.isEnabled());
+        Assertions.assertNull(SearchTrace.current());
+        Assertions.assertTrue(SearchTrace.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testMetricsSnapshot() {
+        SearchTrace.setMetricsEnabled(true);
+        SearchTrace trace = SearchTrace.begin("SMITH");
+        Assertions.assertSame(trace, SearchTrace.current());
+        trace.start(SearchPhase.SORT);
+        trace.end(SearchPhase.SORT);
+        trace.start(SearchPhase.PRINT);
+        trace.end(SearchPhase.PRINT);
+        // Never ended, e.g. because the search failed: dropped
+        trace.start(SearchPhase.BUNDLE_PARSE);
+        trace.finish(3);
+
+        Map<SearchPhase, SearchTrace.PhaseStats> snapshot = SearchTrace.snapshot();
+        Assertions.assertNull(SearchTrace.current());
+        Assertions.assertEquals(EnumSet.of(SearchPhase.SORT, SearchPhase.PRINT), snapshot.keySet());
+        Assertions.assertEquals(1, snapshot.get(SearchPhase.SORT).getCount());
+        Assertions.assertTrue(SearchTrace.report().contains("sort"));
+
+        SearchTrace.resetMetrics();
+        Assertions.assertTrue(SearchTrace.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testFlightRecorderEvents(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("search.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(SearchPhaseEvent.NAME);
+            recording.start();
+            SearchTrace trace = SearchTrace.detached("JONES");
+            Assertions.assertTrue(trace.isEnabled());
+            trace.start(SearchPhase.SORT);
+            trace.end(SearchPhase.SORT);
+            trace.finish(7);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                .filter(event -> event.getEventType().getName().equals(SearchPhaseEvent.NAME))
+                .collect(Collectors.toList());
+        Assertions.assertEquals(1, events.size());
+        Assertions.assertEquals("sort", events.get(0).getString("phase"));
+        Assertions.assertEquals("JONES", events.get(0).getString("term"));
+        Assertions.assertEquals(7, events.get(0).getInt("resultSize"));
+    }
+
+    @Test
+    public void testSearchPhasesOfFhirClient() throws IOException {
+        SearchTrace.setMetricsEnabled(true);
+        try (StubFhirServer stub = new StubFhirServer(4, 0);
+             FhirClient fhirClient = new FhirClient(stub.getBaseUrl(), 1, 1)) {
+            Assertions.assertEquals(4, fhirClient.searchPatientsByLastName("SMITH", true).size());
+            Assertions.assertEquals(EnumSet.of(SearchPhase.CONNECTION_ACQUIRE, SearchPhase.REQUEST_WRITE,
+                    SearchPhase.TIME_TO_FIRST_BYTE, SearchPhase.BODY_READ, SearchPhase.BUNDLE_PARSE,
+                    SearchPhase.PATIENT_MAPPING), SearchTrace.snapshot().keySet());
+
+            Assertions.assertEquals(4, fhirClient.searchPatientsByLastNameAsync("JONES", true).join().size());
+            Map<SearchPhase, SearchTrace.PhaseStats> snapshot = SearchTrace.snapshot();
+            Assertions.assertEquals(2, snapshot.get(SearchPhase.TIME_TO_FIRST_BYTE).getCount());
+            Assertions.assertEquals(2, snapshot.get(SearchPhase.BUNDLE_PARSE).getCount());
+            Assertions.assertEquals(1, snapshot.get(SearchPhase.REQUEST_WRITE).getCount());
+        }
+    }
+}
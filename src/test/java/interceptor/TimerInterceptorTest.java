@@ -0,0 +1,68 @@
+package interceptor;
+
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TimerInterceptorTest {
+
+    private TimerInterceptor timerInterceptor;
+
+    @BeforeEach
+    public void setUp() {
+        timerInterceptor = new TimerInterceptor(1, 2);
+    }
+
+    private void exchange(String uri, Map<String, List<String>> headers, int status) throws IOException {
+        IHttpRequest request = mock(IHttpRequest.class);
+        when(request.getUri()).thenReturn(uri);
+        when(request.getAllHeaders()).thenReturn(headers);
+        IHttpResponse response = mock(IHttpResponse.class);
+        when(response.getStatus()).thenReturn(status);
+
+        timerInterceptor.interceptRequest(request);
+        timerInterceptor.interceptResponse(response);
+    }
+
+    @Test
+    public void testDimensions() throws IOException {
+        exchange("http://localhost/baseR4/metadata", Collections.emptyMap(), 200);
+        exchange("http://localhost/baseR4/Patient?family=SMITH", Collections.emptyMap(), 200);
+        exchange("http://localhost/baseR4/Patient?family=SMITH&_count=50",
+                Collections.singletonMap("Cache-Control", Collections.singletonList("no-cache, no-store")), 200);
+        exchange("http://localhost/baseR4/Patient?family=SMITH",
+                Collections.singletonMap("If-None-Match", Collections.singletonList("W/\"1\"")), 304);
+
+        LatencyMetrics metrics = timerInterceptor.getMetrics();
+        // The handshake is kept out of the search dimensions
+        Assertions.assertEquals(1, metrics.histogram("operation:metadata").getCount());
+        Assertions.assertEquals(4, metrics.histogram(LatencyMetrics.ALL).getCount());
+        Assertions.assertEquals(2, metrics.histogram("param:family").getCount());
+        Assertions.assertEquals(1, metrics.histogram("param:_count,family").getCount());
+        Assertions.assertEquals(2, metrics.histogram("status:200").getCount());
+        Assertions.assertEquals(1, metrics.histogram("status:304").getCount());
+        Assertions.assertEquals(1, metrics.histogram("cache:no-store").getCount());
+        Assertions.assertEquals(1, metrics.histogram("cache:conditional").getCount());
+        Assertions.assertEquals(1, metrics.histogram("cache:default").getCount());
+    }
+
+    @Test
+    public void testReport() throws IOException {
+        exchange("http://localhost/baseR4/Patient?family=SMITH", Collections.emptyMap(), 200);
+
+        String report = timerInterceptor.getMetrics().report();
+        Assertions.assertTrue(report.contains("param:family"));
+        Assertions.assertTrue(report.contains("p99.9="));
+        Assertions.assertTrue(report.contains("throughput="));
+    }
+}
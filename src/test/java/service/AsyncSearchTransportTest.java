@@ -0,0 +1,175 @@
+package service;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.sun.net.httpserver.HttpServer;
+import interceptor.LatencyMetrics;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+public class AsyncSearchTransportTest {
+
+    private static final String BUNDLE = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+            + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"1\",\"name\":[{\"family\":\"Smith\",\"given\":[\"Ann\"]}]}},"
+            + "{\"resource\":{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"warning\"}]}}]}";
+
+    private HttpServer server;
+    private String baseUrl;
+    private final LatencyMetrics metrics = new LatencyMetrics();
+    private final AtomicInteger received = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private final List<AsyncSearchTransport> transports = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir/Patient", exchange -> {
+            received.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String query = exchange.getRequestURI().getQuery();
+            if (query.endsWith("Missing")) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(BUNDLE.getBytes(StandardCharsets.UTF_8));
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            exchange.sendResponseHeaders(200, compressed.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                compressed.writeTo(out);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        transports.forEach(AsyncSearchTransport::close);
+        server.stop(0);
+    }
+
+    private AsyncSearchTransport transport(int maxInFlight) {
+        AsyncSearchTransport transport = new AsyncSearchTransport(FhirClientFactory.sharedContext(), baseUrl, maxInFlight, 5000, metrics);
+        transports.add(transport);
+        return transport;
+    }
+
+    /**
+     * A permit is released just after the future completed, once its dependent stages have run.
+     */
+    private static void awaitNoneInFlight(AsyncSearchTransport transport) throws InterruptedException {
+        for (int i = 0; i < 100 && transport.getInFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(0, transport.getInFlight());
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        AsyncSearchTransport.Response response = transport(4).search("Smith", false, null, r -> r).get(5, TimeUnit.SECONDS);
+
+        List<Patient> patients = response.getPatients();
+        Assertions.assertEquals(1, patients.size());
+        Assertions.assertEquals("Ann", patients.get(0).getNameFirstRep().getGivenAsSingleString());
+        Assertions.assertEquals("\"v1\"", response.getEtag());
+        Assertions.assertEquals(1, metrics.histogram("transport:async").getCount());
+        Assertions.assertEquals(1, metrics.histogram("cache:default").getCount());
+    }
+
+    @Test
+    public void testConditionalSearchNotModified() throws Exception {
+        SearchResultCache cache = new SearchResultCache(10, 0);
+        cache.put("k", Collections.singletonList(new Patient()), "\"v1\"", null);
+
+        AsyncSearchTransport.Response response = transport(4).search("Smith", false, cache.get("k"), r -> r).get(5, TimeUnit.SECONDS);
+
+        Assertions.assertTrue(response.isNotModified());
+        Assertions.assertEquals(1, metrics.histogram("status:304").getCount());
+        Assertions.assertEquals(1, metrics.histogram("cache:conditional").getCount());
+    }
+
+    @Test
+    public void testErrorStatus() throws Exception {
+        AsyncSearchTransport transport = transport(4);
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> transport.search("Missing", false, null, r -> r).get(5, TimeUnit.SECONDS));
+
+        Assertions.assertTrue(e.getCause() instanceof ResourceNotFoundException, e.getCause().toString());
+        awaitNoneInFlight(transport);
+    }
+
+    @Test
+    public void testUnreachableServer() {
+        server.stop(0);
+
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> transport(4).search("Smith", true, null, r -> r).get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof FhirClientConnectionException, e.getCause().toString());
+    }
+
+    @Test
+    public void testInFlightCapBlocksProducer() throws Exception {
+        release = new CountDownLatch(1);
+        AsyncSearchTransport transport = transport(2);
+        List<CompletableFuture<AsyncSearchTransport.Response>> searches = Collections.synchronizedList(new ArrayList<>());
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 5; i++) {
+                searches.add(transport.search("Smith" + i, true, null, r -> r));
+            }
+        });
+        producer.start();
+
+        // The producer sends two searches, then waits for a permit while the server holds both responses
+        while (received.get() < 2) {
+            Thread.sleep(10);
+        }
+        producer.join(200);
+        Assertions.assertTrue(producer.isAlive());
+        Assertions.assertEquals(2, searches.size());
+        Assertions.assertEquals(2, transport.getInFlight());
+
+        release.countDown();
+        producer.join(5000);
+        for (CompletableFuture<AsyncSearchTransport.Response> search : searches) {
+            Assertions.assertEquals(1, search.get(5, TimeUnit.SECONDS).getPatients().size());
+        }
+        Assertions.assertEquals(5, received.get());
+        awaitNoneInFlight(transport);
+    }
+}
@@ -0,0 +1,54 @@
+package service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class BatchBundlesTest {
+
+    private static Bundle searchset(String... givenNames) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        for (String given : givenNames) {
+            Patient patient = new Patient();
+            patient.addName().addGiven(given);
+            bundle.addEntry().setResource(patient);
+        }
+        return bundle;
+    }
+
+    @Test
+    public void testSearchBatch() {
+        Bundle batch = BatchBundles.searchBatch(Arrays.asList("SMITH", "O'NEIL VAN"));
+
+        Assertions.assertEquals(Bundle.BundleType.BATCH, batch.getType());
+        Assertions.assertEquals(2, batch.getEntry().size());
+        Assertions.assertEquals(Bundle.HTTPVerb.GET, batch.getEntry().get(0).getRequest().getMethod());
+        Assertions.assertEquals("Patient?family=SMITH", batch.getEntry().get(0).getRequest().getUrl());
+        Assertions.assertEquals("Patient?family=O%27NEIL+VAN", batch.getEntry().get(1).getRequest().getUrl());
+    }
+
+    @Test
+    public void testSplitResponse() {
+        List<String> names = Arrays.asList("SMITH", "JONES", "BROWN", "MISSING");
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+        response.addEntry().setResource(searchset("John", "Adam")).getResponse().setStatus("200 OK");
+        response.addEntry().setResource(new OperationOutcome()).getResponse().setStatus("500 Internal Server Error");
+        response.addEntry().setResource(searchset()).getResponse().setStatus("200 OK");
+
+        Map<String, List<Patient>> results = BatchBundles.splitResponse(names, response);
+
+        Assertions.assertEquals(2, results.get("SMITH").size());
+        Assertions.assertTrue(results.get("BROWN").isEmpty());
+        // Failed and missing entries are left for the caller to retry individually
+        Assertions.assertFalse(results.containsKey("JONES"));
+        Assertions.assertFalse(results.containsKey("MISSING"));
+    }
+}
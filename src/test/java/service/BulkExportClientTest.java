@@ -0,0 +1,141 @@
+package service;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BulkExportClientTest {
+
+    private HttpServer server;
+    private String baseUrl;
+    private final AtomicInteger statusPolls = new AtomicInteger();
+    private final AtomicInteger deletes = new AtomicInteger();
+    private volatile int kickOffStatus = 202;
+    private volatile int pendingPolls = 1;
+
+    private static String ndjson(int from, int to) {
+        StringBuilder lines = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            lines.append("{\"resourceType\":\"Patient\",\"id\":\"").append(i)
+                    .append("\",\"name\":[{\"family\":\"Smith\",\"given\":[\"Given").append(i)
+                    .append("\"]}],\"birthDate\":\"1980-01-01\"}\n");
+        }
+        return lines.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        // A length of 0 sends an empty chunked body, so the connection stays reusable
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+        server.createContext("/fhir/Patient/$export", exchange -> {
+            Assertions.assertEquals("respond-async", exchange.getRequestHeaders().getFirst("Prefer"));
+            exchange.getResponseHeaders().add("Content-Location", baseUrl + "/export-status/1");
+            respond(exchange, kickOffStatus, "");
+        });
+        server.createContext("/fhir/export-status/1", exchange -> {
+            if ("DELETE".equals(exchange.getRequestMethod())) {
+                deletes.incrementAndGet();
+                respond(exchange, 202, "");
+            } else if (statusPolls.incrementAndGet() <= pendingPolls) {
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                exchange.getResponseHeaders().add("X-Progress", "50%");
+                respond(exchange, 202, "");
+            } else {
+                respond(exchange, 200, "{\"transactionTime\":\"2024-01-01T00:00:00Z\",\"request\":\"" + baseUrl
+                        + "/Patient/$export\",\"requiresAccessToken\":false,\"output\":["
+                        + "{\"type\":\"Patient\",\"url\":\"" + baseUrl + "/files/1.ndjson\",\"count\":2501},"
+                        + "{\"type\":\"Observation\",\"url\":\"" + baseUrl + "/files/obs.ndjson\"},"
+                        + "{\"type\":\"Patient\",\"url\":\"" + baseUrl + "/files/2.ndjson\",\"count\":300}],\"error\":[]}");
+            }
+        });
+        server.createContext("/fhir/files/1.ndjson", exchange ->
+                respond(exchange, 200, ndjson(0, 1200) + "{\"resourceType\":\"Patient\",\"id\":\n\n" + ndjson(1200, 2500)));
+        server.createContext("/fhir/files/2.ndjson", exchange -> respond(exchange, 200, ndjson(2500, 2800)));
+        server.createContext("/fhir/files/obs.ndjson", exchange -> {
+            throw new AssertionError("Observation file must not be downloaded");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private BulkExportClient client(int parseThreads, int queueBatches, long timeoutMillis) {
+        return new BulkExportClient(baseUrl, FhirClientFactory.sharedHttpClient(), parseThreads, queueBatches, 10, timeoutMillis);
+    }
+
+    @Test
+    public void testExportPatients() {
+        BulkExportClient client = client(4, 2, 5000);
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+
+        long exported = client.exportPatients(patient -> {
+            Assertions.assertEquals("Given" + patient.getId(), patient.getNames().get(0).getFirstGiven());
+            ids.add(patient.getId());
+        });
+
+        Assertions.assertEquals(2800, exported);
+        Assertions.assertEquals(2800, ids.size());
+        BulkExportClient.Progress progress = client.getProgress();
+        Assertions.assertEquals(2, progress.getFilesDone());
+        Assertions.assertEquals(2801, progress.getLines());
+        Assertions.assertEquals(1, progress.getParseErrors());
+        Assertions.assertEquals(1, progress.getPolls());
+        Assertions.assertTrue(progress.getBytes() > 2800 * 90);
+        Assertions.assertEquals(baseUrl + "/export-status/1", progress.getStatusUrl());
+        Assertions.assertEquals(1, deletes.get());
+        Assertions.assertEquals(2, client.getMetrics().histogram("bulk:poll").getCount());
+        Assertions.assertEquals(2, client.getMetrics().histogram("bulk:download").getCount());
+    }
+
+    @Test
+    public void testConsumerFailureStopsDownload() {
+        BulkExportClient client = client(2, 1, 5000);
+        IllegalStateException thrown = Assertions.assertThrows(IllegalStateException.class, () ->
+                client.exportPatients(patient -> {
+                    if ("700".equals(patient.getId())) throw new IllegalStateException("consumer failed");
+                }));
+        Assertions.assertEquals("consumer failed", thrown.getMessage());
+        Assertions.assertEquals(0, client.getProgress().getFilesDone());
+        Assertions.assertEquals(0, deletes.get());
+    }
+
+    @Test
+    public void testKickOffRejected() {
+        kickOffStatus = 500;
+        Assertions.assertThrows(InternalErrorException.class, () -> client(1, 1, 5000).exportPatients(patient -> { }));
+    }
+
+    @Test
+    public void testExportTimesOut() {
+        pendingPolls = Integer.MAX_VALUE;
+        Assertions.assertThrows(FhirClientConnectionException.class, () -> client(1, 1, 100).exportPatients(patient -> { }));
+        Assertions.assertTrue(statusPolls.get() > 1);
+    }
+}
@@ -0,0 +1,163 @@
+package service;
+
+import com.sun.net.httpserver.HttpServer;
+import interceptor.LatencyMetrics;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EndpointRouterTest {
+
+    private static final String BUNDLE = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+            + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"1\",\"name\":[{\"family\":\"Smith\"}]}}]}";
+
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final List<StubFhirServer> stubs = new ArrayList<>();
+    private final List<AsyncSearchTransport> transports = new ArrayList<>();
+    private final List<EndpointRouter> routers = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown() {
+        routers.forEach(EndpointRouter::close);
+        transports.forEach(AsyncSearchTransport::close);
+        servers.forEach(server -> server.stop(0));
+        stubs.forEach(StubFhirServer::close);
+    }
+
+    @Test
+    public void testSlowSearchIsHedgedToOtherEndpoint() throws IOException {
+        // Whichever endpoint gets the first request stalls on it; the other one answers at once
+        AtomicInteger requests = new AtomicInteger();
+        String first = startServer(requests, 200);
+        String second = startServer(requests, 200);
+        EndpointRouter router = newRouter(first, second);
+
+        long start = System.nanoTime();
+        List<Patient> patients = router.search("SMITH", true, null, AsyncSearchTransport.Response::getPatients).join();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assertions.assertEquals(1, patients.size());
+        Assertions.assertTrue(millis < 1000, String.valueOf(millis));
+        Assertions.assertEquals(1, router.getHedgesSent());
+        Assertions.assertEquals(1, router.getHedgesWon());
+        for (EndpointRouter.Endpoint endpoint : router.getEndpoints()) {
+            Assertions.assertEquals(1, endpoint.getRequests());
+        }
+    }
+
+    @Test
+    public void testFailingEndpointIsFailedOverAndAvoided() throws IOException {
+        String failing = startServer(null, 500);
+        StubFhirServer stub = new StubFhirServer(1, 0);
+        stubs.add(stub);
+        EndpointRouter router = newRouter(failing, stub.getBaseUrl());
+
+        for (int i = 0; i < 40; i++) {
+            Assertions.assertEquals(1, router.search("SMITH", true, null, AsyncSearchTransport.Response::getPatients).join().size());
+        }
+
+        EndpointRouter.Endpoint bad = router.getEndpoints().get(0);
+        EndpointRouter.Endpoint good = router.getEndpoints().get(1);
+        Assertions.assertTrue(bad.getRequests() > 0);
+        Assertions.assertEquals(bad.getRequests(), bad.getErrors());
+        Assertions.assertTrue(bad.getErrorRate() > 0.5, String.valueOf(bad.getErrorRate()));
+        Assertions.assertEquals(40, good.getRequests());
+        Assertions.assertTrue(bad.getRequests() < 20, String.valueOf(bad.getRequests()));
+    }
+
+    @Test
+    public void testFhirClientRoutesAroundFailingPrimary() throws IOException {
+        String failing = startServer(null, 500);
+        StubFhirServer stub = new StubFhirServer(3, 0);
+        stubs.add(stub);
+        try (FhirClient fhirClient = new FhirClient(Arrays.asList(failing, stub.getBaseUrl()), 1, 1)) {
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertEquals(3, fhirClient.searchPatientsByLastName("SMITH", true).size());
+            }
+            Assertions.assertEquals(2, fhirClient.getRouter().getEndpoints().size());
+            Assertions.assertTrue(fhirClient.getRouter().report().contains(stub.getBaseUrl()));
+        }
+    }
+
+    @Test
+    public void testBlockingSearchesKeepInterceptorsOnEveryEndpoint() throws IOException {
+        StubFhirServer first = new StubFhirServer(2, 0);
+        StubFhirServer second = new StubFhirServer(2, 0);
+        stubs.add(first);
+        stubs.add(second);
+        try (FhirClient fhirClient = new FhirClient(Arrays.asList(first.getBaseUrl(), second.getBaseUrl()), 1, 20)) {
+            for (int i = 0; i < 20; i++) {
+                Assertions.assertEquals(2, fhirClient.searchPatientsByLastName("SMITH", true).size());
+            }
+
+            // Timed by the TimerInterceptor of whichever endpoint's generic client ran the search
+            Assertions.assertEquals(20, fhirClient.getMetrics().histogram("param:family").getCount());
+            // Routing adds its own dimensions but does not count the requests a second time
+            Assertions.assertEquals(20, fhirClient.getMetrics().histogram(LatencyMetrics.ALL).getCount());
+            Assertions.assertEquals(20, fhirClient.getMetrics().histogram("route:primary").getCount());
+
+            Assertions.assertEquals(20, fhirClient.getRouter().getEndpoints().stream()
+                    .mapToLong(EndpointRouter.Endpoint::getRequests).sum());
+            Assertions.assertEquals(20, first.getSearches() + second.getSearches());
+
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertEquals(2, fhirClient.searchPatientsByLastNameAsync("JONES", true).join().size());
+            }
+            // One sample per request timed by the async transport; a hedge is a request of its own, unless it was
+            // cancelled before its response arrived
+            long all = fhirClient.getMetrics().histogram(LatencyMetrics.ALL).getCount();
+            Assertions.assertTrue(all >= 30 && all <= 30 + fhirClient.getRouter().getHedgesSent(), "all: " + all);
+        }
+    }
+
+    /**
+     * Starts a server answering Patient searches with one patient, or with the given error status. If
+     * {@code requests} is set, the first request counted on it is answered after 2 s.
+     */
+    private String startServer(AtomicInteger requests, int status) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir/Patient", exchange -> {
+            if (requests != null && requests.getAndIncrement() == 0) {
+                try {
+                    TimeUnit.SECONDS.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = status == 200 ? BUNDLE.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool(new DaemonThreadFactory("router-test")));
+        server.start();
+        servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    private EndpointRouter newRouter(String... baseUrls) {
+        LatencyMetrics metrics = new LatencyMetrics();
+        List<AsyncSearchTransport> routed = new ArrayList<>();
+        for (String baseUrl : baseUrls) {
+            routed.add(new AsyncSearchTransport(FhirClientFactory.sharedContext(), baseUrl, 16, 10_000, metrics));
+        }
+        transports.addAll(routed);
+        EndpointRouter router = new EndpointRouter(routed, 95, 50, 0.1, metrics);
+        routers.add(router);
+        return router;
+    }
+}
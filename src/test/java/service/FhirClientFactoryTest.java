@@ -0,0 +1,96 @@
+package service;
+
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class FhirClientFactoryTest {
+
+    private HttpServer server;
+    private String baseUrl;
+    private final Queue<String> requests = new ConcurrentLinkedQueue<>();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir", exchange -> {
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] body = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+        FhirClientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+    }
+
+    @Test
+    public void testSharedContext() {
+        Assertions.assertSame(FhirClientFactory.sharedContext(), FhirClientFactory.sharedContext());
+        Assertions.assertSame(FhirClientFactory.sharedContext(), FhirClientFactory.newGenericClient(baseUrl).getFhirContext());
+        Assertions.assertSame(FhirClientFactory.sharedHttpClient(), FhirClientFactory.sharedHttpClient());
+    }
+
+    @Test
+    public void testNoHandshakeByDefault() {
+        Assertions.assertEquals(ServerValidationModeEnum.NEVER, FhirClientFactory.getServerValidationMode());
+
+        FhirClientFactory.newGenericClient(baseUrl).search().forResource("Patient").returnBundle(Bundle.class).execute();
+
+        Assertions.assertEquals(1, requests.size());
+        Assertions.assertEquals("GET /fhir/Patient", requests.peek());
+    }
+
+    @Test
+    public void testPrewarm() throws Exception {
+        int opened = FhirClientFactory.prewarm(baseUrl, 3).get(5, TimeUnit.SECONDS);
+
+        Assertions.assertEquals(3, opened);
+        Assertions.assertEquals(3, FhirClientFactory.poolStats(baseUrl).getAvailable());
+        Assertions.assertTrue(requests.isEmpty());
+        // Already open connections count as warm, no more are opened
+        Assertions.assertEquals(2, FhirClientFactory.prewarm(baseUrl, 2).get(5, TimeUnit.SECONDS).intValue());
+        Assertions.assertEquals(3, FhirClientFactory.poolStats(baseUrl).getAvailable());
+
+        // Requests run on the warm connections instead of connecting again
+        for (int i = 0; i < 3; i++) {
+            FhirClientFactory.newGenericClient(baseUrl).search().forResource("Patient").returnBundle(Bundle.class).execute();
+        }
+        Assertions.assertEquals(1, clientPorts.size());
+        Assertions.assertEquals(3, FhirClientFactory.poolStats(baseUrl).getAvailable());
+    }
+
+    @Test
+    public void testPrewarmUnreachableServer() throws Exception {
+        server.stop(0);
+
+        Assertions.assertEquals(0, FhirClientFactory.prewarm(baseUrl, 2).get(5, TimeUnit.SECONDS).intValue());
+        Assertions.assertEquals(0, FhirClientFactory.prewarm(baseUrl, 0).get().intValue());
+    }
+}
@@ -1,16 +1,238 @@
+package service;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import com.sun.net.httpserver.HttpServer;
+import interceptor.PayloadStats;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
 public class FhirClientTest {
 
+    private static final String CAPABILITY_STATEMENT = "{\"resourceType\":\"CapabilityStatement\",\"status\":\"active\","
+            + "\"date\":\"2024-01-01\",\"kind\":\"instance\",\"fhirVersion\":\"4.0.1\",\"format\":[\"json\"]}";
+
+    private HttpServer server;
+    private FhirClient fhirClient;
+    private final Queue<String> patientQueries = new ConcurrentLinkedQueue<>();
+    private volatile CountDownLatch patientGate = new CountDownLatch(0);
+    private final AtomicInteger batchPosts = new AtomicInteger();
+    private volatile int batchStatus = 200;
+
+    private static String searchset(int patients) {
+        StringBuilder json = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":[");
+        for (int i = 0; i < patients; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"").append(i)
+                    .append("\",\"name\":[{\"family\":\"Smith\",\"given\":[\"Given").append(i)
+                    .append("\"]}],\"birthDate\":\"1980-01-01\"}}");
+        }
+        return json.append("]}").toString();
+    }
+
     @BeforeEach
-    public void setUp() {
-        // Initialize any test-specific setup here
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir/metadata", exchange -> {
+            byte[] body = CAPABILITY_STATEMENT.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.createContext("/fhir/Patient", exchange -> {
+            patientQueries.add(exchange.getRequestURI().getRawQuery());
+            try {
+                patientGate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = searchset(200).getBytes(StandardCharsets.UTF_8);
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                }
+                body = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        // Batch Bundles are posted to the base URL: every entry gets a searchset of 3, except names starting with FAIL
+        server.createContext("/fhir", exchange -> {
+            batchPosts.incrementAndGet();
+            String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Bundle batch = EncodingEnum.detectEncoding(request).newParser(FhirClientFactory.sharedContext())
+                    .parseResource(Bundle.class, request);
+            Bundle response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+            for (Bundle.BundleEntryComponent entry : batch.getEntry()) {
+                if (entry.getRequest().getUrl().contains("family=FAIL")) {
+                    response.addEntry().getResponse().setStatus("500 Internal Server Error");
+                } else {
+                    response.addEntry().setResource(FhirClientFactory.sharedContext().newJsonParser()
+                            .parseResource(Bundle.class, searchset(3))).getResponse().setStatus("200 OK");
+                }
+            }
+            byte[] body = batchStatus == 200
+                    ? FhirClientFactory.sharedContext().newJsonParser().encodeResourceToString(response).getBytes(StandardCharsets.UTF_8)
+                    : new byte[0];
+            exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+            exchange.sendResponseHeaders(batchStatus, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        fhirClient = new FhirClient("http://127.0.0.1:" + server.getAddress().getPort() + "/fhir", 1, 20);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        patientGate.countDown();
+        fhirClient.close();
+        server.stop(0);
     }
 
     @Test
     public void testSearchPatientsByLastName() {
-        // Define your test case here
-        // Ensure correct behavior of searchPatientsByLastName method
+        List<Patient> patients = fhirClient.searchPatientsByLastName("SMITH", false);
+        Assertions.assertEquals(200, patients.size());
+        Assertions.assertEquals("Smith", patients.get(0).getNameFirstRep().getFamily());
+
+        // Second search is answered by the in-process cache, a disabled cache forces a fresh fetch
+        fhirClient.searchPatientsByLastName("smith", false);
+        Assertions.assertEquals(1, patientQueries.size());
+        Assertions.assertEquals(1, fhirClient.getCache().getHits());
+        fhirClient.searchPatientsByLastName("SMITH", true);
+        Assertions.assertEquals(2, patientQueries.size());
+    }
+
+    @Test
+    public void testSearchPatientsByLastNameAsync() throws Exception {
+        List<Patient> patients = fhirClient.searchPatientsByLastNameAsync("SMITH", false).get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals(200, patients.size());
+
+        // The async search shares the in-process cache with the blocking one
+        Assertions.assertEquals(200, fhirClient.searchPatientsByLastName("smith", false).size());
+        Assertions.assertTrue(fhirClient.searchPatientsByLastNameAsync("Smith", false).isDone());
+        Assertions.assertEquals(1, patientQueries.size());
+        Assertions.assertEquals(2, fhirClient.getCache().getHits());
+        Assertions.assertEquals(1, fhirClient.getMetrics().histogram("transport:async").getCount());
+    }
+
+    @Test
+    public void testConcurrentIdenticalSearchesAreMerged() throws Exception {
+        patientGate = new CountDownLatch(1);
+        List<CompletableFuture<List<Patient>>> searches = new ArrayList<>();
+        for (String name : Arrays.asList("SMITH", "smith", " Smith")) {
+            searches.add(CompletableFuture.supplyAsync(() -> fhirClient.searchPatientsByLastName(name, true)));
+        }
+        searches.add(fhirClient.searchPatientsByLastNameAsync("SMITH", true));
+        for (int i = 0; i < 500 && fhirClient.getInFlightSearches().getMerged() < 3; i++) {
+            Thread.sleep(10);
+        }
+        patientGate.countDown();
+
+        for (CompletableFuture<List<Patient>> search : searches) {
+            Assertions.assertEquals(200, search.get(5, TimeUnit.SECONDS).size());
+        }
+        Assertions.assertEquals(1, patientQueries.size());
+        Assertions.assertEquals(3, fhirClient.getInFlightSearches().getMerged());
+        // A different cache directive is a different search
+        fhirClient.searchPatientsByLastName("SMITH", false);
+        Assertions.assertEquals(2, patientQueries.size());
+    }
+
+    @Test
+    public void testSearchPatientSummaries() {
+        List<PatientSummary> summaries = fhirClient.searchPatientSummariesByLastName("SMITH");
+
+        Assertions.assertEquals(200, summaries.size());
+        Assertions.assertEquals("Given0", summaries.get(0).getNameWithFamily("SMITH").getFirstGiven());
+        Assertions.assertEquals("1980-01-01", summaries.get(0).getBirthDate());
+        Assertions.assertTrue(patientQueries.peek().startsWith("family=SMITH&_count="));
+    }
+
+    @Test
+    public void testProjectedSearch() {
+        ProjectedSearchResult result = fhirClient.searchPatientsByLastName("SMITH", SearchProjection.NAME_AND_BIRTH_DATE);
+
+        Assertions.assertEquals(200, result.getPatients().size());
+        Assertions.assertEquals("1980-01-01", result.getPatients().get(0).getBirthDateElement().getValueAsString());
+        String query = patientQueries.peek();
+        Assertions.assertTrue(query.contains("_elements="), query);
+        Assertions.assertTrue(query.contains("birthDate"), query);
+
+        PayloadStats stats = result.getStats();
+        Assertions.assertEquals("gzip", stats.getContentEncoding());
+        Assertions.assertTrue(stats.getWireBytes() > 0);
+        // The compressed transfer is much smaller than the JSON it decodes to
+        Assertions.assertTrue(stats.getWireBytes() < searchset(200).length() / 4, stats.toString());
+    }
+
+    @Test
+    public void testSearchPatientsByLastNamesInBatches() {
+        Map<String, List<Patient>> results = fhirClient.searchPatientsByLastNames(
+                Arrays.asList("SMITH", "JONES", "FAILED", "LEE", "WRIGHT"), true, 3);
+
+        // Two batches; the failed entry is retried on its own
+        Assertions.assertEquals(2, batchPosts.get());
+        Assertions.assertEquals(Arrays.asList("family=FAILED"), new ArrayList<>(patientQueries));
+        Assertions.assertEquals(3, results.get("SMITH").size());
+        Assertions.assertEquals(200, results.get("FAILED").size());
+        Assertions.assertEquals(3, results.get("WRIGHT").size());
+    }
+
+    @Test
+    public void testTransientBatchFailureFallsBackForThatBatchOnly() {
+        batchStatus = 429;
+        Map<String, List<Patient>> results = fhirClient.searchPatientsByLastNames(Arrays.asList("SMITH", "JONES"), true, 10);
+
+        Assertions.assertEquals(200, results.get("SMITH").size());
+        Assertions.assertEquals(2, patientQueries.size());
+
+        batchStatus = 200;
+        results = fhirClient.searchPatientsByLastNames(Arrays.asList("LEE", "WRIGHT"), true, 10);
+        Assertions.assertEquals(2, batchPosts.get());
+        Assertions.assertEquals(3, results.get("LEE").size());
+        Assertions.assertEquals(2, patientQueries.size());
+    }
+
+    @Test
+    public void testBatchRejectionDisablesBatching() {
+        batchStatus = 405;
+        Assertions.assertEquals(200, fhirClient.searchPatientsByLastNames(Arrays.asList("SMITH", "JONES"), true, 10).get("JONES").size());
+
+        batchStatus = 200;
+        Assertions.assertEquals(200, fhirClient.searchPatientsByLastNames(Arrays.asList("LEE", "WRIGHT"), true, 10).get("LEE").size());
+        Assertions.assertEquals(1, batchPosts.get());
+        Assertions.assertEquals(4, patientQueries.size());
     }
 }
@@ -0,0 +1,131 @@
+package service;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.*;
+
+public class ParallelPatientSearchTest {
+
+    @Mock
+    private FhirClient fhirClient;
+    private AutoCloseable mocks;
+
+    @BeforeEach
+    public void setUp() {
+        mocks = MockitoAnnotations.openMocks(this);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        mocks.close();
+    }
+
+    @Test
+    public void testSearch_ResultsKeyedByName() {
+        Patient smith = new Patient();
+        smith.addName().setFamily("Smith").addGiven("John");
+        when(fhirClient.searchPatientsByLastName("SMITH", false)).thenReturn(Collections.singletonList(smith));
+        when(fhirClient.searchPatientsByLastName("DAVIDZO", false)).thenReturn(Collections.emptyList());
+
+        try (ParallelPatientSearch search = new ParallelPatientSearch(fhirClient, 4, 5000)) {
+            ParallelSearchResult result = search.search(Arrays.asList("SMITH", "DAVIDZO", "SMITH"), false);
+
+            Assertions.assertFalse(result.hasFailures());
+            Assertions.assertEquals(Arrays.asList("SMITH", "DAVIDZO"), Arrays.asList(result.getResults().keySet().toArray()));
+            Assertions.assertEquals(1, result.getResults().get("SMITH").size());
+            Assertions.assertTrue(result.getResults().get("DAVIDZO").isEmpty());
+        }
+        // Duplicate names are searched only once
+        verify(fhirClient, times(1)).searchPatientsByLastName("SMITH", false);
+    }
+
+    @Test
+    public void testSearch_PartialFailureAndTimeout() {
+        when(fhirClient.searchPatientsByLastName("SMITH", true)).thenReturn(Collections.emptyList());
+        when(fhirClient.searchPatientsByLastName("BROKEN", true)).thenThrow(FHIRException.class);
+        when(fhirClient.searchPatientsByLastName("SLOW", true)).thenAnswer(invocation -> {
+            Thread.sleep(2000);
+            return Collections.emptyList();
+        });
+
+        try (ParallelPatientSearch search = new ParallelPatientSearch(fhirClient, 2, 200)) {
+            ParallelSearchResult result = search.search(Arrays.asList("SLOW", "BROKEN", "SMITH"), true);
+
+            Assertions.assertTrue(result.hasFailures());
+            Assertions.assertTrue(result.getResults().containsKey("SMITH"));
+            Assertions.assertTrue(result.getFailures().get("BROKEN") instanceof FHIRException);
+            Assertions.assertTrue(result.getFailures().get("SLOW") instanceof TimeoutException);
+            // The slow name must not hold up the rest of the batch
+            Assertions.assertTrue(result.getElapsedMillis() < 2000);
+        }
+    }
+
+    @Test
+    public void testSearch_ConcurrencyIsBounded() {
+        final int[] inFlight = {0};
+        final int[] maxInFlight = {0};
+        when(fhirClient.searchPatientsByLastName(any(), anyBoolean())).thenAnswer(invocation -> {
+            synchronized (inFlight) {
+                maxInFlight[0] = Math.max(maxInFlight[0], ++inFlight[0]);
+            }
+            Thread.sleep(50);
+            synchronized (inFlight) {
+                inFlight[0]--;
+            }
+            return Collections.emptyList();
+        });
+
+        List<String> names = Arrays.asList("A", "B", "C", "D", "E", "F", "G", "H");
+        try (ParallelPatientSearch search = new ParallelPatientSearch(fhirClient, 3, 5000)) {
+            ParallelSearchResult result = search.search(names, false);
+            Assertions.assertEquals(names.size(), result.getResults().size());
+        }
+        Assertions.assertTrue(maxInFlight[0] <= 3);
+    }
+
+    @Test
+    public void testSearch_TimeoutInterruptsWorkerAndFreesItsSlot() {
+        AtomicBoolean interrupted = new AtomicBoolean();
+        when(fhirClient.searchPatientsByLastName("SLOW", true)).thenAnswer(invocation -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+                throw e;
+            }
+            return Collections.emptyList();
+        });
+        when(fhirClient.searchPatientsByLastName("SMITH", true)).thenReturn(Collections.emptyList());
+        when(fhirClient.searchPatientsByLastName("JONES", true)).thenReturn(Collections.emptyList());
+
+        // A single slot: the other names only run once the slow search has given it back
+        try (ParallelPatientSearch search = new ParallelPatientSearch(fhirClient, 1, 200)) {
+            ParallelSearchResult result = search.search(Arrays.asList("SLOW", "SMITH", "JONES"), true);
+
+            Assertions.assertTrue(result.getFailures().get("SLOW") instanceof TimeoutException);
+            Assertions.assertEquals(Arrays.asList("SMITH", "JONES"), Arrays.asList(result.getResults().keySet().toArray()));
+            Assertions.assertTrue(result.getElapsedMillis() < 2000, String.valueOf(result.getElapsedMillis()));
+        }
+        verify(fhirClient, timeout(1000)).searchPatientsByLastName("JONES", true);
+        Assertions.assertTrue(interrupted.get());
+    }
+
+    @Test
+    public void testConstructor_InvalidConcurrency() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ParallelPatientSearch(fhirClient, 0, 1000));
+    }
+}
@@ -0,0 +1,84 @@
+package service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class PatientIndexSyncTest {
+
+    private static final String FULL = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+            + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"1\",\"name\":[{\"family\":\"Smith\",\"given\":[\"Ann\"]}],\"birthDate\":\"1980-01-02\"}},"
+            + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"2\",\"name\":[{\"family\":\"Jones\",\"given\":[\"Bob\"]}]}}]}";
+    private static final String DELTA = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+            + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"2\",\"name\":[{\"family\":\"Smithson\",\"given\":[\"Bob\"]}]}}]}";
+
+    private HttpServer server;
+    private FhirClient fhirClient;
+    private final Queue<String> patientQueries = new ConcurrentLinkedQueue<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir/Patient", exchange -> {
+            String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), StandardCharsets.UTF_8.name());
+            patientQueries.add(query);
+            byte[] body = (query.contains("_lastUpdated") ? DELTA : FULL).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        fhirClient = new FhirClient("http://127.0.0.1:" + server.getAddress().getPort() + "/fhir", 1, 20);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        fhirClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testLoadThenDeltaSync() {
+        Clock clock = Clock.fixed(Instant.parse("2024-03-01T10:15:30.250Z"), ZoneOffset.UTC);
+        try (PatientIndexSync sync = new PatientIndexSync(fhirClient, new PatientIndex(), clock)) {
+            PatientIndex index = sync.getIndex();
+            Assertions.assertNull(sync.getLastSync());
+
+            Assertions.assertEquals(2, sync.sync());
+            Assertions.assertEquals(2, index.size());
+            Assertions.assertEquals("1980-01-02", index.searchByFamily("smi").get(0).getBirthDate());
+            Assertions.assertTrue(patientQueries.peek().contains("_elements=name,birthDate"));
+            Assertions.assertFalse(patientQueries.poll().contains("_lastUpdated"));
+
+            // Later syncs only ask for patients changed since the previous one, less the clock skew margin
+            Assertions.assertEquals(1, sync.sync());
+            Assertions.assertTrue(patientQueries.poll().contains("_lastUpdated=ge2024-03-01T10:14:30Z"));
+            List<PatientSummary> smiths = index.searchByFamily("Smith");
+            Assertions.assertEquals(2, smiths.size());
+            Assertions.assertEquals("Smithson", smiths.get(1).getNames().get(0).getFamily());
+            Assertions.assertTrue(index.searchByFamily("Jones").isEmpty());
+            Assertions.assertEquals(2, index.size());
+
+            // A full load starts over from the server content
+            Assertions.assertEquals(2, sync.load());
+            Assertions.assertEquals(1, index.searchByFamily("Jones").size());
+            Assertions.assertEquals(clock.instant(), sync.getLastSync());
+        }
+    }
+}
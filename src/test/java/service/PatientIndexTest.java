@@ -0,0 +1,114 @@
+package service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class PatientIndexTest {
+
+    private static PatientSummary patient(String id, String birthDate, PatientSummary.Name... names) {
+        return new PatientSummary(id, Arrays.asList(names), birthDate);
+    }
+
+    private static PatientSummary.Name name(String family, String... given) {
+        return new PatientSummary.Name(family, Arrays.asList(given));
+    }
+
+    private static List<String> ids(List<PatientSummary> patients) {
+        return patients.stream().map(PatientSummary::getId).collect(Collectors.toList());
+    }
+
+    private static PatientIndex index() {
+        PatientIndex index = new PatientIndex();
+        index.upsert(Arrays.asList(
+                patient("1", "1980-01-02", name("Smith", "Ann", "Marie")),
+                patient("2", "1975", name("Smithers", "Bob")),
+                patient("3", null, name("Smyth", "Cy")),
+                patient("4", "1990-07", name("Warden", "Dee"), name("Smith", "Dee")),
+                patient("5", "2001-12-31", name("\u015Amigielski", "Ewa")),
+                patient("6", "1988-03-04", name("Jones", "Fay"))));
+        index.compact();
+        return index;
+    }
+
+    @Test
+    public void testPrefixSearch() {
+        PatientIndex index = index();
+
+        Assertions.assertEquals(Arrays.asList("5", "1", "4", "2"), ids(index.searchByFamily("smi")));
+        Assertions.assertEquals(Arrays.asList("1", "4", "2"), ids(index.searchByFamily(" SMITH ")));
+        Assertions.assertEquals(Collections.singletonList("3"), ids(index.searchByFamily("Smy")));
+        Assertions.assertTrue(index.searchByFamily("Smx").isEmpty());
+        Assertions.assertEquals(6, index.searchByFamily("").size());
+        Assertions.assertEquals(6, index.size());
+    }
+
+    @Test
+    public void testMatchingNamesAndBirthDate() {
+        PatientIndex index = index();
+
+        PatientSummary ann = index.searchByFamily("Smith").get(0);
+        Assertions.assertEquals("1980-01-02", ann.getBirthDate());
+        Assertions.assertEquals(Arrays.asList("Ann", "Marie"), ann.getNameWithFamily("SMITH").getGiven());
+
+        // Only the matching name of a patient with several is returned
+        PatientSummary dee = index.searchByFamily("Smith").get(1);
+        Assertions.assertEquals(1, dee.getNames().size());
+        Assertions.assertEquals("Smith", dee.getNames().get(0).getFamily());
+        Assertions.assertEquals("1990-07", dee.getBirthDate());
+        Assertions.assertEquals("Warden", index.searchByFamily("war").get(0).getNames().get(0).getFamily());
+
+        Assertions.assertEquals("1975", index.searchByFamily("Smithers").get(0).getBirthDate());
+        Assertions.assertNull(index.searchByFamily("Smyth").get(0).getBirthDate());
+        Assertions.assertEquals("\u015Amigielski", index.searchByFamily("smig").get(0).getNames().get(0).getFamily());
+    }
+
+    @Test
+    public void testUpsertReplacesPatients() {
+        PatientIndex index = index();
+
+        index.upsert(Arrays.asList(
+                patient("1", "1980-01-02", name("Jonas", "Ann")),
+                patient("7", null, name("Smith", "Gus"))));
+
+        // Pending updates follow the sorted segment until compacted
+        Assertions.assertEquals(Arrays.asList("4", "2", "7"), ids(index.searchByFamily("Smith")));
+        Assertions.assertEquals(Arrays.asList("6", "1"), ids(index.searchByFamily("Jon")));
+        Assertions.assertEquals(7, index.size());
+
+        index.compact();
+        Assertions.assertEquals(Arrays.asList("4", "7", "2"), ids(index.searchByFamily("Smith")));
+        Assertions.assertEquals(7, index.size());
+    }
+
+    @Test
+    public void testLargeIndexIsCompact() {
+        PatientIndex index = new PatientIndex();
+        List<PatientSummary> patients = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            patients.add(patient(String.valueOf(1_000_000 + i), "1980-01-01", name("Family" + (i % 1000), "Given" + i)));
+        }
+        index.upsert(patients);
+        index.compact();
+
+        Assertions.assertEquals(100_000, index.size());
+        Assertions.assertEquals(100, index.searchByFamily("Family999").size());
+        Assertions.assertEquals(1100, index.searchByFamily("Family99").size());
+        // About 30 bytes per patient: 8 bytes of arrays plus pooled id and given name
+        Assertions.assertTrue(index.getSegmentBytes() < 100_000 * 35, String.valueOf(index.getSegmentBytes()));
+    }
+
+    @Test
+    public void testPackDate() {
+        Assertions.assertEquals(19800102, PatientIndex.packDate("1980-01-02"));
+        Assertions.assertEquals("1980-01-02", PatientIndex.unpackDate(19800102));
+        Assertions.assertEquals("1980-01", PatientIndex.unpackDate(PatientIndex.packDate("1980-01")));
+        Assertions.assertEquals(0, PatientIndex.packDate("not a date"));
+        Assertions.assertNull(PatientIndex.unpackDate(0));
+    }
+}
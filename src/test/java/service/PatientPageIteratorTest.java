@@ -0,0 +1,109 @@
+package service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+public class PatientPageIteratorTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Builds a chain of pages where each page links to the next one by its index.
+     */
+    private static List<Bundle> pages(int pageCount, int pageSize) {
+        List<Bundle> pages = new ArrayList<>();
+        for (int p = 0; p < pageCount; p++) {
+            Bundle bundle = new Bundle();
+            for (int i = 0; i < pageSize; i++) {
+                Patient patient = new Patient();
+                patient.setId("p" + (p * pageSize + i));
+                bundle.addEntry().setResource(patient);
+            }
+            if (p < pageCount - 1) {
+                bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl(String.valueOf(p + 1));
+            }
+            pages.add(bundle);
+        }
+        return pages;
+    }
+
+    @Test
+    public void testFollowsNextLinks() {
+        List<Bundle> pages = pages(3, 4);
+        AtomicInteger loads = new AtomicInteger();
+        UnaryOperator<Bundle> loader = page -> {
+            loads.incrementAndGet();
+            return pages.get(Integer.parseInt(page.getLink(Bundle.LINK_NEXT).getUrl()));
+        };
+
+        PatientPageIterator iterator = new PatientPageIterator(pages.get(0), loader, executor, 100);
+        List<String> ids = new ArrayList<>();
+        iterator.forEachRemaining(patient -> ids.add(patient.getIdElement().getIdPart()));
+
+        Assertions.assertEquals(12, ids.size());
+        Assertions.assertEquals("p0", ids.get(0));
+        Assertions.assertEquals("p11", ids.get(11));
+        Assertions.assertEquals(3, iterator.getPagesLoaded());
+        Assertions.assertEquals(2, loads.get());
+        Assertions.assertThrows(NoSuchElementException.class, iterator::next);
+    }
+
+    @Test
+    public void testMaxResultsStopsPaging() {
+        List<Bundle> pages = pages(10, 5);
+        AtomicInteger loads = new AtomicInteger();
+        UnaryOperator<Bundle> loader = page -> {
+            loads.incrementAndGet();
+            return pages.get(Integer.parseInt(page.getLink(Bundle.LINK_NEXT).getUrl()));
+        };
+
+        PatientPageIterator iterator = new PatientPageIterator(pages.get(0), loader, executor, 7);
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+
+        Assertions.assertEquals(7, count);
+        // Only the page needed for the cap is fetched, nothing beyond it is prefetched
+        Assertions.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testSkipsNonPatientEntries() {
+        Bundle page = pages(1, 2).get(0);
+        page.addEntry().setResource(new OperationOutcome());
+
+        PatientPageIterator iterator = new PatientPageIterator(page, p -> null, executor, 100);
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        Assertions.assertEquals(2, count);
+    }
+
+    @Test
+    public void testPrefetchFailureIsRethrown() {
+        List<Bundle> pages = pages(2, 1);
+        UnaryOperator<Bundle> loader = page -> {
+            throw new IllegalStateException("server unavailable");
+        };
+
+        PatientPageIterator iterator = new PatientPageIterator(pages.get(0), loader, executor, 100);
+        Assertions.assertTrue(iterator.hasNext());
+        iterator.next();
+        Assertions.assertThrows(IllegalStateException.class, iterator::hasNext);
+    }
+}
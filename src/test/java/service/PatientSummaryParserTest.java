@@ -0,0 +1,63 @@
+package service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PatientSummaryParserTest {
+
+    private final PatientSummaryParser parser = new PatientSummaryParser();
+
+    @Test
+    public void testParseMockPatients() throws IOException {
+        String entries = new String(Files.readAllBytes(Paths.get("src/test/java/helper/mock_patients_list.json")), StandardCharsets.UTF_8);
+        String bundle = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":" + entries + "}";
+
+        List<PatientSummary> patients = new ArrayList<>();
+        String nextLink = parser.parse(new StringReader(bundle), patients::add);
+
+        Assertions.assertNull(nextLink);
+        Assertions.assertEquals(20, patients.size());
+        PatientSummary first = patients.get(0);
+        Assertions.assertEquals("594843", first.getId());
+        Assertions.assertEquals("1980-01-01", first.getBirthDate());
+        Assertions.assertEquals(2, first.getNames().size());
+        // For patients who have multiple names, the entry with the matching family name is picked
+        Assertions.assertEquals("Michelle", first.getNameWithFamily("SMITH").getFirstGiven());
+        Assertions.assertEquals("Nilesh", first.getNameWithFamily("davidzo").getFirstGiven());
+        Assertions.assertNull(first.getNameWithFamily("Jones"));
+    }
+
+    @Test
+    public void testNextLinkAndOtherResources() throws IOException {
+        String bundle = "{\"resourceType\":\"Bundle\",\"link\":[{\"relation\":\"self\",\"url\":\"http://x/Patient?family=A\"},"
+                + "{\"relation\":\"next\",\"url\":\"http://x?_getpages=abc\"}],\"entry\":["
+                + "{\"fullUrl\":\"http://x/Patient/1\",\"resource\":{\"id\":\"1\",\"name\":[{\"family\":\"A\",\"given\":[\"Bea\",\"Mae\"]}],"
+                + "\"meta\":{\"tag\":[{\"code\":\"x\"}]},\"resourceType\":\"Patient\"},\"search\":{\"mode\":\"match\"}},"
+                + "{\"resource\":{\"resourceType\":\"OperationOutcome\",\"id\":\"warn\",\"issue\":[{\"severity\":\"warning\"}]}},"
+                + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"2\",\"name\":[{\"family\":null,\"text\":\"Anon\"}]}}]}";
+
+        List<PatientSummary> patients = new ArrayList<>();
+        String nextLink = parser.parse(new StringReader(bundle), patients::add);
+
+        Assertions.assertEquals("http://x?_getpages=abc", nextLink);
+        Assertions.assertEquals(2, patients.size());
+        // resourceType after the other members still yields a patient
+        Assertions.assertEquals("1", patients.get(0).getId());
+        Assertions.assertEquals(2, patients.get(0).getNameWithFamily("a").getGiven().size());
+        Assertions.assertNull(patients.get(1).getBirthDate());
+        Assertions.assertNull(patients.get(1).getNames().get(0).getFirstGiven());
+    }
+
+    @Test
+    public void testMalformedJson() {
+        Assertions.assertThrows(IOException.class, () -> parser.parse(new StringReader("{\"entry\":[{"), patient -> { }));
+    }
+}
@@ -0,0 +1,121 @@
+package service;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import interceptor.LatencyMetrics;
+import interceptor.RecordedExchange;
+import interceptor.RecordingInterceptor;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class ReplayFhirServerTest {
+
+    private static final String BUNDLE = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+            + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"%s\",\"name\":[{\"family\":\"Smith\"}]}}]}";
+
+    private static RecordedExchange exchange(String path, long latencyMicros, String id) {
+        return new RecordedExchange("GET", path, 200, latencyMicros,
+                Collections.singletonMap("Content-Type", "application/fhir+json"), String.format(BUNDLE, id));
+    }
+
+    private static HttpResponse<String> get(String url) throws IOException, InterruptedException {
+        return HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static List<String> ids(List<Patient> patients) {
+        return patients.stream().map(patient -> patient.getIdElement().getIdPart()).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testRecordedSearchesReplayIdentically(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("searches.ndjson");
+        List<String> names = Arrays.asList("SMITH", "JONES", "O'BRIEN");
+        List<List<String>> recorded;
+        try (StubFhirServer stub = new StubFhirServer(3, 0);
+             RecordingInterceptor recording = new RecordingInterceptor(file, stub.getBaseUrl())) {
+            IGenericClient client = FhirClientFactory.newGenericClient(stub.getBaseUrl());
+            client.registerInterceptor(recording);
+            recorded = names.stream().map(name -> ids(FhirClient.toPatients(client.search().forResource("Patient")
+                    .where(Patient.FAMILY.matches().value(name)).returnBundle(Bundle.class).execute())))
+                    .collect(Collectors.toList());
+            Assertions.assertEquals(3, recording.getRecorded());
+        }
+
+        try (ReplayFhirServer replay = ReplayFhirServer.fromFile(file, 0);
+             FhirClient fhirClient = new FhirClient(replay.getBaseUrl(), 1, names.size())) {
+            for (int i = 0; i < names.size(); i++) {
+                Assertions.assertEquals(recorded.get(i), ids(fhirClient.searchPatientsByLastName(names.get(i), true)));
+                Assertions.assertEquals(recorded.get(i), ids(fhirClient.searchPatientsByLastNameAsync(names.get(i), true).join()));
+            }
+            Assertions.assertEquals(0, replay.getUnmatched());
+        }
+    }
+
+    @Test
+    public void testAsyncSearchesAreRecordedAndReplayed(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("searches.ndjson");
+        List<String> names = Arrays.asList("SMITH", "O'BRIEN");
+        List<List<String>> recorded;
+        try (StubFhirServer stub = new StubFhirServer(2, 0);
+             RecordingInterceptor recording = new RecordingInterceptor(file, stub.getBaseUrl());
+             AsyncSearchTransport transport = new AsyncSearchTransport(FhirClientFactory.sharedContext(), stub.getBaseUrl(),
+                     4, 5000, new LatencyMetrics(), recording)) {
+            recorded = names.stream()
+                    .map(name -> ids(transport.search(name, true, null, AsyncSearchTransport.Response::getPatients).join()))
+                    .collect(Collectors.toList());
+            Assertions.assertEquals(2, recording.getRecorded());
+        }
+
+        try (ReplayFhirServer replay = ReplayFhirServer.fromFile(file, 0);
+             AsyncSearchTransport transport = new AsyncSearchTransport(FhirClientFactory.sharedContext(), replay.getBaseUrl(),
+                     4, 5000, new LatencyMetrics())) {
+            for (int i = 0; i < names.size(); i++) {
+                Assertions.assertEquals(recorded.get(i),
+                        ids(transport.search(names.get(i), true, null, AsyncSearchTransport.Response::getPatients).join()));
+            }
+            Assertions.assertEquals(0, replay.getUnmatched());
+        }
+    }
+
+    @Test
+    public void testRecordedLatencyIsScaled() throws Exception {
+        try (ReplayFhirServer replay = new ReplayFhirServer(Collections.singletonList(exchange("/Patient?family=SMITH", 400_000, "1")), 0.5)) {
+            get(replay.getBaseUrl() + "/metadata");
+            long start = System.nanoTime();
+            Assertions.assertEquals(200, get(replay.getBaseUrl() + "/Patient?family=SMITH").statusCode());
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assertions.assertTrue(millis >= 200 && millis < 400, String.valueOf(millis));
+        }
+    }
+
+    @Test
+    public void testRepeatedRequestsAreAnsweredRoundRobin() throws Exception {
+        try (ReplayFhirServer replay = new ReplayFhirServer(Arrays.asList(
+                exchange("/Patient?family=SMITH&_count=50", 0, "first"), exchange("/Patient?_count=50&family=SMITH", 0, "second")), 0)) {
+            String url = replay.getBaseUrl() + "/Patient?_count=50&family=SMITH";
+            Assertions.assertTrue(get(url).body().contains("\"first\""));
+            Assertions.assertTrue(get(url).body().contains("\"second\""));
+            Assertions.assertTrue(get(url).body().contains("\"first\""));
+
+            HttpResponse<String> unknown = get(replay.getBaseUrl() + "/Patient?family=JONES");
+            Assertions.assertEquals(404, unknown.statusCode());
+            Assertions.assertTrue(unknown.body().contains("OperationOutcome"));
+            Assertions.assertEquals(1, replay.getUnmatched());
+            Assertions.assertEquals(4, replay.getRequests());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package service;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class SearchResultCacheTest {
+
+    private long now;
+    private SearchResultCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        now = 0;
+        cache = new SearchResultCache(2, 1000, () -> now);
+    }
+
+    @Test
+    public void testKeyIsNormalized() {
+        Map<String, String> first = new HashMap<>();
+        first.put("family", " smith ");
+        first.put("_count", "10");
+        Map<String, String> second = new HashMap<>();
+        second.put("_count", "10");
+        second.put("family", "SMITH");
+
+        Assertions.assertEquals(SearchResultCache.key("Patient", first), SearchResultCache.key("Patient", second));
+        Assertions.assertNotEquals(SearchResultCache.key("Patient", first), SearchResultCache.key("Practitioner", second));
+    }
+
+    @Test
+    public void testTtlExpiryAndRevalidation() {
+        cache.put("a", Collections.singletonList(new Patient()), "W/\"1\"", null);
+        Assertions.assertTrue(cache.isFresh(cache.get("a")));
+
+        now += TimeUnit.MILLISECONDS.toNanos(1500);
+        SearchResultCache.Entry stale = cache.get("a");
+        Assertions.assertFalse(cache.isFresh(stale));
+        Assertions.assertTrue(stale.hasValidators());
+        Assertions.assertEquals("W/\"1\"", stale.getEtag());
+
+        cache.revalidated("a");
+        Assertions.assertTrue(cache.isFresh(cache.get("a")));
+        Assertions.assertEquals(1, cache.getRevalidations());
+    }
+
+    @Test
+    public void testPutWithAge() {
+        cache.put("a", Collections.singletonList(new Patient()), null, null, 1500);
+        Assertions.assertFalse(cache.isFresh(cache.get("a")));
+
+        cache.put("b", Collections.singletonList(new Patient()), null, null, 500);
+        Assertions.assertTrue(cache.isFresh(cache.get("b")));
+        now += TimeUnit.MILLISECONDS.toNanos(600);
+        Assertions.assertFalse(cache.isFresh(cache.get("b")));
+    }
+
+    @Test
+    public void testLruEviction() {
+        cache.put("a", Collections.emptyList(), null, null);
+        cache.put("b", Collections.emptyList(), null, null);
+        cache.get("a");  // "b" is now least recently used
+        cache.put("c", Collections.emptyList(), null, null);
+
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertNotNull(cache.get("a"));
+        Assertions.assertNull(cache.get("b"));
+        Assertions.assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testCachedResultIsCopied() {
+        List<Patient> patients = new ArrayList<>();
+        patients.add(new Patient());
+        cache.put("a", patients, null, null);
+        patients.clear();
+
+        List<Patient> cached = cache.get("a").getPatients();
+        Assertions.assertEquals(1, cached.size());
+        cached.clear();
+        Assertions.assertEquals(1, cache.get("a").getPatients().size());
+        Assertions.assertFalse(cache.get("a").hasValidators());
+    }
+}
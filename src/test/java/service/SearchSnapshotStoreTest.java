@@ -0,0 +1,143 @@
+package service;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SearchSnapshotStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    private SearchSnapshotStore store(Path file) {
+        return new SearchSnapshotStore(file, FhirClientFactory.sharedContext(), clock::get);
+    }
+
+    private static Patient patient(String id, String family, String given) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        patient.addName().setFamily(family).addGiven(given);
+        return patient;
+    }
+
+    @Test
+    public void testRoundTripAcrossRestart() {
+        Path file = dir.resolve("snapshots.ndjson");
+        try (SearchSnapshotStore store = store(file)) {
+            store.put("Patient?family=SMITH&", Arrays.asList(patient("1", "Smith", "Ann"), patient("2", "Smith", "Bob")), "W/\"3\"", null);
+            store.put("Patient?family=JONES&", Collections.singletonList(patient("3", "Jones", "Cy")), null, "Mon, 01 Jan 2024 00:00:00 GMT");
+        }
+        clock.addAndGet(5000);
+
+        try (SearchSnapshotStore restarted = store(file)) {
+            SearchSnapshotStore.Snapshot smith = restarted.get("Patient?family=SMITH&");
+            Assertions.assertEquals(2, smith.getPatients().size());
+            Assertions.assertEquals("Bob", smith.getPatients().get(1).getNameFirstRep().getGivenAsSingleString());
+            Assertions.assertEquals("W/\"3\"", smith.getEtag());
+            Assertions.assertEquals(1_000_000, smith.getStoredAtMillis());
+            Assertions.assertEquals(5000, smith.getAgeMillis());
+            Assertions.assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", restarted.get("Patient?family=JONES&").getLastModified());
+            Assertions.assertNull(restarted.get("Patient?family=MISSING&"));
+            Assertions.assertEquals(2, restarted.size());
+        }
+    }
+
+    @Test
+    public void testLatestLineWinsAndTouchRefreshesTimestamp() {
+        Path file = dir.resolve("snapshots.ndjson");
+        try (SearchSnapshotStore store = store(file)) {
+            store.put("k", Collections.singletonList(patient("1", "Smith", "Old")), null, null);
+            store.put("k", Collections.singletonList(patient("1", "Smith", "New")), "\"2\"", null);
+            clock.addAndGet(1000);
+            store.touch("k");
+        }
+
+        try (SearchSnapshotStore restarted = store(file)) {
+            SearchSnapshotStore.Snapshot snapshot = restarted.get("k");
+            Assertions.assertEquals("New", snapshot.getPatients().get(0).getNameFirstRep().getGivenAsSingleString());
+            Assertions.assertEquals("\"2\"", snapshot.getEtag());
+            Assertions.assertEquals(0, snapshot.getAgeMillis());
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Path file = dir.resolve("snapshots.ndjson");
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            patients.add(patient(String.valueOf(i), "Smith", "Given" + i));
+        }
+        try (SearchSnapshotStore store = store(file)) {
+            store.put("other", Collections.singletonList(patient("x", "Jones", "Al")), null, null);
+            long lineSize = store.getFileSize();
+            store.put("k", patients, null, null);
+            store.put("k", patients, null, null);
+            long twoLines = store.getFileSize();
+            Assertions.assertTrue(twoLines > 2 * lineSize);
+
+            store.compact();
+            Assertions.assertTrue(store.getFileSize() < twoLines);
+            Assertions.assertEquals(200, store.get("k").getPatients().size());
+            // Appending after compaction continues at the end of the compacted file
+            store.put("third", Collections.singletonList(patient("y", "Lee", "Bo")), null, null);
+        }
+        Assertions.assertFalse(Files.exists(dir.resolve("snapshots.ndjson.compact")));
+        Assertions.assertEquals(3, Files.readAllLines(file).size());
+
+        try (SearchSnapshotStore restarted = store(file)) {
+            Assertions.assertEquals(3, restarted.size());
+            Assertions.assertEquals("Al", restarted.get("other").getPatients().get(0).getNameFirstRep().getGivenAsSingleString());
+            Assertions.assertEquals(200, restarted.get("k").getPatients().size());
+        }
+    }
+
+    @Test
+    public void testTornAndCorruptLinesAreSkipped() throws IOException {
+        Path file = dir.resolve("snapshots.ndjson");
+        try (SearchSnapshotStore store = store(file)) {
+            store.put("k", Collections.singletonList(patient("1", "Smith", "Ann")), null, null);
+        }
+        long complete = Files.size(file);
+        Files.write(file, "not json\n{\"key\":\"half\",\"storedAt\":1,\"bun".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (SearchSnapshotStore restarted = store(file)) {
+            Assertions.assertEquals(1, restarted.size());
+            Assertions.assertEquals(1, restarted.get("k").getPatients().size());
+            // The torn line is cut off, the unreadable complete line is left for compaction
+            Assertions.assertEquals(complete + "not json\n".length(), restarted.getFileSize());
+        }
+    }
+
+    @Test
+    public void testUnwritableLocationIsAMiss() throws IOException {
+        Path blocker = Files.createFile(dir.resolve("blocker"));
+        try (SearchSnapshotStore store = store(blocker.resolve("snapshots.ndjson"))) {
+            store.put("k", Collections.singletonList(patient("1", "Smith", "Ann")), null, null);
+            Assertions.assertNull(store.get("k"));
+        }
+    }
+
+    @Test
+    public void testSharedStorePerFile() {
+        Path file = dir.resolve("shared").resolve("snapshots.ndjson");
+        SearchSnapshotStore store = SearchSnapshotStore.shared(file, FhirClientFactory.sharedContext());
+
+        Assertions.assertSame(store, SearchSnapshotStore.shared(dir.resolve("shared/../shared/snapshots.ndjson"),
+                FhirClientFactory.sharedContext()));
+        Assertions.assertNotSame(store, SearchSnapshotStore.shared(dir.resolve("other.ndjson"), FhirClientFactory.sharedContext()));
+    }
+}
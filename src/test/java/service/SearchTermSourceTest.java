@@ -0,0 +1,114 @@
+package service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SearchTermSourceTest {
+
+    @TempDir
+    Path dir;
+
+    private static List<String> readAll(SearchTermSource source) {
+        List<String> terms = new ArrayList<>();
+        source.forEachRemaining(terms::add);
+        return terms;
+    }
+
+    @Test
+    public void testTrimsSkipsBlanksAndDuplicates() {
+        SearchTermSource source = new SearchTermSource(new StringReader("SMITH\n  Jones \n\nsmith\nLee\r\nJONES\n"), 1 << 16);
+
+        Assertions.assertEquals(Arrays.asList("SMITH", "Jones", "Lee"), readAll(source));
+        Assertions.assertEquals(3, source.getConsumed());
+        Assertions.assertEquals(2, source.getDuplicates());
+        Assertions.assertEquals(6, source.getLines());
+        Assertions.assertFalse(source.hasNext());
+    }
+
+    @Test
+    public void testDedupeDisabled() {
+        SearchTermSource source = new SearchTermSource(new StringReader("SMITH\nSMITH\n"), 0);
+        Assertions.assertEquals(Arrays.asList("SMITH", "SMITH"), readAll(source));
+    }
+
+    @Test
+    public void testOpenFromClasspathAndFilesystem() throws IOException {
+        try (SearchTermSource source = SearchTermSource.open("names.txt")) {
+            Assertions.assertEquals("SMITH", source.next());
+        }
+        Path file = Files.write(dir.resolve("terms.txt"), "Adams\n".getBytes(StandardCharsets.UTF_8));
+        try (SearchTermSource source = SearchTermSource.open(file.toString())) {
+            Assertions.assertEquals(Arrays.asList("Adams"), readAll(source));
+        }
+        Assertions.assertThrows(FileNotFoundException.class, () -> SearchTermSource.open("nonexistent.txt"));
+    }
+
+    @Test
+    public void testLargeFileIsStreamed() throws IOException {
+        Path file = dir.resolve("large.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 2_000_000; i++) {
+                writer.write("Name" + (i % 100_000));
+                writer.newLine();
+            }
+        }
+
+        try (SearchTermSource source = SearchTermSource.open(file.toString())) {
+            long count = 0;
+            while (source.hasNext()) {
+                source.next();
+                count++;
+            }
+            // With 64M filter bits, a false positive among 100k distinct terms is practically impossible
+            Assertions.assertEquals(100_000, count);
+            Assertions.assertEquals(100_000, source.getConsumed());
+            Assertions.assertTrue(source.isApproximate());
+            Assertions.assertEquals(0, source.getDuplicates());
+            Assertions.assertEquals(1_900_000, source.getPossibleDuplicates());
+        }
+    }
+
+    @Test
+    public void testSmallInputIsDeduplicatedExactly() {
+        StringBuilder terms = new StringBuilder();
+        for (int i = 0; i < SearchTermSource.EXACT_TERMS; i++) {
+            terms.append("Name").append(i).append('\n');
+        }
+        // A single filter word would make almost every new term look seen; the exact set never does
+        SearchTermSource source = new SearchTermSource(new StringReader(terms.toString() + terms), 64);
+
+        Assertions.assertEquals(SearchTermSource.EXACT_TERMS, readAll(source).size());
+        Assertions.assertFalse(source.isApproximate());
+        Assertions.assertEquals(SearchTermSource.EXACT_TERMS, source.getDuplicates());
+        Assertions.assertEquals(0, source.getPossibleDuplicates());
+    }
+
+    @Test
+    public void testFilterIsSizedByInputLength() {
+        StringBuilder terms = new StringBuilder();
+        for (int i = 0; i < 2 * SearchTermSource.EXACT_TERMS; i++) {
+            terms.append("Name").append(i).append('\n');
+        }
+        // About 10 bits per term the input can hold, far below the configured maximum
+        SearchTermSource source = new SearchTermSource(new StringReader(terms.toString() + terms), 1L << 30, terms.length());
+
+        Assertions.assertEquals(terms.length() / 2 * 10, source.getFilterBits());
+        Assertions.assertEquals(2 * SearchTermSource.EXACT_TERMS, readAll(source).size());
+        Assertions.assertTrue(source.isApproximate());
+        // The repeat of the terms moved into the filter is only known to be a probable duplicate
+        Assertions.assertEquals(0, source.getDuplicates());
+        Assertions.assertEquals(2 * SearchTermSource.EXACT_TERMS, source.getPossibleDuplicates());
+    }
+}
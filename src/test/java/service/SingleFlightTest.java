@@ -0,0 +1,124 @@
+package service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, List<String>> singleFlight = new SingleFlight<>(ArrayList::new);
+
+    private static void awaitMerged(SingleFlight<?, ?> singleFlight, long merged) throws InterruptedException {
+        for (int i = 0; i < 500 && singleFlight.getMerged() < merged; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testConcurrentCallsAreMerged() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<List<String>>> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                results.add(executor.submit(() -> singleFlight.execute("smith", () -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new ArrayList<>(Arrays.asList("a", "b"));
+                })));
+            }
+            awaitMerged(singleFlight, 4);
+            Assertions.assertEquals(1, singleFlight.getInFlight());
+            release.countDown();
+
+            List<List<String>> lists = new ArrayList<>();
+            for (Future<List<String>> result : results) {
+                List<String> list = result.get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals(Arrays.asList("a", "b"), list);
+                // Every caller gets its own list
+                lists.forEach(other -> Assertions.assertNotSame(other, list));
+                lists.add(list);
+            }
+            Assertions.assertEquals(1, calls.get());
+            Assertions.assertEquals(1, singleFlight.getExecutions());
+            Assertions.assertEquals(4, singleFlight.getMerged());
+            Assertions.assertEquals(0, singleFlight.getInFlight());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFinishedCallsAndOtherKeysAreNotMerged() {
+        singleFlight.execute("smith", () -> Arrays.asList("a"));
+        singleFlight.execute("smith", () -> Arrays.asList("a"));
+        singleFlight.execute("jones", () -> Arrays.asList("b"));
+
+        Assertions.assertEquals(3, singleFlight.getExecutions());
+        Assertions.assertEquals(0, singleFlight.getMerged());
+    }
+
+    @Test
+    public void testFailureIsSharedWithWaiters() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> leader = executor.submit(() -> singleFlight.execute("smith", () -> {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("server down");
+            }));
+            while (singleFlight.getInFlight() == 0) {
+                Thread.sleep(10);
+            }
+            CompletableFuture<List<String>> waiter = CompletableFuture.supplyAsync(() -> singleFlight.execute("smith", ArrayList::new));
+            awaitMerged(singleFlight, 1);
+            release.countDown();
+
+            CompletionException e = Assertions.assertThrows(CompletionException.class, waiter::join);
+            Assertions.assertEquals("server down", e.getCause().getMessage());
+            Assertions.assertThrows(Exception.class, () -> leader.get(5, TimeUnit.SECONDS));
+            // The next call runs again
+            Assertions.assertEquals(Arrays.asList("x"), singleFlight.execute("smith", () -> Arrays.asList("x")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncCallsAreMerged() {
+        CompletableFuture<List<String>> pending = new CompletableFuture<>();
+
+        CompletableFuture<List<String>> first = singleFlight.executeAsync("smith", () -> pending);
+        CompletableFuture<List<String>> second = singleFlight.executeAsync("smith", () -> CompletableFuture.completedFuture(null));
+        List<String> blocking = new ArrayList<>();
+        pending.complete(new ArrayList<>(Arrays.asList("a")));
+        blocking.addAll(singleFlight.execute("smith", () -> Arrays.asList("new")));
+
+        Assertions.assertEquals(Arrays.asList("a"), first.join());
+        Assertions.assertEquals(Arrays.asList("a"), second.join());
+        Assertions.assertNotSame(first.join(), second.join());
+        Assertions.assertEquals(Arrays.asList("new"), blocking);
+        Assertions.assertEquals(2, singleFlight.getExecutions());
+        Assertions.assertEquals(1, singleFlight.getMerged());
+    }
+}